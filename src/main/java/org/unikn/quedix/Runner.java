@@ -1,18 +1,31 @@
 package org.unikn.quedix;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import org.basex.query.QueryException;
+import org.basex.util.Token;
 import org.unikn.quedix.core.Arg;
+import org.unikn.quedix.core.Client;
 import org.unikn.quedix.core.ClientType;
 import org.unikn.quedix.core.DistributionAlgorithm;
+import org.unikn.quedix.core.GlobalIndex;
 import org.unikn.quedix.core.MetaData;
 import org.unikn.quedix.core.StartType;
+import org.unikn.quedix.map.ContinuousQuery;
+import org.unikn.quedix.map.FusedMapClient;
+import org.unikn.quedix.map.JobGraph;
+import org.unikn.quedix.map.JoinClient;
 import org.unikn.quedix.map.MapClient;
+import org.unikn.quedix.map.MaterializedView;
+import org.unikn.quedix.reduce.Aggregator;
 import org.unikn.quedix.reduce.ReduceClient;
+import org.unikn.quedix.reduce.SortOrder;
 import org.unikn.quedix.rest.RestClient;
 import org.unikn.quedix.socket.BaseXClient;
 import org.unikn.quedix.socket.DistributionClient;
@@ -56,7 +69,20 @@ public class Runner {
 	/** Slash. */
 	public static final String SLASH = "/";
 
+	/** Comma. */
+	public static final String COMMA = ",";
+	/** Equality sign. */
+	public static final String EQ = "=";
+	/** Range separator. */
+	public static final String RANGE = "..";
+	/** Index file ending. */
+	public static final String IDX = ".idx";
+	/** Meta data file ending. */
+	public static final String META = ".meta";
+
 	private static long mStart;
+	/** Program parameters. */
+	private Map<Arg.Paramter, String> mParams = new HashMap<Arg.Paramter, String>();
 	/**
 	 * Main.
 	 * 
@@ -79,6 +105,7 @@ public class Runner {
 			DistributionAlgorithm ag = algo == null ? DistributionAlgorithm.ROUND_ROBIN_SIMPLE
 					: DistributionAlgorithm.valueOf(algo);
 			Runner run = new Runner();
+			run.mParams = a.getPar();
 			mStart = System.nanoTime();
 			switch (a.getType()) {
 			case DISTRIBUTION_REST:
@@ -110,6 +137,48 @@ public class Runner {
 						.getPar().get(Arg.Paramter.REDUCE), ClientType.SOCKETS);
 				break;
 
+			case JOIN_REST:
+				run.executeJoin(a.getPar().get(Arg.Paramter.JOIN_LEFT), a
+						.getPar().get(Arg.Paramter.JOIN_RIGHT), ClientType.REST);
+				break;
+
+			case JOIN_SOCKETS:
+				run.executeJoin(a.getPar().get(Arg.Paramter.JOIN_LEFT), a
+						.getPar().get(Arg.Paramter.JOIN_RIGHT),
+						ClientType.SOCKETS);
+				break;
+
+			case CONTINUOUS_SOCKETS:
+				run.executeContinuous(a.getPar().get(Arg.Paramter.MAP), a
+						.getPar().get(Arg.Paramter.WATCH));
+				break;
+
+			case VIEW_REST:
+				run.refreshView(a.getPar().get(Arg.Paramter.VIEW),
+						ClientType.REST);
+				break;
+
+			case VIEW_SOCKETS:
+				run.refreshView(a.getPar().get(Arg.Paramter.VIEW),
+						ClientType.SOCKETS);
+				break;
+
+			case GRAPH_REST:
+				run.executeGraph(a.getPar().get(Arg.Paramter.STAGES),
+						ClientType.REST);
+				break;
+
+			case GRAPH_SOCKETS:
+				run.executeGraph(a.getPar().get(Arg.Paramter.STAGES),
+						ClientType.SOCKETS);
+				break;
+
+			case VIEW_READ:
+				new MaterializedView(new File(a.getPar().get(
+						Arg.Paramter.VIEW))).read(System.out);
+				System.out.println();
+				break;
+
 			default:
 				printValidArgs();
 				break;
@@ -148,12 +217,28 @@ public class Runner {
 			throws IOException {
 		try {
 			org.unikn.quedix.core.Distributor cl;
+			MetaData meta = new MetaData();
+			// versions accumulate over several distributions
+			File metaFile = new File(name + META);
+			if (metaFile.exists())
+				meta.loadVersions(metaFile);
+			String keys = mParams.get(Arg.Paramter.KEYS);
+			if (keys != null)
+				meta.setIndex(new GlobalIndex(new File(name + IDX),
+						keys.split(COMMA)));
+			String key = algo == DistributionAlgorithm.CO_PARTITIONING ? mParams
+					.get(Arg.Paramter.PARTITION_KEY) : null;
+			boolean coPartitioned = key != null
+					&& MetaData.staysCoPartitioned(key, metaFile);
+			meta.setPartitionKey(key);
 			if (type == ClientType.REST)
-				cl = new RestClient(initHttpDataServersMonds(), new MetaData());
+				cl = new RestClient(initHttpDataServersMonds(), meta);
 			else
-				cl = new DistributionClient(initBaseXClientsMonds(),
-						new MetaData());
+				cl = new DistributionClient(initBaseXClientsMonds(), meta);
 			cl.distributeCollection(xmlDir, name, algo);
+			if (!coPartitioned)
+				meta.setPartitionKey(null);
+			meta.store(metaFile);
 		} catch (final Exception exc) {
 			exc.printStackTrace();
 		}
@@ -172,6 +257,10 @@ public class Runner {
 	 */
 	public void executeMap(final String xq, final ClientType type)
 			throws IOException {
+		if (xq.contains(COMMA)) {
+			executeFused(xq.split(COMMA), new String[0], type);
+			return;
+		}
 		if (type == ClientType.REST)
 			map(new MapClient(new RestClient(initHttpDataServersMonds(),
 					new MetaData()), new File(xq)));
@@ -200,20 +289,257 @@ public class Runner {
 	 */
 	public void executeMapReduce(final String mapXq, final String reduceXq,
 			final ClientType type) throws IOException, QueryException {
+		if (mapXq.contains(COMMA)) {
+			executeFused(mapXq.split(COMMA), reduceXq == null ? new String[0]
+					: reduceXq.split(COMMA), type);
+			return;
+		}
+		String aggregation = mParams.get(Arg.Paramter.AGGREGATION);
+		ReduceClient reducer = aggregation == null ? new ReduceClient(new File(
+				reduceXq)) : new ReduceClient(Aggregator.parse(aggregation));
+		String budget = mParams.get(Arg.Paramter.BUDGET);
+		if (budget != null)
+			reducer.setMemoryBudget(Long.parseLong(budget));
+		String key = mParams.get(Arg.Paramter.GROUP_KEY);
+		if (key != null)
+			reducer.setPartitionKey(key, Runtime.getRuntime()
+					.availableProcessors());
 		if (type == ClientType.REST)
 			map(new MapClient(new RestClient(initHttpDataServersMonds(),
-					new MetaData()), new File(mapXq), new ReduceClient(
-					new File(reduceXq), mStart)));
+					new MetaData()), new File(mapXq), reducer));
 		else {
 			SocketClient client = new SocketClient(initBaseXClientsMonds(),
 					new MetaData());
-			map(new MapClient(client, new File(mapXq), new ReduceClient(
-					new File(reduceXq),mStart)));
+			map(new MapClient(client, new File(mapXq), reducer));
 			client.shutdownClients();
 		}
 
 	}
 
+	/**
+	 * Creates and executes several map jobs as one fused job.
+	 * 
+	 * @param mapXqs
+	 *            XQuery map files.
+	 * @param reduceXqs
+	 *            XQuery reduce files, in the order of the map files. Jobs
+	 *            without reduce file are reduced by the built-in aggregation,
+	 *            if one is given, or print their map results.
+	 * @param type
+	 *            Client type, either {@link ClientType#REST} or
+	 *            {@link ClientType#SOCKETS}.
+	 * @throws IOException
+	 *             XQ file not found.
+	 */
+	public void executeFused(final String[] mapXqs, final String[] reduceXqs,
+			final ClientType type) throws IOException {
+		Client client;
+		if (type == ClientType.REST)
+			client = new RestClient(initHttpDataServersMonds(), new MetaData());
+		else
+			client = new SocketClient(initBaseXClientsMonds(), new MetaData());
+		FusedMapClient fused = new FusedMapClient(client);
+		String aggregation = mParams.get(Arg.Paramter.AGGREGATION);
+		for (int i = 0; i < mapXqs.length; i++) {
+			ReduceClient reducer = null;
+			if (i < reduceXqs.length && reduceXqs[i].length() > 0)
+				reducer = new ReduceClient(new File(reduceXqs[i]));
+			else if (aggregation != null)
+				reducer = new ReduceClient(Aggregator.parse(aggregation));
+			fused.add(new File(mapXqs[i]), reducer);
+		}
+		fused.distribute();
+		fused.execute();
+		fused.cleanup();
+		if (client instanceof SocketClient)
+			((SocketClient) client).shutdownClients();
+	}
+
+	/**
+	 * Creates and runs a continuous map job, which re-runs the mapper on each
+	 * server firing the event and prints the updated results, until a line
+	 * is entered.
+	 * 
+	 * @param mapXq
+	 *            XQuery map file.
+	 * @param event
+	 *            Event name.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public void executeContinuous(final String mapXq, final String event)
+			throws IOException {
+		SocketClient client = new SocketClient(initBaseXClientsMonds(),
+				new MetaData());
+		ContinuousQuery query = new ContinuousQuery(client, event, new File(
+				mapXq));
+		String aggregation = mParams.get(Arg.Paramter.AGGREGATION);
+		if (aggregation != null)
+			query.setAggregator(Aggregator.parse(aggregation));
+		query.addListener(new ContinuousQuery.ResultListener() {
+
+			@Override
+			public void update(final Set<String> servers, final byte[] results) {
+				System.out.println("Updated results of " + servers + ": ");
+				System.out.println(Token.string(results));
+			}
+
+			@Override
+			public void failed(final Map<String, String> servers) {
+				System.err.println("Outdated results of " + servers.keySet()
+						+ ": " + servers.values());
+			}
+		});
+		query.start();
+		System.out.println("Watching event " + event
+				+ ", press enter to stop.");
+		new BufferedReader(new InputStreamReader(System.in)).readLine();
+		query.stop();
+		client.shutdownClients();
+	}
+
+	/**
+	 * Creates and executes a job graph, whose last stage returns the results,
+	 * optionally reduced.
+	 * 
+	 * @param stages
+	 *            Comma separated stages as
+	 *            <code>NAME:PATH[:INPUT+INPUT[:KEY]]</code>.
+	 * @param type
+	 *            Client type, either {@link ClientType#REST} or
+	 *            {@link ClientType#SOCKETS}.
+	 * @throws IOException
+	 *             Exception occurred.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public void executeGraph(final String stages, final ClientType type)
+			throws IOException, QueryException {
+		Client client;
+		if (type == ClientType.REST)
+			client = new RestClient(initHttpDataServersMonds(), new MetaData());
+		else
+			client = new SocketClient(initBaseXClientsMonds(), new MetaData());
+		JobGraph graph = new JobGraph(client);
+		String last = null;
+		for (String stage : stages.split(COMMA)) {
+			String[] s = stage.split(COLON, 4);
+			String[] inputs = s.length > 2 && s[2].length() > 0 ? s[2]
+					.split("\\+") : new String[0];
+			graph.add(s[0], new File(s[1]), inputs, s.length > 3 ? s[3]
+					: null);
+			last = s[0];
+		}
+		String reduceXq = mParams.get(Arg.Paramter.REDUCE);
+		String aggregation = mParams.get(Arg.Paramter.AGGREGATION);
+		ReduceClient reducer = null;
+		if (reduceXq != null)
+			reducer = new ReduceClient(new File(reduceXq));
+		else if (aggregation != null)
+			reducer = new ReduceClient(Aggregator.parse(aggregation));
+		if (reducer != null)
+			System.out.println("Complete reduce result: ");
+		graph.execute(last, reducer, System.out);
+		System.out.println();
+		if (client instanceof SocketClient)
+			((SocketClient) client).shutdownClients();
+	}
+
+	/**
+	 * Defines, if a map file is given, and refreshes a materialized view. Only
+	 * the servers, whose documents have been distributed since the last
+	 * refresh, execute the mapper again.
+	 * 
+	 * @param dir
+	 *            View directory.
+	 * @param type
+	 *            Client type, either {@link ClientType#REST} or
+	 *            {@link ClientType#SOCKETS}.
+	 * @throws IOException
+	 *             Exception occurred.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public void refreshView(final String dir, final ClientType type)
+			throws IOException, QueryException {
+		MaterializedView view = new MaterializedView(new File(dir));
+		String mapXq = mParams.get(Arg.Paramter.MAP);
+		if (mapXq != null) {
+			String reduceXq = mParams.get(Arg.Paramter.REDUCE);
+			view.define(new File(mapXq), reduceXq == null ? null : new File(
+					reduceXq), mParams.get(Arg.Paramter.AGGREGATION), new File(
+					mParams.get(Arg.Paramter.NAME) + META));
+		}
+		if (type == ClientType.REST) {
+			view.refresh(new RestClient(initHttpDataServersMonds(),
+					new MetaData()));
+		} else {
+			SocketClient client = new SocketClient(initBaseXClientsMonds(),
+					new MetaData());
+			view.refresh(client);
+			client.shutdownClients();
+		}
+		view.read(System.out);
+		System.out.println();
+	}
+
+	/**
+	 * Creates and executes a join of two distributed collections. The join
+	 * strategy is chosen by the placement and the sizes of the collections,
+	 * which have been recorded during their distribution.
+	 * 
+	 * @param left
+	 *            Left collection as <code>DB,ROWS,KEY</code>.
+	 * @param right
+	 *            Right collection as <code>DB,ROWS,KEY</code>.
+	 * @param type
+	 *            Client type, either {@link ClientType#REST} or
+	 *            {@link ClientType#SOCKETS}.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public void executeJoin(final String left, final String right,
+			final ClientType type) throws IOException {
+		MetaData meta = new MetaData();
+		JoinClient.Side l = side(left);
+		JoinClient.Side r = side(right);
+		// a broadcast collection must easily fit into main memory
+		long limit = meta.getServerMeta().getRam() / 64;
+		if (type == ClientType.REST) {
+			new JoinClient(new RestClient(initHttpDataServersMonds(), meta), l,
+					r, limit).execute(System.out);
+		} else {
+			SocketClient client = new SocketClient(initBaseXClientsMonds(),
+					meta);
+			new JoinClient(client, l, r, limit).execute(System.out);
+			client.shutdownClients();
+		}
+		System.out.println();
+	}
+
+	/**
+	 * Returns a collection of a join with its size and partition key, recorded
+	 * in its meta data file.
+	 * 
+	 * @param spec
+	 *            Collection specification <code>DB,ROWS,KEY</code>.
+	 * @return {@link JoinClient.Side} instance.
+	 */
+	private JoinClient.Side side(final String spec) {
+		File file = new File(spec.split(COMMA)[0] + META);
+		if (!file.exists())
+			return JoinClient.Side.parse(spec, -1, null);
+		try {
+			MetaData meta = new MetaData();
+			meta.load(file);
+			return JoinClient.Side.parse(spec, meta.getStorageSize(),
+					meta.getPartitionKey());
+		} catch (final IOException exc) {
+			exc.printStackTrace();
+			return JoinClient.Side.parse(spec, -1, null);
+		}
+	}
+
 	/**
 	 * Initializes the example servers for REST calls.
 	 * 
@@ -291,8 +617,77 @@ public class Runner {
 	 *            {@link MapClient} instance.
 	 */
 	private void map(final MapClient mapper) {
+		String index = mParams.get(Arg.Paramter.INDEX);
+		String lookup = mParams.get(Arg.Paramter.LOOKUP);
+		if (index != null && lookup != null && lookup.contains(EQ)) {
+			try {
+				// key paths may contain "=" in predicates, values may not
+				int eq = lookup.lastIndexOf(EQ);
+				String path = lookup.substring(0, eq);
+				String value = lookup.substring(eq + EQ.length());
+				int r = value.indexOf(RANGE);
+				String from = r == -1 ? value : value.substring(0, r);
+				String to = r == -1 ? value : value.substring(r
+						+ RANGE.length());
+				mapper.route(GlobalIndex.open(new File(index)), path,
+						from.length() == 0 ? null : from,
+						to.length() == 0 ? null : to);
+			} catch (final IOException exc) {
+				exc.printStackTrace();
+				return;
+			}
+		}
+		String combiner = mParams.get(Arg.Paramter.COMBINER);
+		if (combiner != null)
+			mapper.setCombiner(new File(combiner));
+		String fanIn = mParams.get(Arg.Paramter.FAN_IN);
+		if (fanIn != null)
+			mapper.setTreeReduce(Integer.parseInt(fanIn));
+		mapper.setShuffle(mParams.get(Arg.Paramter.SHUFFLE_KEY));
+		mapper.setCompact(mParams.containsKey(Arg.Paramter.COMPACT));
+		String sample = mParams.get(Arg.Paramter.SAMPLE);
+		boolean online = mParams.containsKey(Arg.Paramter.ONLINE);
+		// recorded server sizes weight the estimates and the sample
+		MetaData meta = null;
+		String name = mParams.get(Arg.Paramter.NAME);
+		if ((sample != null || online) && name != null
+				&& new File(name + META).exists()) {
+			meta = new MetaData();
+			try {
+				meta.load(new File(name + META));
+			} catch (final IOException exc) {
+				exc.printStackTrace();
+				return;
+			}
+		}
+		if (sample != null)
+			mapper.setSample(Double.parseDouble(sample), meta);
+		if (online) {
+			mapper.setOnline(new Aggregator.ProgressListener() {
+
+				@Override
+				public void progress(final double completed,
+						final String estimate) {
+					long time = System.nanoTime() - mStart;
+					System.out.println("Estimate after "
+							+ Math.round(completed * 100) + " % of the servers ("
+							+ time / 1000000 + " ms): ");
+					System.out.println(estimate);
+				}
+			}, meta);
+		}
+		String topK = mParams.get(Arg.Paramter.TOP_K);
+		String order = mParams.get(Arg.Paramter.ORDER);
+		if (topK != null && order != null)
+			mapper.setTopK(SortOrder.parse(order), Integer.parseInt(topK));
+		else if (order != null)
+			mapper.setOrder(SortOrder.parse(order));
 		mapper.distribute();
-		mapper.execute();
+		String output = mParams.get(Arg.Paramter.OUTPUT);
+		if (output == null)
+			mapper.execute();
+		else
+			mapper.execute(new File(output));
 		mapper.cleanup();
 	}
 
@@ -350,6 +745,96 @@ public class Runner {
 				params.put(Arg.Paramter.ALGO,
 						DistributionAlgorithm.PARTITIONING.name());
 
+			} else if (args[i].equals("-cp")) {
+				// algorithm with partition key path
+				params.put(Arg.Paramter.ALGO,
+						DistributionAlgorithm.CO_PARTITIONING.name());
+				params.put(Arg.Paramter.PARTITION_KEY, args[i + 1]);
+
+			} else if (args[i].equals("-k")) {
+				// index key paths
+				params.put(Arg.Paramter.KEYS, args[i + 1]);
+
+			} else if (args[i].equals("-i")) {
+				// index file
+				params.put(Arg.Paramter.INDEX, args[i + 1]);
+
+			} else if (args[i].equals("-l")) {
+				// index lookup
+				params.put(Arg.Paramter.LOOKUP, args[i + 1]);
+
+			} else if (args[i].equals("-o")) {
+				// part file output directory
+				params.put(Arg.Paramter.OUTPUT, args[i + 1]);
+
+			} else if (args[i].equals("-c")) {
+				// combiner
+				params.put(Arg.Paramter.COMBINER, args[i + 1]);
+
+			} else if (args[i].equals("-t")) {
+				// tree reduce fan-in
+				params.put(Arg.Paramter.FAN_IN, args[i + 1]);
+
+			} else if (args[i].equals("-g")) {
+				// grouping key of the partitioned reduce
+				params.put(Arg.Paramter.GROUP_KEY, args[i + 1]);
+
+			} else if (args[i].equals("-s")) {
+				// shuffle key expression
+				params.put(Arg.Paramter.SHUFFLE_KEY, args[i + 1]);
+
+			} else if (args[i].equals("-b")) {
+				// compact intermediate format
+				params.put(Arg.Paramter.COMPACT, Boolean.TRUE.toString());
+
+			} else if (args[i].equals("-a")) {
+				// built-in aggregation
+				params.put(Arg.Paramter.AGGREGATION, args[i + 1]);
+
+			} else if (args[i].equals("-K")) {
+				// number of results of a ranking job
+				params.put(Arg.Paramter.TOP_K, args[i + 1]);
+
+			} else if (args[i].equals("-O")) {
+				// order of the results
+				params.put(Arg.Paramter.ORDER, args[i + 1]);
+
+			} else if (args[i].equals("-f")) {
+				// sampling fraction of the approximate mode
+				params.put(Arg.Paramter.SAMPLE, args[i + 1]);
+
+			} else if (args[i].equals("-M")) {
+				// memory budget of the local reduce
+				params.put(Arg.Paramter.BUDGET, args[i + 1]);
+
+			} else if (args[i].equals("-e")) {
+				// online aggregation with progressive estimates
+				params.put(Arg.Paramter.ONLINE, Boolean.TRUE.toString());
+
+			} else if (args[i].equals("-w")) {
+				// event of a continuous map job
+				params.put(Arg.Paramter.WATCH, args[i + 1]);
+
+			} else if (args[i].equals("-v")) {
+				// materialized view directory
+				params.put(Arg.Paramter.VIEW, args[i + 1]);
+
+			} else if (args[i].equals("-u")) {
+				// refresh of a materialized view
+				params.put(Arg.Paramter.REFRESH, Boolean.TRUE.toString());
+
+			} else if (args[i].equals("-G")) {
+				// stages of a job graph
+				params.put(Arg.Paramter.STAGES, args[i + 1]);
+
+			} else if (args[i].equals("-jl")) {
+				// left collection of a join
+				params.put(Arg.Paramter.JOIN_LEFT, args[i + 1]);
+
+			} else if (args[i].equals("-jr")) {
+				// right collection of a join
+				params.put(Arg.Paramter.JOIN_RIGHT, args[i + 1]);
+
 			} else if (args[i].equals("-R")) {
 				// REST type
 				isRest = true;
@@ -358,19 +843,42 @@ public class Runner {
 				isRest = false;
 			}
 		}
-		if (params.containsKey(Arg.Paramter.INPUT)
+		if (params.containsKey(Arg.Paramter.STAGES)) {
+			type = isRest ? StartType.GRAPH_REST : StartType.GRAPH_SOCKETS;
+		} else if (params.containsKey(Arg.Paramter.VIEW)) {
+			if (params.containsKey(Arg.Paramter.MAP)
+					&& !params.containsKey(Arg.Paramter.NAME))
+				type = null;
+			else if (params.containsKey(Arg.Paramter.MAP)
+					|| params.containsKey(Arg.Paramter.REFRESH))
+				type = isRest ? StartType.VIEW_REST : StartType.VIEW_SOCKETS;
+			else
+				type = StartType.VIEW_READ;
+		} else if (params.containsKey(Arg.Paramter.MAP)
+				&& params.containsKey(Arg.Paramter.WATCH) && !isRest) {
+			type = StartType.CONTINUOUS_SOCKETS;
+		} else if (params.containsKey(Arg.Paramter.JOIN_LEFT)
+				&& params.containsKey(Arg.Paramter.JOIN_RIGHT)) {
+			type = isRest ? StartType.JOIN_REST : StartType.JOIN_SOCKETS;
+		} else if (params.containsKey(Arg.Paramter.INPUT)
 				&& params.containsKey(Arg.Paramter.NAME)) {
 			type = isRest ? StartType.DISTRIBUTION_REST
 					: StartType.DISTRIBUTION_SOCKETS;
 		} else if (params.containsKey(Arg.Paramter.MAP)
-				&& !params.containsKey(Arg.Paramter.REDUCE)) {
+				&& !params.containsKey(Arg.Paramter.REDUCE)
+				&& !params.containsKey(Arg.Paramter.AGGREGATION)) {
 			type = isRest ? StartType.MAP_REST : StartType.MAP_SOCKETS;
-		} else if (params.containsKey(Arg.Paramter.MAP)
-				&& params.containsKey(Arg.Paramter.REDUCE)) {
+		} else if (params.containsKey(Arg.Paramter.MAP)) {
 			type = isRest ? StartType.MAP_AND_REDUCE_REST
 					: StartType.MAP_AND_REDUCE_SOCKETS;
 		}
 
+		// built-in aggregations are only reduced locally
+		if (params.containsKey(Arg.Paramter.AGGREGATION)
+				&& (params.containsKey(Arg.Paramter.SHUFFLE_KEY) || params
+						.containsKey(Arg.Paramter.FAN_IN)))
+			type = null;
+
 		if (type != null)
 			res = new Arg(type, params);
 
@@ -386,6 +894,28 @@ public class Runner {
 		sb.append("-d PATH -n NAME (Distribution of collection with name)\n");
 		sb.append("-m PATH (Map execution with PATH to map.xq function.)\n");
 		sb.append("-m PATH -r PATH(Map and reduce execution with PATH to map.xq/reduce.xq function.)\n");
+		sb.append("-d PATH -n NAME -cp KEY (Distribution placing each document by the hash of its KEY path, so related collections are co-partitioned)\n");
+		sb.append("-k PATHS (Builds a global index on comma separated key paths during distribution, stored in NAME.idx)\n");
+		sb.append("-i FILE -l PATH=VALUE (Routes map execution to the servers owning the key value, split at the last =; ranges as FROM..TO)\n");
+		sb.append("-m PATH -o DIR (Map execution writing the results of each server into its own part file in DIR)\n");
+		sb.append("-m PATH -c PATH -r PATH (Map and reduce execution with a combiner.xq running on each server over its map $results)\n");
+		sb.append("-m PATH -r PATH -t FANIN (Map and reduce execution, reducing on the data servers in groups of FANIN)\n");
+		sb.append("-m PATH -r PATH -g KEY (Map and reduce execution, reducing partitions of the grouping KEY path on all cores)\n");
+		sb.append("-m PATH -r PATH -s KEY (Map and reduce execution, shuffling the map results by the KEY expression to reducing data servers)\n");
+		sb.append("-m PATH -r PATH -M BYTES (Map and reduce execution, reducing map results larger than BYTES in a temporary database on disk; default a quarter of the heap)\n");
+		sb.append("-m PATH -r PATH -b (Map and reduce execution, shipping the map results in the compact intermediate format)\n");
+		sb.append("-m PATH -a AGG (Map execution with a built-in aggregation instead of reduce.xq: sum|count|min|max[:VALUE], group-count|group-sum:KEY[:VALUE], distinct-count[:VALUE] or quantile:Q,...[:VALUE])\n");
+		sb.append("-m PATH -K N -O KEY[:desc][:number] (Ranking map execution, returning the top N results ordered by the KEY path)\n");
+		sb.append("-m PATH -O KEY[:desc][:number] (Map execution, returning all results ordered by the KEY path)\n");
+		sb.append("-m PATH -a AGG -f FRACTION [-n NAME] (Approximate map execution over a random sample of the documents, scaling additive aggregations to estimates with confidence intervals; the recorded sizes of collection NAME raise the fraction of small servers)\n");
+		sb.append("-m PATH -a AGG -e [-n NAME] (Online aggregation, printing estimates with 95% confidence intervals after each server until the complete result; weighted by the server sizes recorded for collection NAME, otherwise biased low if small servers complete first)\n");
+		sb.append("-m PATH,PATH -r PATH,PATH (Fused execution of several map jobs in one round trip, each with its own reducer)\n");
+		sb.append("-m PATH [-a AGG] -w EVENT -S (Continuous map execution, re-running the mapper on each server firing EVENT)\n");
+		sb.append("-G NAME:PATH[:INPUT+INPUT[:KEY]],... [-r PATH | -a AGG] (Job graph of map stages, keeping intermediate results on the data servers, optionally shuffled by KEY; the last stage returns the results)\n");
+		sb.append("-v DIR -n NAME -m PATH [-r PATH | -a AGG] (Defines and refreshes a materialized view of collection NAME, stored in DIR)\n");
+		sb.append("-v DIR -u (Refreshes a materialized view, re-running the mapper only on servers with newly distributed documents)\n");
+		sb.append("-v DIR (Reads a materialized view without querying the servers)\n");
+		sb.append("-jl DB,ROWS,KEY -jr DB,ROWS,KEY (Join of two distributed collections on their KEY expressions, locally if both are co-partitioned by their join KEYs, otherwise by broadcast, by Bloom filter semi-join or by shuffle)\n");
 		sb.append("-S (Execution via Java client - sockets)\n");
 		sb.append("-R (Execution via HTTP REST)\n");
 		System.out.println(sb.toString());
@@ -12,7 +12,7 @@ public class Arg {
 
 	/** Parameter type. */
 	public enum Paramter {
-		NAME, MAP, REDUCE, INPUT, TYPE, ALGO
+		NAME, MAP, REDUCE, INPUT, TYPE, ALGO, KEYS, INDEX, LOOKUP, OUTPUT, COMBINER, FAN_IN, GROUP_KEY, SHUFFLE_KEY, COMPACT, AGGREGATION, TOP_K, ORDER, JOIN_LEFT, JOIN_RIGHT, PARTITION_KEY, SAMPLE, WATCH, VIEW, REFRESH, STAGES, ONLINE, BUDGET
 	};
 
 	/** Map of parameters. */
@@ -0,0 +1,99 @@
+package org.unikn.quedix.core;
+
+import java.util.BitSet;
+
+/**
+ * This class is a Bloom filter of join keys. Its bit positions are computed
+ * on the data servers by the mixed code point hashes of
+ * {@link QueryComposer#bloomPositions(String, String, int, int)}, set here,
+ * and the filter is shipped back to the servers as hex string, where
+ * {@link QueryComposer#bloomProbe(String, String, String, int, int)} tests
+ * the keys of the other collection.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class BloomFilter {
+
+	/** Default false positive probability. */
+	public static final double FPP = 0.01;
+	/** Minimum number of bits. */
+	private static final int MIN_BITS = 64;
+	/** Maximum number of hash functions. */
+	private static final int MAX_HASHES = 16;
+	/** Hex digits. */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** Number of bits. */
+	private int mBits;
+	/** Number of hash functions. */
+	private int mHashes;
+	/** Bits. */
+	private BitSet mSet;
+
+	/**
+	 * Constructor, which sizes the filter for the expected number of keys.
+	 * 
+	 * @param keys
+	 *            Expected number of keys.
+	 * @param fpp
+	 *            False positive probability.
+	 */
+	public BloomFilter(final long keys, final double fpp) {
+		long n = Math.max(1, keys);
+		double ln2 = Math.log(2);
+		long bits = (long) Math.ceil(-n * Math.log(fpp) / (ln2 * ln2));
+		// one hex digit encodes four bits
+		bits = Math.max(MIN_BITS, (bits + 3) / 4 * 4);
+		mBits = (int) Math.min(bits, Integer.MAX_VALUE / 4 * 4);
+		mHashes = (int) Math.max(1,
+				Math.min(MAX_HASHES, Math.round((double) mBits / n * ln2)));
+		mSet = new BitSet(mBits);
+	}
+
+	/**
+	 * Sets a bit.
+	 * 
+	 * @param position
+	 *            Bit position.
+	 */
+	public void set(final int position) {
+		mSet.set(position);
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return number of bits.
+	 */
+	public int getBits() {
+		return mBits;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return number of hash functions.
+	 */
+	public int getHashes() {
+		return mHashes;
+	}
+
+	/**
+	 * Returns the filter as hex string. Digit <code>i</code> holds the bits
+	 * <code>4i</code> to <code>4i + 3</code>, with the lowest bit first.
+	 * 
+	 * @return Hex string.
+	 */
+	public String toHex() {
+		char[] hex = new char[mBits / 4];
+		for (int i = 0; i < hex.length; i++) {
+			int d = 0;
+			for (int b = 0; b < 4; b++) {
+				if (mSet.get(4 * i + b))
+					d |= 1 << b;
+			}
+			hex[i] = HEX[d];
+		}
+		return new String(hex);
+	}
+}
@@ -1,7 +1,10 @@
 package org.unikn.quedix.core;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This interface abstracts the available methods for execution of distribution,
@@ -41,6 +44,19 @@ public interface Client {
 	 */
 	public void execute(final String xq, final OutputStream output);
 
+	/**
+	 * Executes XQ files on the server and streams the results of each server
+	 * concurrently into its own stream of the given sink.
+	 * 
+	 * @param xq
+	 *            XQ file - map oder reduce file.
+	 * @param sink
+	 *            {@link Sink} for writing results.
+	 * @throws IOException
+	 *             Query failed on a server, whose stream may be truncated.
+	 */
+	public void execute(final String xq, final Sink sink) throws IOException;
+
 	/**
 	 * This method delete map.xq or reduce.xq files from the data server.
 	 * 
@@ -64,4 +80,83 @@ public interface Client {
 	 */
 	public void createMapperDb(final String dataServer);
 
+	/**
+	 * Restricts the following query executions to a subset of the data
+	 * servers, e.g., the owning servers of a {@link GlobalIndex} lookup.
+	 * 
+	 * @param servers
+	 *            Server ids or <code>null</code> to address all servers
+	 *            again.
+	 * @throws IllegalArgumentException
+	 *             The set of servers is empty.
+	 */
+	public void restrict(final Set<String> servers);
+
+	/**
+	 * Returns the ids of the data servers addressed by query executions.
+	 * 
+	 * @return Sorted list of server ids.
+	 */
+	public List<String> getServers();
+
+	/**
+	 * Creates an empty database on one data server.
+	 * 
+	 * @param server
+	 *            Server id.
+	 * @param db
+	 *            Database name.
+	 * @return <code>true</code> if the creation has been successful,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean createDb(final String server, final String db);
+
+	/**
+	 * Adds a document to a database of one data server.
+	 * 
+	 * @param server
+	 *            Server id.
+	 * @param db
+	 *            Database name.
+	 * @param path
+	 *            Document path.
+	 * @param input
+	 *            Document content.
+	 * @return <code>true</code> if the document has been added,
+	 *         <code>false</code> if the server has rejected it.
+	 * @throws IOException
+	 *             Document could not be sent to the server.
+	 */
+	public boolean add(final String server, final String db,
+			final String path, final InputStream input) throws IOException;
+
+	/**
+	 * Executes a query on one data server and streams its result.
+	 * 
+	 * @param server
+	 *            Server id.
+	 * @param db
+	 *            Database opened as query context or <code>null</code>.
+	 * @param query
+	 *            XQuery.
+	 * @param output
+	 *            Stream for writing results.
+	 * @throws IOException
+	 *             Query failed on the server, the output may be truncated.
+	 */
+	public void query(final String server, final String db,
+			final String query, final OutputStream output) throws IOException;
+
+	/**
+	 * Drops a database on one data server.
+	 * 
+	 * @param server
+	 *            Server id.
+	 * @param db
+	 *            Database name.
+	 * @return <code>true</code> if the database has been dropped,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean dropDb(final String server, final String db);
+
 }
@@ -16,6 +16,8 @@ public enum DistributionAlgorithm {
 	/** Advanced with creating connection for each document. */
 	ADVANCED,
 	/** Partitioning. */
-	PARTITIONING
+	PARTITIONING,
+	/** Placement by the hash of a declared partition key. */
+	CO_PARTITIONING
 
 }
@@ -0,0 +1,645 @@
+package org.unikn.quedix.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.basex.util.Token;
+
+/**
+ * This class is a global secondary index on user declared key paths. It maps
+ * key values to the data server and document path holding them. The index is
+ * built while a collection is distributed and stored in a compact, memory
+ * mapped file, which is used afterwards to route equality and range lookups to
+ * the owning servers only.
+ * <p>
+ * File layout: magic, string tables of key paths, servers and documents, the
+ * sorted entry offsets and the entries themselves. Numeric values are ordered
+ * before strings, numbers by value and strings by their UTF-8 bytes.
+ * </p>
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class GlobalIndex {
+
+	/** File magic. */
+	private static final int MAGIC = 0x51494458;
+	/** Numeric value type. */
+	private static final byte NUM = 0;
+	/** String value type. */
+	private static final byte STR = 1;
+	/** Decimal or double literal, e.g. <code>-1.5e3</code>. */
+	private static final Pattern NUMBER = Pattern
+			.compile("[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?");
+
+	/** Index file. */
+	private File mFile;
+	/** Key extractor, only available while building. */
+	private KeyExtractor mExtractor;
+	/** Collected entries, only available while building. */
+	private List<Entry> mEntries;
+	/** Server ids while building. */
+	private Map<String, Integer> mServerIds;
+	/** Document ids while building. */
+	private Map<String, Integer> mDocIds;
+
+	/** Mapped index file. */
+	private MappedByteBuffer mBuffer;
+	/** Key paths. */
+	private String[] mPaths;
+	/** Servers. */
+	private String[] mServers;
+	/** Position of document offsets. */
+	private int mDocs;
+	/** Number of entries. */
+	private int mCount;
+	/** Position of entry offsets. */
+	private int mOffsets;
+
+	/**
+	 * Constructor creates a new index on the given key paths, which will be
+	 * stored in the given file.
+	 * 
+	 * @param file
+	 *            Index file.
+	 * @param paths
+	 *            Key paths, e.g. <code>country/@id</code>.
+	 */
+	public GlobalIndex(final File file, final String[] paths) {
+		mFile = file;
+		mPaths = new String[paths.length];
+		for (int i = 0; i < paths.length; i++)
+			mPaths[i] = paths[i].trim();
+		mExtractor = new KeyExtractor(paths);
+		mEntries = new ArrayList<Entry>();
+		mServerIds = new HashMap<String, Integer>();
+		mDocIds = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Private constructor for opening.
+	 * 
+	 * @param file
+	 *            Index file.
+	 */
+	private GlobalIndex(final File file) {
+		mFile = file;
+	}
+
+	/**
+	 * Opens an existing index file.
+	 * 
+	 * @param file
+	 *            Index file.
+	 * @return Opened index.
+	 * @throws IOException
+	 *             File could not be mapped.
+	 */
+	public static GlobalIndex open(final File file) throws IOException {
+		GlobalIndex index = new GlobalIndex(file);
+		index.map();
+		return index;
+	}
+
+	/**
+	 * Indexes a document, which has been distributed to a server.
+	 * 
+	 * @param server
+	 *            Data server.
+	 * @param document
+	 *            Distributed document.
+	 * @throws IOException
+	 *             Document could not be parsed.
+	 */
+	public synchronized void index(final String server, final File document)
+			throws IOException {
+		Integer s = id(mServerIds, server);
+		Integer d = id(mDocIds, document.getAbsolutePath());
+		for (KeyExtractor.Key key : mExtractor.extract(document)) {
+			Entry entry = new Entry(key.getPath(), key.getValue(), s, d);
+			length(entry.mStr);
+			mEntries.add(entry);
+		}
+	}
+
+	/**
+	 * Sorts the collected entries, writes them into the index file and maps
+	 * it.
+	 * 
+	 * @throws IOException
+	 *             File could not be written.
+	 */
+	public synchronized void store() throws IOException {
+		Collections.sort(mEntries, new Comparator<Entry>() {
+			@Override
+			public int compare(final Entry e1, final Entry e2) {
+				return GlobalIndex.compare(e1.mPath, e1.mType, e1.mNum,
+						e1.mStr, e2.mPath, e2.mType, e2.mNum, e2.mStr);
+			}
+		});
+		byte[][] entries = new byte[mEntries.size()][];
+		int size = 0;
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = mEntries.get(i).bytes();
+			size += entries[i].length;
+		}
+		byte[][] paths = tokens(mPaths);
+		byte[][] servers = tokens(ordered(mServerIds));
+		byte[][] docs = tokens(ordered(mDocIds));
+
+		// offset, length and path of each document
+		int docSize = 0;
+		for (byte[] doc : docs)
+			docSize += 6 + doc.length;
+		ByteBuffer bb = ByteBuffer.allocate(4 + tableSize(paths)
+				+ tableSize(servers) + 4 + docSize + 4 + 4 * entries.length
+				+ size);
+		bb.putInt(MAGIC);
+		putTable(bb, paths);
+		putTable(bb, servers);
+		// document table with offsets for lazy decoding
+		bb.putInt(docs.length);
+		int off = 0;
+		for (byte[] doc : docs) {
+			bb.putInt(off);
+			off += 2 + doc.length;
+		}
+		for (byte[] doc : docs) {
+			bb.putShort(length(doc));
+			bb.put(doc);
+		}
+		bb.putInt(entries.length);
+		off = 0;
+		for (byte[] entry : entries) {
+			bb.putInt(off);
+			off += entry.length;
+		}
+		for (byte[] entry : entries)
+			bb.put(entry);
+		bb.flip();
+
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel ch = raf.getChannel();
+			while (bb.hasRemaining())
+				ch.write(bb);
+		} finally {
+			raf.close();
+		}
+		mEntries = null;
+		mExtractor = null;
+		map();
+		System.out.println("Index with " + mCount + " keys stored in "
+				+ mFile.getAbsolutePath());
+	}
+
+	/**
+	 * Looks up all locations of a key value.
+	 * 
+	 * @param path
+	 *            Key path.
+	 * @param value
+	 *            Key value.
+	 * @return Matching locations.
+	 */
+	public List<Hit> lookup(final String path, final String value) {
+		return lookup(path, value, value);
+	}
+
+	/**
+	 * Looks up all locations of key values within an inclusive range.
+	 * 
+	 * @param path
+	 *            Key path.
+	 * @param from
+	 *            Lower bound or <code>null</code> for open ranges.
+	 * @param to
+	 *            Upper bound or <code>null</code> for open ranges.
+	 * @return Matching locations.
+	 */
+	public synchronized List<Hit> lookup(final String path, final String from,
+			final String to) {
+		List<Hit> hits = new ArrayList<Hit>();
+		int p = pathId(path);
+		if (p == -1)
+			return hits;
+		// binary search of first entry not smaller than the lower bound
+		int low = 0;
+		int high = mCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareAt(mid, p, from) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		for (int i = low; i < mCount; i++) {
+			int pos = entry(i);
+			if (mBuffer.getShort(pos) != p
+					|| (to != null && compareAt(i, p, to) > 0))
+				break;
+			int s = mBuffer.getShort(skipValue(pos));
+			int d = mBuffer.getInt(skipValue(pos) + 2);
+			hits.add(new Hit(mServers[s], document(d)));
+		}
+		return hits;
+	}
+
+	/**
+	 * Returns the owning servers of the given locations.
+	 * 
+	 * @param hits
+	 *            Locations.
+	 * @return Servers.
+	 */
+	public static Set<String> servers(final List<Hit> hits) {
+		Set<String> servers = new LinkedHashSet<String>();
+		for (Hit hit : hits)
+			servers.add(hit.getServer());
+		return servers;
+	}
+
+	/**
+	 * Maps the index file into memory and reads the string tables.
+	 * 
+	 * @throws IOException
+	 *             File could not be mapped.
+	 */
+	private void map() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+		try {
+			mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+		if (mBuffer.getInt(0) != MAGIC)
+			throw new IOException("No index file: " + mFile);
+		mBuffer.position(4);
+		mPaths = readTable(mBuffer);
+		mServers = readTable(mBuffer);
+		mDocs = mBuffer.position();
+		int docs = mBuffer.getInt(mDocs);
+		int end = mDocs + 4 + 4 * docs;
+		for (int i = 0; i < docs; i++)
+			end += 2 + mBuffer.getShort(end);
+		mCount = mBuffer.getInt(end);
+		mOffsets = end + 4;
+	}
+
+	/**
+	 * Returns the position of an entry.
+	 * 
+	 * @param i
+	 *            Entry number.
+	 * @return Position in mapped file.
+	 */
+	private int entry(final int i) {
+		return mOffsets + 4 * mCount + mBuffer.getInt(mOffsets + 4 * i);
+	}
+
+	/**
+	 * Returns the position after the value of the entry at the given position.
+	 * 
+	 * @param pos
+	 *            Entry position.
+	 * @return Position of server id.
+	 */
+	private int skipValue(final int pos) {
+		return mBuffer.get(pos + 2) == NUM ? pos + 11 : pos + 5
+				+ mBuffer.getShort(pos + 3);
+	}
+
+	/**
+	 * Compares the entry with the given number to a key.
+	 * 
+	 * @param i
+	 *            Entry number.
+	 * @param path
+	 *            Key path id.
+	 * @param value
+	 *            Key value, <code>null</code> is smaller than all values.
+	 * @return Comparison result.
+	 */
+	private int compareAt(final int i, final int path, final String value) {
+		int pos = entry(i);
+		short p = mBuffer.getShort(pos);
+		byte type = mBuffer.get(pos + 2);
+		double num = 0;
+		byte[] str = null;
+		if (type == NUM) {
+			num = mBuffer.getDouble(pos + 3);
+		} else {
+			str = new byte[mBuffer.getShort(pos + 3)];
+			for (int j = 0; j < str.length; j++)
+				str[j] = mBuffer.get(pos + 5 + j);
+		}
+		if (value == null)
+			return p < path ? -1 : 1;
+		double vn = number(value);
+		byte vt = Double.isNaN(vn) ? STR : NUM;
+		return compare(p, type, num, str, path, vt, vn, Token.token(value));
+	}
+
+	/**
+	 * Compares two keys.
+	 * 
+	 * @return Comparison result.
+	 */
+	private static int compare(final int p1, final byte t1, final double n1,
+			final byte[] s1, final int p2, final byte t2, final double n2,
+			final byte[] s2) {
+		if (p1 != p2)
+			return p1 < p2 ? -1 : 1;
+		if (t1 != t2)
+			return t1 < t2 ? -1 : 1;
+		if (t1 == NUM)
+			return Double.compare(n1, n2);
+		int l = Math.min(s1.length, s2.length);
+		for (int i = 0; i < l; i++) {
+			int d = (s1[i] & 0xFF) - (s2[i] & 0xFF);
+			if (d != 0)
+				return d;
+		}
+		return s1.length - s2.length;
+	}
+
+	/**
+	 * Returns the id of a key path.
+	 * 
+	 * @param path
+	 *            Key path.
+	 * @return Id or <code>-1</code>.
+	 */
+	private int pathId(final String path) {
+		String p = path.trim();
+		for (int i = 0; i < mPaths.length; i++) {
+			if (mPaths[i].equals(p))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes a document path.
+	 * 
+	 * @param d
+	 *            Document id.
+	 * @return Document path.
+	 */
+	private String document(final int d) {
+		int docs = mBuffer.getInt(mDocs);
+		int pos = mDocs + 4 + 4 * docs + mBuffer.getInt(mDocs + 4 + 4 * d);
+		byte[] doc = new byte[mBuffer.getShort(pos)];
+		for (int j = 0; j < doc.length; j++)
+			doc[j] = mBuffer.get(pos + 2 + j);
+		return Token.string(doc);
+	}
+
+	/**
+	 * Parses a numeric key value. Only decimal and double literals are
+	 * numbers; values such as <code>1f</code>, <code>0x1p3</code>,
+	 * <code>Infinity</code> or numbers with surrounding whitespace, which
+	 * {@link Double#parseDouble(String)} would accept, are strings.
+	 * 
+	 * @param value
+	 *            Key value.
+	 * @return Number or {@link Double#NaN}.
+	 */
+	private static double number(final String value) {
+		if (!NUMBER.matcher(value).matches())
+			return Double.NaN;
+		return Double.parseDouble(value);
+	}
+
+	/**
+	 * Returns the id of a string, assigning a new one if necessary.
+	 * 
+	 * @param ids
+	 *            Id mapping.
+	 * @param s
+	 *            String.
+	 * @return Id.
+	 */
+	private static Integer id(final Map<String, Integer> ids, final String s) {
+		Integer id = ids.get(s);
+		if (id == null) {
+			id = ids.size();
+			ids.put(s, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the strings of an id mapping ordered by their ids.
+	 * 
+	 * @param ids
+	 *            Id mapping.
+	 * @return Ordered strings.
+	 */
+	private static String[] ordered(final Map<String, Integer> ids) {
+		String[] strings = new String[ids.size()];
+		for (Map.Entry<String, Integer> e : ids.entrySet())
+			strings[e.getValue()] = e.getKey();
+		return strings;
+	}
+
+	/**
+	 * Converts strings to tokens.
+	 * 
+	 * @param strings
+	 *            Strings.
+	 * @return Tokens.
+	 */
+	private static byte[][] tokens(final String[] strings) {
+		byte[][] tokens = new byte[strings.length][];
+		for (int i = 0; i < strings.length; i++)
+			tokens[i] = Token.token(strings[i]);
+		return tokens;
+	}
+
+	/**
+	 * Returns the size of a string table.
+	 * 
+	 * @param table
+	 *            Table.
+	 * @return Size in bytes.
+	 */
+	private static int tableSize(final byte[][] table) {
+		int size = 4;
+		for (byte[] t : table)
+			size += 2 + t.length;
+		return size;
+	}
+
+	/**
+	 * Returns the length of a token, which is stored as short.
+	 * 
+	 * @param token
+	 *            Token.
+	 * @return Length.
+	 * @throws IOException
+	 *             Token is too long for the index.
+	 */
+	private static short length(final byte[] token) throws IOException {
+		if (token.length > Short.MAX_VALUE)
+			throw new IOException("Key or path exceeds " + Short.MAX_VALUE
+					+ " bytes: " + token.length);
+		return (short) token.length;
+	}
+
+	/**
+	 * Writes a string table.
+	 * 
+	 * @param bb
+	 *            Target buffer.
+	 * @param table
+	 *            Table.
+	 * @throws IOException
+	 *             Token is too long for the index.
+	 */
+	private static void putTable(final ByteBuffer bb, final byte[][] table)
+			throws IOException {
+		bb.putInt(table.length);
+		for (byte[] t : table) {
+			bb.putShort(length(t));
+			bb.put(t);
+		}
+	}
+
+	/**
+	 * Reads a string table.
+	 * 
+	 * @param bb
+	 *            Source buffer.
+	 * @return Table.
+	 */
+	private static String[] readTable(final ByteBuffer bb) {
+		String[] table = new String[bb.getInt()];
+		for (int i = 0; i < table.length; i++) {
+			byte[] t = new byte[bb.getShort()];
+			bb.get(t);
+			table[i] = Token.string(t);
+		}
+		return table;
+	}
+
+	/**
+	 * Location of a key value.
+	 */
+	public static class Hit {
+
+		/** Data server. */
+		private String mServer;
+		/** Document path. */
+		private String mDocument;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param server
+		 *            Data server.
+		 * @param document
+		 *            Document path.
+		 */
+		public Hit(final String server, final String document) {
+			mServer = server;
+			mDocument = document;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return data server.
+		 */
+		public String getServer() {
+			return mServer;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return document path.
+		 */
+		public String getDocument() {
+			return mDocument;
+		}
+	}
+
+	/**
+	 * Index entry while building.
+	 */
+	private static class Entry {
+
+		/** Key path id. */
+		private int mPath;
+		/** Value type. */
+		private byte mType;
+		/** Numeric value. */
+		private double mNum;
+		/** String value. */
+		private byte[] mStr;
+		/** Server id. */
+		private int mServer;
+		/** Document id. */
+		private int mDoc;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param path
+		 *            Key path id.
+		 * @param value
+		 *            Key value.
+		 * @param server
+		 *            Server id.
+		 * @param doc
+		 *            Document id.
+		 */
+		Entry(final int path, final String value, final int server,
+				final int doc) {
+			mPath = path;
+			mNum = number(value);
+			mType = Double.isNaN(mNum) ? STR : NUM;
+			mStr = Token.token(value);
+			mServer = server;
+			mDoc = doc;
+		}
+
+		/**
+		 * Serializes the entry.
+		 * 
+		 * @return Bytes.
+		 * @throws IOException
+		 *             Key value is too long for the index.
+		 */
+		byte[] bytes() throws IOException {
+			ByteBuffer bb = ByteBuffer.allocate(mType == NUM ? 17
+					: 11 + mStr.length);
+			bb.putShort((short) mPath);
+			bb.put(mType);
+			if (mType == NUM) {
+				bb.putDouble(mNum);
+			} else {
+				bb.putShort(length(mStr));
+				bb.put(mStr);
+			}
+			bb.putShort((short) mServer);
+			bb.putInt(mDoc);
+			return bb.array();
+		}
+	}
+}
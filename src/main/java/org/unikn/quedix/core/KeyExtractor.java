@@ -0,0 +1,267 @@
+package org.unikn.quedix.core;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * This class extracts the values of user declared key paths out of XML
+ * documents. A key path is a simple child step path, optionally ending with an
+ * attribute step, e.g. <code>country/@id</code> or
+ * <code>/mondial/country/name</code>. Relative paths match at any depth.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class KeyExtractor {
+
+	/** Path step separator. */
+	private static final String SLASH = "/";
+	/** Attribute step prefix. */
+	private static final String AT = "@";
+
+	/** Declared key paths. */
+	private String[] mPaths;
+	/** Element steps of each key path. */
+	private String[][] mSteps;
+	/** Attribute names of key paths or <code>null</code>. */
+	private String[] mAttributes;
+	/** Absolute path flags. */
+	private boolean[] mAbsolute;
+	/** SAX parser factory. */
+	private SAXParserFactory mFactory;
+
+	/**
+	 * Constructor parses the declared key paths.
+	 * 
+	 * @param paths
+	 *            Key paths.
+	 */
+	public KeyExtractor(final String[] paths) {
+		mPaths = paths;
+		mSteps = new String[paths.length][];
+		mAttributes = new String[paths.length];
+		mAbsolute = new boolean[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			String path = paths[i].trim();
+			mAbsolute[i] = path.startsWith(SLASH);
+			if (mAbsolute[i])
+				path = path.substring(1);
+			List<String> steps = new ArrayList<String>();
+			for (String step : path.split(SLASH)) {
+				if (step.startsWith(AT))
+					mAttributes[i] = step.substring(1);
+				else if (step.length() > 0)
+					steps.add(step);
+			}
+			mSteps[i] = steps.toArray(new String[steps.size()]);
+		}
+		mFactory = SAXParserFactory.newInstance();
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return declared key paths.
+	 */
+	public String[] getPaths() {
+		return mPaths;
+	}
+
+	/**
+	 * Extracts all key values of a document.
+	 * 
+	 * @param file
+	 *            XML document.
+	 * @return List of key values, each as pair of path index and value.
+	 * @throws IOException
+	 *             Document could not be read or parsed.
+	 */
+	public List<Key> extract(final File file) throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return extract(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Extracts all key values out of a stream.
+	 * 
+	 * @param input
+	 *            XML input.
+	 * @return List of key values, each as pair of path index and value.
+	 * @throws IOException
+	 *             Input could not be parsed.
+	 */
+	public List<Key> extract(final InputStream input) throws IOException {
+		final List<Key> keys = new ArrayList<Key>();
+		try {
+			SAXParser parser = mFactory.newSAXParser();
+			parser.parse(new InputSource(input), new KeyHandler(keys));
+		} catch (final ParserConfigurationException exc) {
+			throw new IOException(exc.getMessage());
+		} catch (final SAXException exc) {
+			throw new IOException(exc.getMessage());
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the first key value of a document.
+	 * 
+	 * @param file
+	 *            XML document.
+	 * @return First key value or <code>null</code> if the document contains
+	 *         no key.
+	 * @throws IOException
+	 *             Document could not be read or parsed.
+	 */
+	public String first(final File file) throws IOException {
+		List<Key> keys = extract(file);
+		return keys.isEmpty() ? null : keys.get(0).getValue();
+	}
+
+	/**
+	 * Checks if the current element stack matches the steps of a key path.
+	 * 
+	 * @param stack
+	 *            Element stack.
+	 * @param path
+	 *            Index of key path.
+	 * @return <code>true</code> if the path matches, <code>false</code>
+	 *         otherwise.
+	 */
+	private boolean matches(final List<String> stack, final int path) {
+		String[] steps = mSteps[path];
+		int offset = stack.size() - steps.length;
+		if (offset < 0 || (mAbsolute[path] && offset != 0))
+			return false;
+		for (int i = 0; i < steps.length; i++) {
+			if (!steps[i].equals(stack.get(offset + i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Key value with the index of its declared path.
+	 */
+	public static class Key {
+
+		/** Index of key path. */
+		private int mPath;
+		/** Key value. */
+		private String mValue;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param path
+		 *            Index of key path.
+		 * @param value
+		 *            Key value.
+		 */
+		public Key(final int path, final String value) {
+			mPath = path;
+			mValue = value;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return index of key path.
+		 */
+		public int getPath() {
+			return mPath;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return key value.
+		 */
+		public String getValue() {
+			return mValue;
+		}
+	}
+
+	/**
+	 * SAX handler collecting key values.
+	 */
+	private class KeyHandler extends DefaultHandler {
+
+		/** Element stack. */
+		private List<String> mStack = new ArrayList<String>();
+		/** Text buffers of open element keys, indexed by path. */
+		private StringBuilder[] mText = new StringBuilder[mPaths.length];
+		/** Stack depth of open element keys, indexed by path. */
+		private int[] mDepth = new int[mPaths.length];
+		/** Collected keys. */
+		private List<Key> mKeys;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param keys
+		 *            List for collected keys.
+		 */
+		KeyHandler(final List<Key> keys) {
+			mKeys = keys;
+		}
+
+		@Override
+		public void startElement(final String uri, final String localName,
+				final String qName, final Attributes atts) {
+			mStack.add(qName);
+			for (int i = 0; i < mPaths.length; i++) {
+				if (!matches(mStack, i))
+					continue;
+				if (mAttributes[i] == null) {
+					if (mText[i] == null) {
+						mText[i] = new StringBuilder();
+						mDepth[i] = mStack.size();
+					}
+				} else {
+					String value = atts.getValue(mAttributes[i]);
+					if (value != null)
+						mKeys.add(new Key(i, value));
+				}
+			}
+		}
+
+		@Override
+		public void characters(final char[] ch, final int start,
+				final int length) {
+			for (StringBuilder sb : mText) {
+				if (sb != null)
+					sb.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endElement(final String uri, final String localName,
+				final String qName) {
+			for (int i = 0; i < mPaths.length; i++) {
+				if (mText[i] != null && mDepth[i] == mStack.size()) {
+					mKeys.add(new Key(i, mText[i].toString().trim()));
+					mText[i] = null;
+				}
+			}
+			mStack.remove(mStack.size() - 1);
+		}
+	}
+}
@@ -1,9 +1,19 @@
 package org.unikn.quedix.core;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * This class holds meta information to our data servers.
@@ -12,12 +22,27 @@ import java.util.Map;
  */
 public class MetaData {
 
+	/** Property prefix of the server sizes. */
+	private static final String SIZE = "size.";
+	/** Property prefix of the server versions. */
+	private static final String VERSION = "version.";
+	/** Property of the partition key. */
+	private static final String PARTITION_KEY = "partition.key";
+
 	/** Server database mapping. */
 	private Map<String, List<String>> mServerDbMapping;
 	/** Server storage occupied size. */
 	private Map<String, Long> mServerStorageSize;
+	/** Server versions, counting the distributed documents. */
+	private Map<String, Long> mServerVersion = new HashMap<String, Long>();
 	/** Data server meta information. */
 	private ServerMeta mServerMeta;
+	/** Optional global secondary index. */
+	private GlobalIndex mIndex;
+	/** Optional partition key path for co-partitioning. */
+	private String mPartitionKey;
+	/** Extractor of the partition key. */
+	private KeyExtractor mPartitionExtractor;
 
 	/**
 	 * Creates new maps.
@@ -95,6 +120,284 @@ public class MetaData {
 		mServerStorageSize.put(server, size);
 	}
 
+	/**
+	 * Adds the size of a distributed document to the occupied storage of a
+	 * server.
+	 * 
+	 * @param server
+	 *            Server.
+	 * @param size
+	 *            Document size in byte.
+	 */
+	public synchronized void addDocument(final String server, final long size) {
+		Long occupied = mServerStorageSize.get(server);
+		mServerStorageSize.put(server, (occupied == null ? 0 : occupied)
+				+ size);
+		Long version = mServerVersion.get(server);
+		mServerVersion.put(server, version == null ? 1 : version + 1);
+	}
+
+	/**
+	 * Returns the version of a server, which changes with every document
+	 * distributed to it.
+	 * 
+	 * @param server
+	 *            Server.
+	 * @return Version, 0 if no document has been distributed.
+	 */
+	public synchronized long getVersion(final String server) {
+		Long version = mServerVersion.get(server);
+		return version == null ? 0 : version;
+	}
+
+	/**
+	 * Returns the servers with a version.
+	 * 
+	 * @return Servers.
+	 */
+	public synchronized Set<String> getVersionedServers() {
+		return new TreeSet<String>(mServerVersion.keySet());
+	}
+
+	/**
+	 * Returns the storage size occupied on all servers.
+	 * 
+	 * @return Occupied storage size in byte.
+	 */
+	public synchronized long getStorageSize() {
+		long size = 0;
+		for (long s : mServerStorageSize.values())
+			size += s;
+		return size;
+	}
+
+	/**
+	 * Returns the occupied storage sizes of the given servers, which are
+	 * matched by their addresses, see {@link #address(String)}, so servers
+	 * on the same host are kept apart. A server without a recorded address
+	 * is matched by its host name, if neither the given nor the recorded
+	 * servers share this host, so the sizes recorded by one client type
+	 * apply to the servers of the other.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @return Sizes keyed by the given servers or <code>null</code>, if no
+	 *         positive size is recorded for one of them.
+	 */
+	public synchronized Map<String, Long> getStorageSizes(
+			final List<String> servers) {
+		Map<String, Long> recorded = new HashMap<String, Long>();
+		Map<String, Long> hosts = new HashMap<String, Long>();
+		Set<String> shared = new TreeSet<String>();
+		for (Map.Entry<String, Long> size : mServerStorageSize.entrySet()) {
+			recorded.put(address(size.getKey()), size.getValue());
+			if (hosts.put(host(size.getKey()), size.getValue()) != null)
+				shared.add(host(size.getKey()));
+		}
+		Set<String> given = new TreeSet<String>();
+		for (String server : servers) {
+			if (!given.add(host(server)))
+				shared.add(host(server));
+		}
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		for (String server : servers) {
+			Long size = recorded.get(address(server));
+			if (size == null && !shared.contains(host(server)))
+				size = hosts.get(host(server));
+			if (size == null || size <= 0)
+				return null;
+			sizes.put(server, size);
+		}
+		return sizes;
+	}
+
+	/**
+	 * Stores the occupied storage sizes and versions of the servers and the
+	 * partition key, e.g. after a collection has been distributed.
+	 * 
+	 * @param file
+	 *            Meta data file.
+	 * @throws IOException
+	 *             File could not be written.
+	 */
+	public synchronized void store(final File file) throws IOException {
+		Properties props = new Properties();
+		for (Map.Entry<String, Long> e : mServerStorageSize.entrySet())
+			props.setProperty(SIZE + e.getKey(), e.getValue().toString());
+		for (Map.Entry<String, Long> e : mServerVersion.entrySet())
+			props.setProperty(VERSION + e.getKey(), e.getValue().toString());
+		if (mPartitionKey != null)
+			props.setProperty(PARTITION_KEY, mPartitionKey);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			props.store(out, "Occupied storage size per server in byte");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads the occupied storage sizes and versions of the servers and the
+	 * partition key.
+	 * 
+	 * @param file
+	 *            Meta data file.
+	 * @throws IOException
+	 *             File could not be read.
+	 */
+	public synchronized void load(final File file) throws IOException {
+		Properties props = read(file);
+		for (String name : props.stringPropertyNames()) {
+			if (name.startsWith(SIZE))
+				mServerStorageSize.put(name.substring(SIZE.length()),
+						Long.parseLong(props.getProperty(name)));
+		}
+		loadVersions(props);
+		setPartitionKey(props.getProperty(PARTITION_KEY));
+	}
+
+	/**
+	 * Loads only the versions of the servers, so they keep counting when
+	 * further documents are distributed. The sizes are not loaded: they are
+	 * recorded anew by each distribution, as documents distributed again
+	 * would otherwise be counted twice.
+	 * 
+	 * @param file
+	 *            Meta data file.
+	 * @throws IOException
+	 *             File could not be read.
+	 */
+	public synchronized void loadVersions(final File file) throws IOException {
+		loadVersions(read(file));
+	}
+
+	/**
+	 * Loads the versions of the servers.
+	 * 
+	 * @param props
+	 *            Properties of a meta data file.
+	 */
+	private void loadVersions(final Properties props) {
+		for (String name : props.stringPropertyNames()) {
+			if (name.startsWith(VERSION))
+				mServerVersion.put(name.substring(VERSION.length()),
+						Long.parseLong(props.getProperty(name)));
+		}
+	}
+
+	/**
+	 * Reads a meta data file.
+	 * 
+	 * @param file
+	 *            Meta data file.
+	 * @return Properties.
+	 * @throws IOException
+	 *             File could not be read.
+	 */
+	private static Properties read(final File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return props;
+	}
+
+	/**
+	 * Returns the server of a document of a co-partitioned collection. The
+	 * first value of the partition key is hashed onto the servers in the order
+	 * of their addresses, see {@link #address(String)}, so documents with
+	 * equal keys are placed on the same server, even if they belong to
+	 * different collections, as long as these are distributed to the same
+	 * servers. Documents without key are placed by their file name.
+	 * 
+	 * @param file
+	 *            XML document.
+	 * @param servers
+	 *            Servers.
+	 * @return Server of the document.
+	 * @throws IOException
+	 *             Document could not be read or parsed.
+	 */
+	public String coPartition(final File file, final String[] servers)
+			throws IOException {
+		if (mPartitionExtractor == null)
+			throw new IOException("No partition key declared.");
+		String key = mPartitionExtractor.first(file);
+		if (key == null)
+			key = file.getName();
+		TreeMap<String, String> addresses = new TreeMap<String, String>();
+		for (String server : servers)
+			addresses.put(address(server), server);
+		String[] sorted = addresses.values().toArray(
+				new String[addresses.size()]);
+		return sorted[(key.hashCode() & Integer.MAX_VALUE) % sorted.length];
+	}
+
+	/**
+	 * Returns the address of a server, i.e. its host and port without scheme
+	 * and path, e.g. <code>mond02.inf.uni-konstanz.de:20002</code> for the
+	 * REST server <code>http://mond02.inf.uni-konstanz.de:20002/rest</code>.
+	 * Several servers on one host keep different addresses.
+	 * 
+	 * @param server
+	 *            Server.
+	 * @return Address.
+	 */
+	public static String address(final String server) {
+		String address = server.trim().toLowerCase();
+		int i = address.indexOf("://");
+		if (i != -1)
+			address = address.substring(i + 3);
+		i = address.indexOf('/');
+		return i == -1 ? address : address.substring(0, i);
+	}
+
+	/**
+	 * Returns the unqualified host name of a server, e.g. <code>mond02</code>
+	 * for the REST server
+	 * <code>http://mond02.inf.uni-konstanz.de:20002/rest</code> as well as
+	 * for the socket server <code>mond02</code>.
+	 * 
+	 * @param server
+	 *            Server.
+	 * @return Host name.
+	 */
+	private static String host(final String server) {
+		String host = address(server);
+		for (char c : new char[] { ':', '.' }) {
+			int i = host.indexOf(c);
+			if (i != -1)
+				host = host.substring(0, i);
+		}
+		return host;
+	}
+
+	/**
+	 * Checks if a collection stays co-partitioned, if further documents are
+	 * placed by the given key. This is only the case, if the documents
+	 * distributed before, recorded in the meta data file, have been placed by
+	 * the same key.
+	 * 
+	 * @param key
+	 *            Partition key path.
+	 * @param file
+	 *            Meta data file of the collection, which need not exist.
+	 * @return Result of check.
+	 * @throws IOException
+	 *             File could not be read.
+	 */
+	public static boolean staysCoPartitioned(final String key, final File file)
+			throws IOException {
+		if (!file.exists())
+			return true;
+		MetaData previous = new MetaData();
+		previous.load(file);
+		return key.equals(previous.getPartitionKey());
+	}
+
 	/**
 	 * Checks if server exists.
 	 * 
@@ -125,4 +428,46 @@ public class MetaData {
 		return mServerMeta;
 	}
 
+	/**
+	 * Setter.
+	 * 
+	 * @param index
+	 *            Global secondary index to be built during distribution or
+	 *            <code>null</code>.
+	 */
+	public void setIndex(final GlobalIndex index) {
+		mIndex = index;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return Returns the global secondary index or <code>null</code>.
+	 */
+	public GlobalIndex getIndex() {
+		return mIndex;
+	}
+
+	/**
+	 * Setter.
+	 * 
+	 * @param partitionKey
+	 *            Key path, whose first value places the documents of a
+	 *            co-partitioned collection, or <code>null</code>.
+	 */
+	public void setPartitionKey(final String partitionKey) {
+		mPartitionKey = partitionKey;
+		mPartitionExtractor = partitionKey == null ? null : new KeyExtractor(
+				new String[] { partitionKey });
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return Returns the partition key path or <code>null</code>.
+	 */
+	public String getPartitionKey() {
+		return mPartitionKey;
+	}
+
 }
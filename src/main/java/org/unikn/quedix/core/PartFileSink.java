@@ -0,0 +1,211 @@
+package org.unikn.quedix.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.unikn.quedix.rest.Constants;
+
+/**
+ * This {@link Sink} writes the results of each data server concurrently into
+ * its own part file using a {@link FileChannel}. A manifest describes the
+ * written parts.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class PartFileSink implements Sink {
+
+	/** Manifest file name. */
+	public static final String MANIFEST = "manifest.xml";
+	/** Part file prefix. */
+	private static final String PART = "part-";
+	/** Buffer size. */
+	private static final int BUFFER = 1 << 16;
+
+	/** Output directory. */
+	private File mDir;
+	/** Written parts. */
+	private List<Part> mParts;
+
+	/**
+	 * Constructor creates the output directory if necessary.
+	 * 
+	 * @param dir
+	 *            Output directory.
+	 * @throws IOException
+	 *             Directory could not be created.
+	 */
+	public PartFileSink(final File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Directory could not be created: " + dir);
+		mDir = dir;
+		mParts = new ArrayList<Part>();
+	}
+
+	@Override
+	public OutputStream open(final String server) throws IOException {
+		String name;
+		synchronized (mParts) {
+			name = PART + mParts.size() + "-"
+					+ server.replaceAll("[^A-Za-z0-9.]+", "_") + ".xml";
+			mParts.add(new Part(server, name));
+		}
+		return new PartOutputStream(new FileOutputStream(new File(mDir, name))
+				.getChannel(), name);
+	}
+
+	/**
+	 * Writes the manifest, describing server, file and size of all parts.
+	 * 
+	 * @return Manifest file.
+	 * @throws IOException
+	 *             Manifest could not be written.
+	 */
+	public File writeManifest() throws IOException {
+		File manifest = new File(mDir, MANIFEST);
+		Writer w = new OutputStreamWriter(new FileOutputStream(manifest),
+				Constants.UTF8);
+		try {
+			w.write("<parts>\n");
+			synchronized (mParts) {
+				for (Part part : mParts) {
+					w.write("  <part server=\"" + escape(part.mServer)
+							+ "\" file=\"" + escape(part.mFile) + "\" size=\""
+							+ part.mSize + "\"/>\n");
+				}
+			}
+			w.write("</parts>\n");
+		} finally {
+			w.close();
+		}
+		return manifest;
+	}
+
+	/**
+	 * Escapes attribute values.
+	 * 
+	 * @param value
+	 *            Value.
+	 * @return Escaped value.
+	 */
+	private static String escape(final String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;")
+				.replace("\"", "&quot;");
+	}
+
+	/**
+	 * Sets the final size of a part.
+	 * 
+	 * @param file
+	 *            Part file name.
+	 * @param size
+	 *            Size in bytes.
+	 */
+	private void finished(final String file, final long size) {
+		synchronized (mParts) {
+			for (Part part : mParts) {
+				if (part.mFile.equals(file))
+					part.mSize = size;
+			}
+		}
+	}
+
+	/**
+	 * Part description.
+	 */
+	private static class Part {
+		/** Server id. */
+		private String mServer;
+		/** File name. */
+		private String mFile;
+		/** Size in bytes. */
+		private long mSize;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param server
+		 *            Server id.
+		 * @param file
+		 *            File name.
+		 */
+		Part(final String server, final String file) {
+			mServer = server;
+			mFile = file;
+		}
+	}
+
+	/**
+	 * Buffered stream writing into a file channel.
+	 */
+	private class PartOutputStream extends OutputStream {
+		/** File channel. */
+		private FileChannel mChannel;
+		/** Part file name. */
+		private String mName;
+		/** Buffer. */
+		private ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER);
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param channel
+		 *            File channel.
+		 * @param name
+		 *            Part file name.
+		 */
+		PartOutputStream(final FileChannel channel, final String name) {
+			mChannel = channel;
+			mName = name;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			if (!mBuffer.hasRemaining())
+				drain();
+			mBuffer.put((byte) b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+				throws IOException {
+			int o = off;
+			int l = len;
+			while (l > 0) {
+				if (!mBuffer.hasRemaining())
+					drain();
+				int n = Math.min(l, mBuffer.remaining());
+				mBuffer.put(b, o, n);
+				o += n;
+				l -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			drain();
+			finished(mName, mChannel.size());
+			mChannel.close();
+		}
+
+		/**
+		 * Writes the buffer into the channel.
+		 * 
+		 * @throws IOException
+		 *             Exception occurred.
+		 */
+		private void drain() throws IOException {
+			mBuffer.flip();
+			while (mBuffer.hasRemaining())
+				mChannel.write(mBuffer);
+			mBuffer.clear();
+		}
+	}
+}
@@ -0,0 +1,916 @@
+package org.unikn.quedix.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class composes user defined XQuery files into one query, which is
+ * shipped to and executed on the data servers. The prologs of all parts are
+ * merged and hoisted in front of the composed query body.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public final class QueryComposer {
+
+	/** Name of the element wrapping an atomic result of a sorted mapper. */
+	public static final String ATOM = "quedix-atom";
+	/**
+	 * Name of the element wrapping the results of a sampled document, whose
+	 * attribute <code>f</code> holds the sampling fraction.
+	 */
+	public static final String UNIT = "quedix-unit";
+	/** Prolog keywords. */
+	private static final String[] PROLOG = { "xquery", "declare", "import",
+			"module" };
+	/** Functions opening the documents of a collection. */
+	private static final String[] COLLECTIONS = { "db:open(", "collection(" };
+	/** Resolution of the sampling fraction. */
+	private static final int SAMPLE_RANGE = 10000;
+	/** Modulus of the sampling hash. */
+	private static final long PRIME = 2147483647L;
+
+	/**
+	 * Hidden constructor.
+	 */
+	private QueryComposer() {
+		// static helper.
+	}
+
+	/**
+	 * Composes a mapper and a combiner. The combiner is executed on each data
+	 * server over the map results of that server, which are bound to the
+	 * variable <code>$results</code> as children of a
+	 * <code>&lt;results/&gt;</code> element.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param combiner
+	 *            Combiner query.
+	 * @return Composed query.
+	 */
+	public static String combine(final String mapper, final String combiner) {
+		String[] m = split(mapper);
+		String[] c = split(combiner);
+		return prolog(m[0], c[0]) + "let $results := <results>{ " + m[1]
+				+ " }</results>\nreturn ( " + c[1] + " )";
+	}
+
+	/**
+	 * Composes a query, which runs a reducer over the results of another
+	 * query. As for the local reduce, the results are wrapped into a
+	 * <code>&lt;results/&gt;</code> document, which is the context of the
+	 * reducer.
+	 * 
+	 * @param input
+	 *            Query delivering the results, e.g. the mapper.
+	 * @param reducer
+	 *            Reducer query.
+	 * @return Composed query.
+	 */
+	public static String reduce(final String input, final String reducer) {
+		String[] i = split(input);
+		String[] r = split(reducer);
+		return prolog(i[0], r[0]) + "document { <results>{ " + i[1]
+				+ " }</results> }/( " + r[1] + " )";
+	}
+
+	/**
+	 * Composes a mapper with a wrapper function library, which encodes the map
+	 * results in the compact intermediate format instead of XML. The format
+	 * is text, so it passes all clients unchanged:
+	 * <ul>
+	 * <li><code>Q1;N;</code> header, followed by a dictionary of N element
+	 * and attribute names.</li>
+	 * <li><code>Ename,atts,children;</code> element with the dictionary
+	 * position of its name, followed by its attributes (<code>name,</code>
+	 * plus string) and its children.</li>
+	 * <li><code>T</code> plus string: text node.</li>
+	 * <li><code>I42;</code>, <code>D1.5;</code>, <code>B1;</code>,
+	 * <code>S</code> plus string: typed atomic values.</li>
+	 * </ul>
+	 * Strings are prefixed by their length in characters, e.g.
+	 * <code>5:hello</code>, and are never escaped. Namespaces, comments and
+	 * processing instructions are not preserved.
+	 * <p>
+	 * The dictionary positions are looked up in a map. The encoded fragments
+	 * are returned as a sequence of text nodes, which are serialized without
+	 * separators, one after another, so the encoded result is never joined
+	 * into one string.
+	 * </p>
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @return Composed query.
+	 */
+	public static String encode(final String mapper) {
+		String[] m = split(mapper);
+		return m[0]
+				+ "declare option output:method \"text\";\n"
+				+ "declare function local:quedix-str($s as xs:string)"
+				+ " as xs:string {\n"
+				+ "  concat(string-length($s), \":\", $s)\n};\n"
+				+ "declare function local:quedix-node($n as node(), $dict)"
+				+ " as xs:string* {\n"
+				+ "  if ($n instance of element()) then (concat(\"E\","
+				+ " map:get($dict, name($n)), \",\", count($n/@*), \",\","
+				+ " count($n/(*|text())), \";\"),\n"
+				+ "    for $a in $n/@* return concat(map:get($dict, name($a)),"
+				+ " \",\", local:quedix-str(string($a))),\n"
+				+ "    for $c in $n/(*|text()) return"
+				+ " local:quedix-node($c, $dict))\n"
+				+ "  else if ($n instance of text()) then concat(\"T\","
+				+ " local:quedix-str(string($n)))\n"
+				+ "  else if ($n instance of document-node()) then"
+				+ " for $c in $n/(*|text())\n"
+				+ "    return local:quedix-node($c, $dict)\n"
+				+ "  else concat(\"S\", local:quedix-str(string($n)))\n};\n"
+				+ "declare function local:quedix-item($i as item(), $dict)"
+				+ " as xs:string* {\n"
+				+ "  if ($i instance of node()) then local:quedix-node($i, $dict)\n"
+				+ "  else if ($i instance of xs:integer) then concat(\"I\", $i,"
+				+ " \";\")\n"
+				+ "  else if ($i instance of xs:double or $i instance of xs:float"
+				+ " or $i instance of xs:decimal) then concat(\"D\", $i, \";\")\n"
+				+ "  else if ($i instance of xs:boolean) then concat(\"B\","
+				+ " if ($i) then 1 else 0, \";\")\n"
+				+ "  else concat(\"S\", local:quedix-str(string($i)))\n};\n"
+				+ "let $quedix-items := ( " + m[1] + " )\n"
+				+ "let $quedix-names := distinct-values(for $n in"
+				+ " $quedix-items[. instance of node()]/descendant-or-self::*"
+				+ " return (name($n), for $a in $n/@* return name($a)))\n"
+				+ "let $quedix-dict := map:new(for $d at $p in $quedix-names"
+				+ " return map:entry($d, $p))\n"
+				+ "return (text { concat(\"Q1;\", count($quedix-names),"
+				+ " \";\") },\n"
+				+ "  for $d in $quedix-names return"
+				+ " text { local:quedix-str($d) },\n"
+				+ "  for $i in $quedix-items, $s in local:quedix-item($i,"
+				+ " $quedix-dict) return text { $s })";
+	}
+
+	/**
+	 * Fuses several mappers into one query. The results of each mapper are
+	 * wrapped in a <code>&lt;job id="N"/&gt;</code> element, <code>N</code>
+	 * being the position of the mapper, starting with 0. Identical prolog
+	 * statements are kept once, but the mappers must not declare different
+	 * variables or functions of the same name.
+	 * 
+	 * @param mappers
+	 *            Mapper queries.
+	 * @return Composed query.
+	 */
+	public static String fuse(final String[] mappers) {
+		String[] prologs = new String[mappers.length];
+		StringBuilder body = new StringBuilder("(\n");
+		for (int i = 0; i < mappers.length; i++) {
+			String[] m = split(mappers[i]);
+			prologs[i] = m[0];
+			if (i > 0)
+				body.append(",\n");
+			body.append("<job id=\"").append(i).append("\">{ ").append(m[1])
+					.append(" }</job>");
+		}
+		return prolog(prologs) + body.append("\n)");
+	}
+
+	/**
+	 * Composes a mapper, whose results are sorted by the first value of a key
+	 * expression, which is evaluated relative to each result item. Atomic
+	 * results are their own key. They are wrapped by a
+	 * <code>&lt;quedix-atom/&gt;</code> element each, so strings with spaces
+	 * are read as one item. Missing keys sort least.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param key
+	 *            Key expression, e.g. <code>@population</code>.
+	 * @param descending
+	 *            Flag for descending order.
+	 * @param numeric
+	 *            Flag if the keys are compared as numbers instead of strings.
+	 * @param limit
+	 *            Maximum number of results, 0 for all results.
+	 * @return Composed query.
+	 */
+	public static String sort(final String mapper, final String key,
+			final boolean descending, final boolean numeric, final int limit) {
+		String[] m = split(mapper);
+		String sorted = "for $quedix-item in ( " + m[1] + " )\n"
+				+ "order by " + (numeric ? "number" : "string") + "("
+				+ itemValue(key) + ")"
+				+ (descending ? " descending" : " ascending")
+				+ " empty least\nreturn if ($quedix-item instance of node()) "
+				+ "then $quedix-item\nelse <" + ATOM + ">{ $quedix-item }</"
+				+ ATOM + ">";
+		if (limit > 0)
+			return m[0] + "subsequence(" + sorted + ", 1, " + limit + ")";
+		return m[0] + sorted;
+	}
+
+	/**
+	 * Composes a mapper, which runs over a random sample of the documents of
+	 * each server. Every call of <code>db:open(...)</code> or
+	 * <code>collection(...)</code> in the mapper body is filtered by a hash of
+	 * the document URI and its position, so each document is selected with
+	 * the given probability, independently of the others. Paths below the
+	 * call, e.g. <code>db:open("factbook")//country</code>, see only the
+	 * sampled documents.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param fraction
+	 *            Sampling fraction, greater than 0 and at most 1.
+	 * @param seed
+	 *            Seed of the hash, between 1 and 2147483646.
+	 * @return Composed query.
+	 */
+	public static String sample(final String mapper, final double fraction,
+			final long seed) {
+		String[] m = split(mapper);
+		String body = m[1];
+		StringBuilder sb = new StringBuilder();
+		int last = 0;
+		for (int[] call : calls(body)) {
+			sb.append(body.substring(last, call[0]))
+					.append("local:quedix-sample(")
+					.append(body.substring(call[0], call[1])).append(')');
+			last = call[1];
+		}
+		sb.append(body.substring(last));
+		return m[0] + sampleFunction(fraction, seed) + sb;
+	}
+
+	/**
+	 * Composes a mapper, which runs over a random sample of the documents of
+	 * a collection and returns the results of each sampled document
+	 * separately, so they can be treated as one sampling unit. The documents
+	 * are selected as by {@link #sample(String, double, long)}. The mapper
+	 * body is evaluated once per sampled document, which replaces the only
+	 * call of <code>db:open(...)</code> or <code>collection(...)</code>, and
+	 * its results are wrapped in a {@link #UNIT} element. This preserves the
+	 * results of mappers, which process each document independently, e.g.
+	 * <code>for $c in db:open("factbook")//country return ...</code>.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param fraction
+	 *            Sampling fraction, greater than 0 and at most 1.
+	 * @param seed
+	 *            Seed of the hash, between 1 and 2147483646.
+	 * @return Composed query or <code>null</code>, if the mapper body does
+	 *         not open exactly one collection.
+	 */
+	public static String sampleUnits(final String mapper,
+			final double fraction, final long seed) {
+		String[] m = split(mapper);
+		String body = m[1];
+		List<int[]> calls = calls(body);
+		if (calls.size() != 1)
+			return null;
+		int[] call = calls.get(0);
+		// the fraction the hash threshold actually selects
+		double selected = (double) Math.round(fraction * SAMPLE_RANGE)
+				/ SAMPLE_RANGE;
+		return m[0] + sampleFunction(fraction, seed)
+				+ "for $quedix-doc in local:quedix-sample("
+				+ body.substring(call[0], call[1]) + ")\nreturn <" + UNIT
+				+ " f=\"" + selected + "\">{ " + body.substring(0, call[0])
+				+ "$quedix-doc" + body.substring(call[1]) + " }</" + UNIT
+				+ ">";
+	}
+
+	/**
+	 * Returns the positions of the calls of <code>db:open(...)</code> and
+	 * <code>collection(...)</code> in a query body, skipping strings and
+	 * comments.
+	 * 
+	 * @param body
+	 *            Query body.
+	 * @return Start and end positions of the calls.
+	 */
+	private static List<int[]> calls(final String body) {
+		List<int[]> calls = new ArrayList<int[]>();
+		char quote = 0;
+		for (int p = 0; p < body.length(); p++) {
+			char ch = body.charAt(p);
+			if (quote != 0) {
+				if (ch == quote)
+					quote = 0;
+			} else if (ch == '"' || ch == '\'') {
+				quote = ch;
+			} else if (body.startsWith("(:", p)) {
+				int end = body.indexOf(":)", p + 2);
+				p = end == -1 ? body.length() : end + 1;
+			} else if (p == 0 || !isNameChar(body.charAt(p - 1))) {
+				for (String call : COLLECTIONS) {
+					if (!body.startsWith(call, p))
+						continue;
+					int end = closingParen(body, p + call.length());
+					if (end == -1)
+						break;
+					calls.add(new int[] { p, end + 1 });
+					p = end;
+					break;
+				}
+			}
+		}
+		return calls;
+	}
+
+	/**
+	 * Composes the function selecting the sampled documents.
+	 * 
+	 * @param fraction
+	 *            Sampling fraction, greater than 0 and at most 1.
+	 * @param seed
+	 *            Seed of the hash, between 1 and 2147483646.
+	 * @return Function declarations.
+	 */
+	private static String sampleFunction(final double fraction,
+			final long seed) {
+		long threshold = Math.round(fraction * SAMPLE_RANGE);
+		return "declare function local:quedix-hash($c as xs:integer*,"
+				+ " $h as xs:integer) as xs:integer {\n"
+				+ "  if (empty($c)) then $h\n"
+				+ "  else local:quedix-hash(subsequence($c, 2),"
+				+ " ($h * 31 + $c[1]) mod " + PRIME + ")\n};\n"
+				+ "declare function local:quedix-sample($docs as node()*)"
+				+ " as node()* {\n" + "  for $d at $p in $docs\n"
+				+ "  where local:quedix-hash(string-to-codepoints("
+				+ "concat(base-uri($d), \"#\", $p)), " + seed
+				+ ") * 48271 mod " + PRIME + " mod " + SAMPLE_RANGE + " < "
+				+ threshold + "\n  return $d\n};\n";
+	}
+
+	/**
+	 * Composes a mapper, which returns a HyperLogLog sketch of the distinct
+	 * values of its results instead of the results. Two code point hashes of
+	 * each value, scrambled by squaring modulo a prime, select a register and
+	 * a rank, i.e. the number of leading zeros of 31 hash bits plus one. Only
+	 * the maximum rank of each register is returned, encoded as
+	 * <code>register * 64 + rank</code>, within a <code>&lt;hll/&gt;</code>
+	 * element.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param value
+	 *            Value path, relative to a result item.
+	 * @param registers
+	 *            Number of registers.
+	 * @return Composed query.
+	 */
+	public static String distinctSketch(final String mapper,
+			final String value, final int registers) {
+		String[] m = split(mapper);
+		StringBuilder powers = new StringBuilder();
+		for (int i = 0; i < 31; i++)
+			powers.append(i == 0 ? "" : ", ").append(1L << i);
+		return m[0] + hashFunction() + "let $quedix-powers := (" + powers + ")\n"
+				+ "let $quedix-codes := (for $c in distinct-values("
+				+ "for $quedix-item in ( " + m[1] + " )\n"
+				+ "for $v in " + itemValue(value) + "\n"
+				+ "let $h := local:quedix-hashes(string($v))\n"
+				+ "return ($h[1] mod " + registers + ") * 64 + 32"
+				+ " - count($quedix-powers[. <= $h[2]])) order by $c return $c)\n"
+				+ "return <hll>{ for $c at $i in $quedix-codes"
+				+ " where $i = count($quedix-codes)"
+				+ " or $quedix-codes[$i + 1] idiv 64 != $c idiv 64"
+				+ " return $c }</hll>";
+	}
+
+	/**
+	 * Composes a mapper, which returns a t-digest of the numeric values of
+	 * its results instead of the results. The sorted values are summarized by
+	 * the means and weights of the given quantile ranges, returned as
+	 * <code>&lt;c m="..." w="..."/&gt;</code> elements within a
+	 * <code>&lt;digest min="..." max="..."/&gt;</code> element.
+	 * <p>
+	 * Note that each server sorts all its values exactly, so it needs time
+	 * <code>O(n log n)</code> and holds all <code>n</code> values in memory.
+	 * This is no streaming t-digest; only the traffic and the merge on the
+	 * client are bounded by the number of centroids.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param value
+	 *            Value path, relative to a result item.
+	 * @param bounds
+	 *            Quantile bounds of the centroids, from 0 to 1.
+	 * @return Composed query.
+	 */
+	public static String quantileSketch(final String mapper,
+			final String value, final double[] bounds) {
+		String[] m = split(mapper);
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < bounds.length; i++)
+			b.append(i == 0 ? "" : ", ").append(bounds[i]);
+		return m[0] + "let $quedix-bounds := (" + b + ")\n"
+				+ "let $quedix-values := (for $quedix-item in ( " + m[1]
+				+ " )\n" + "for $v in " + itemValue(value) + "\n"
+				+ "let $d := number($v)\n" + "where $d = $d\n"
+				+ "order by $d\n" + "return $d)\n"
+				+ "let $n := count($quedix-values)\n"
+				+ "return <digest min=\"{ $quedix-values[1] }\""
+				+ " max=\"{ $quedix-values[last()] }\">{\n"
+				+ "  for $b in 1 to " + (bounds.length - 1) + "\n"
+				+ "  let $from := floor($quedix-bounds[$b] * $n) + 1\n"
+				+ "  let $to := floor($quedix-bounds[$b + 1] * $n)\n"
+				+ "  let $s := subsequence($quedix-values, $from,"
+				+ " $to - $from + 1)\n" + "  where $to >= $from\n"
+				+ "  return <c m=\"{ sum($s) div count($s) }\""
+				+ " w=\"{ count($s) }\"/>\n"
+				+ "}</digest>";
+	}
+
+	/**
+	 * Composes a query returning the number of rows of a collection.
+	 * 
+	 * @param rows
+	 *            Rows of the collection, e.g.
+	 *            <code>db:open("factbook")//country</code>.
+	 * @return Composed query.
+	 */
+	public static String count(final String rows) {
+		return "count(" + rows + ")";
+	}
+
+	/**
+	 * Composes a query returning the distinct Bloom filter positions of the
+	 * first key values of all rows, separated by spaces.
+	 * 
+	 * @param rows
+	 *            Rows of the collection.
+	 * @param key
+	 *            Key expression, relative to a row.
+	 * @param bits
+	 *            Number of bits of the filter.
+	 * @param hashes
+	 *            Number of hash functions.
+	 * @return Composed query.
+	 */
+	public static String bloomPositions(final String rows, final String key,
+			final int bits, final int hashes) {
+		return bloomFunction(bits, hashes)
+				+ "string-join(for $p in distinct-values(for $r in " + rows
+				+ " return local:quedix-bloom(" + rowKey("$r", key)
+				+ ")) return string($p), \" \")";
+	}
+
+	/**
+	 * Composes a query returning the rows, whose first key value may be
+	 * contained in a Bloom filter.
+	 * 
+	 * @param rows
+	 *            Rows of the collection.
+	 * @param key
+	 *            Key expression, relative to a row.
+	 * @param filter
+	 *            Hex string of the filter, see {@link BloomFilter#toHex()}.
+	 * @param bits
+	 *            Number of bits of the filter.
+	 * @param hashes
+	 *            Number of hash functions.
+	 * @return Composed query.
+	 */
+	public static String bloomProbe(final String rows, final String key,
+			final String filter, final int bits, final int hashes) {
+		return bloomFunction(bits, hashes)
+				+ "declare variable $quedix-filter := \"" + filter + "\";\n"
+				+ "declare function local:quedix-bit($p as xs:integer)"
+				+ " as xs:boolean {\n"
+				+ "  let $c := string-to-codepoints(substring($quedix-filter,"
+				+ " $p idiv 4 + 1, 1))\n"
+				+ "  let $d := if ($c >= 97) then $c - 87 else $c - 48\n"
+				+ "  return ($d idiv (1, 2, 4, 8)[$p mod 4 + 1]) mod 2 = 1\n"
+				+ "};\n" + "for $r in " + rows + "\n"
+				+ "where every $p in local:quedix-bloom(" + rowKey("$r", key)
+				+ ") satisfies local:quedix-bit($p)\n" + "return $r";
+	}
+
+	/**
+	 * Composes the local side of a broadcast join. The broadcast rows are
+	 * stored as children of the root of the given database. Every local row
+	 * is joined with all broadcast rows of equal first key value; each pair
+	 * is returned as <code>&lt;match&gt;</code> element containing the left
+	 * and the right row.
+	 * 
+	 * @param rows
+	 *            Local rows.
+	 * @param key
+	 *            Key expression, relative to a local row.
+	 * @param db
+	 *            Name of the database with the broadcast rows.
+	 * @param broadcastKey
+	 *            Key expression, relative to a broadcast row.
+	 * @param broadcastLeft
+	 *            Flag if the broadcast rows are the left rows.
+	 * @return Composed query.
+	 */
+	public static String broadcastJoin(final String rows, final String key,
+			final String db, final String broadcastKey,
+			final boolean broadcastLeft) {
+		return "let $quedix-broadcast := doc(" + literal(db) + ")/*/*\n"
+				+ "for $l in " + rows + "\n" + "let $k := " + rowKey("$l", key)
+				+ "\n" + "for $b in $quedix-broadcast[$k != \"\" and string((("
+				+ broadcastKey + "))[1]) = $k]\n" + "return <match>{ "
+				+ (broadcastLeft ? "$b, $l" : "$l, $b") + " }</match>";
+	}
+
+	/**
+	 * Composes a query, which joins the local rows of two co-partitioned
+	 * collections. Each pair of rows with equal first key values is returned
+	 * as <code>&lt;match&gt;</code> element containing the left and the right
+	 * row.
+	 * 
+	 * @param left
+	 *            Local left rows.
+	 * @param leftKey
+	 *            Key expression, relative to a left row.
+	 * @param right
+	 *            Local right rows.
+	 * @param rightKey
+	 *            Key expression, relative to a right row.
+	 * @return Composed query.
+	 */
+	public static String localJoin(final String left, final String leftKey,
+			final String right, final String rightKey) {
+		return "for $l in " + left + "\n" + "let $k := " + rowKey("$l", leftKey)
+				+ "\n" + "for $r in " + right + "[$k != \"\" and string((("
+				+ rightKey + "))[1]) = $k]\n" + "return <match>{ $l, $r }</match>";
+	}
+
+	/**
+	 * Composes a query returning the number of documents of a collection,
+	 * whose rows have more than one distinct first key value. Rows without a
+	 * key are not counted, as they never match.
+	 * 
+	 * @param db
+	 *            Database name.
+	 * @param rows
+	 *            Path of the rows, relative to the database, e.g.
+	 *            <code>//country</code>.
+	 * @param key
+	 *            Key expression, relative to a row.
+	 * @return Composed query.
+	 */
+	public static String mixedKeys(final String db, final String rows,
+			final String key) {
+		return "count(for $d in db:open(" + literal(db) + ")\n"
+				+ "where count(distinct-values(for $r in $d" + rows
+				+ " return " + rowKey("$r", key) + ")[. != \"\"]) > 1\n"
+				+ "return $d)";
+	}
+
+	/**
+	 * Composes the Bloom filter hash function, which returns the bit
+	 * positions of a key. The two mixed hashes of
+	 * <code>local:quedix-hashes</code> are combined by double hashing.
+	 * 
+	 * @param bits
+	 *            Number of bits of the filter.
+	 * @param hashes
+	 *            Number of hash functions.
+	 * @return Function declarations.
+	 */
+	private static String bloomFunction(final int bits, final int hashes) {
+		return hashFunction()
+				+ "declare function local:quedix-bloom($k as xs:string)"
+				+ " as xs:integer* {\n"
+				+ "  let $h := local:quedix-hashes($k)\n"
+				+ "  let $h1 := $h[1] mod " + bits + "\n"
+				+ "  let $h2 := 1 + $h[2] mod " + (bits - 1) + "\n"
+				+ "  for $j in 0 to " + (hashes - 1)
+				+ " return ($h1 + $j * $h2) mod " + bits + "\n};\n";
+	}
+
+	/**
+	 * Composes the string hash function <code>local:quedix-hashes</code>, which
+	 * returns two independent hashes of a string. Two polynomial code point
+	 * hashes are scrambled by <code>local:quedix-mix</code>, which alternates
+	 * multiplications and squarings modulo a prime, so similar strings are
+	 * spread evenly.
+	 * 
+	 * @return Function declarations.
+	 */
+	private static String hashFunction() {
+		return "declare function local:quedix-mix($x as xs:integer,"
+				+ " $a as xs:integer) as xs:integer {\n"
+				+ "  let $y1 := $x * $a mod " + PRIME + "\n"
+				+ "  let $y2 := ($y1 * $y1 + $x) mod " + PRIME + "\n"
+				+ "  let $y3 := $y2 * 48271 mod " + PRIME + "\n"
+				+ "  let $y4 := ($y3 * $y3 + $a) mod " + PRIME + "\n"
+				+ "  let $y5 := $y4 * 16807 mod " + PRIME + "\n"
+				+ "  return ($y5 * $y5 + $x) mod " + PRIME + "\n};\n"
+				+ "declare function local:quedix-poly($c as xs:integer*,"
+				+ " $h1 as xs:integer, $h2 as xs:integer) as xs:integer+ {\n"
+				+ "  if (empty($c)) then (local:quedix-mix($h1, 48271),"
+				+ " local:quedix-mix($h2, 69621))\n"
+				+ "  else local:quedix-poly(subsequence($c, 2),\n"
+				+ "    ($h1 * 31 + $c[1]) mod " + PRIME + ", ($h2 * 37 + $c[1])"
+				+ " mod " + PRIME + ")\n};\n"
+				+ "declare function local:quedix-hashes($k as xs:string)"
+				+ " as xs:integer+ {\n"
+				+ "  local:quedix-poly(string-to-codepoints($k), 0, 0)\n};\n";
+	}
+
+	/**
+	 * Returns the expression of the first value of a path, relative to the
+	 * result item <code>$quedix-item</code>. An atomic item is its own value.
+	 * 
+	 * @param path
+	 *            Value path.
+	 * @return Expression.
+	 */
+	private static String itemValue(final String path) {
+		return "(if ($quedix-item instance of node()) then $quedix-item/("
+				+ path + ") else $quedix-item)[1]";
+	}
+
+	/**
+	 * Returns the expression of the first key value of a row.
+	 * 
+	 * @param row
+	 *            Row variable.
+	 * @param key
+	 *            Key expression, relative to a row.
+	 * @return Expression.
+	 */
+	private static String rowKey(final String row, final String key) {
+		return "string((" + row + "/(" + key + "))[1])";
+	}
+
+	/**
+	 * Composes the map side of a shuffle. The map results are partitioned by
+	 * the first value of a key expression, which is evaluated relative to each
+	 * result item. The partition of each item is computed once, from the
+	 * mixed hash of <code>local:quedix-hashes</code>, so short or similar keys
+	 * are spread evenly. Every partition is stored as document
+	 * <code>pN.xml</code> in the given database of the executing server. The
+	 * mapper may declare the hash functions itself, e.g. a Bloom probe.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param key
+	 *            Key expression, e.g. <code>@country</code>.
+	 * @param db
+	 *            Name of the existing database for the partitions.
+	 * @param partitions
+	 *            Number of partitions.
+	 * @return Composed query.
+	 */
+	public static String shuffle(final String mapper, final String key,
+			final String db, final int partitions) {
+		String[] m = split(mapper);
+		String hashes = m[0].contains(hashFunction()) ? "" : hashFunction();
+		return m[0] + hashes + "let $quedix-items := ( " + m[1]
+				+ " )\n" + "let $quedix-parts := for $quedix-item in "
+				+ "$quedix-items\n" + "  return local:quedix-hashes(string("
+				+ itemValue(key) + "))[1] mod " + partitions + "\n"
+				+ "for $p in 0 to " + (partitions - 1) + "\n"
+				+ "return db:add(" + literal(db) + ", document { <results>{ "
+				+ "for $quedix-item at $i in $quedix-items"
+				+ " where $quedix-parts[$i] = $p return $quedix-item"
+				+ " }</results> }, concat(\"p\", $p, \".xml\"))";
+	}
+
+	/**
+	 * Composes a query, which stores the results of a stage of a job graph
+	 * as document <code>stage.xml</code> in the given database of the
+	 * executing server, wrapped into a <code>&lt;results/&gt;</code>
+	 * element.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param db
+	 *            Name of the existing database for the results.
+	 * @return Composed query.
+	 */
+	public static String store(final String mapper, final String db) {
+		String[] m = split(mapper);
+		return m[0] + "db:add(" + literal(db) + ", document { <results>{ "
+				+ m[1] + " }</results> }, \"stage.xml\")";
+	}
+
+	/**
+	 * Binds the stored results of previous stages of a job graph to
+	 * variables of a mapper. The results of a stage <code>NAME</code>, which
+	 * are stored on the executing server, are bound to <code>$NAME</code>.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param inputs
+	 *            Variable names, mapped to the databases of their results.
+	 * @return Composed query.
+	 */
+	public static String bind(final String mapper,
+			final Map<String, String> inputs) {
+		String[] m = split(mapper);
+		StringBuilder sb = new StringBuilder(m[0]);
+		for (Map.Entry<String, String> input : inputs.entrySet())
+			sb.append("declare variable $").append(input.getKey())
+					.append(" := db:open(").append(literal(input.getValue()))
+					.append(")/results/node();\n");
+		return sb.append(m[1]).toString();
+	}
+
+	/**
+	 * Splits a query into its prolog and its body.
+	 * 
+	 * @param query
+	 *            Query.
+	 * @return Array with prolog and body.
+	 */
+	public static String[] split(final String query) {
+		int pos = 0;
+		while (true) {
+			int start = skip(query, pos);
+			if (!isProlog(query, start))
+				break;
+			int end = statementEnd(query, start);
+			if (end == -1)
+				break;
+			pos = end + 1;
+		}
+		return new String[] { query.substring(0, pos).trim() + "\n",
+				query.substring(pos).trim() };
+	}
+
+	/**
+	 * Merges the prologs of composed queries. Statements, which occur in
+	 * several prologs, are kept once, ignoring differences in whitespace. The
+	 * first version declaration is hoisted to the front, all others are
+	 * dropped.
+	 * 
+	 * @param prologs
+	 *            Prologs, as returned by {@link #split(String)}.
+	 * @return Merged prolog.
+	 */
+	private static String prolog(final String... prologs) {
+		String version = null;
+		Map<String, String> statements = new LinkedHashMap<String, String>();
+		for (String prolog : prologs) {
+			int pos = skip(prolog, 0);
+			while (pos < prolog.length()) {
+				int end = statementEnd(prolog, pos);
+				if (end == -1)
+					end = prolog.length() - 1;
+				String statement = prolog.substring(pos, end + 1).trim();
+				String key = statement.replaceAll("\\s+", " ");
+				if (!statement.startsWith(PROLOG[0])) {
+					if (!statements.containsKey(key))
+						statements.put(key, statement);
+				} else if (version == null) {
+					version = statement;
+				}
+				pos = skip(prolog, end + 1);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		if (version != null)
+			sb.append(version).append('\n');
+		for (String statement : statements.values())
+			sb.append(statement).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Quotes a string as XQuery string literal.
+	 * 
+	 * @param value
+	 *            String value.
+	 * @return String literal.
+	 */
+	public static String literal(final String value) {
+		return "\"" + value.replace("&", "&amp;").replace("\"", "&quot;")
+				+ "\"";
+	}
+
+	/**
+	 * Returns the position of the parenthesis closing a function call.
+	 * 
+	 * @param query
+	 *            Query.
+	 * @param pos
+	 *            Position after the opening parenthesis.
+	 * @return Position or <code>-1</code>.
+	 */
+	private static int closingParen(final String query, final int pos) {
+		int depth = 1;
+		char quote = 0;
+		for (int p = pos; p < query.length(); p++) {
+			char ch = query.charAt(p);
+			if (quote != 0) {
+				if (ch == quote)
+					quote = 0;
+			} else if (ch == '"' || ch == '\'') {
+				quote = ch;
+			} else if (query.startsWith("(:", p)) {
+				int end = query.indexOf(":)", p + 2);
+				if (end == -1)
+					return -1;
+				p = end + 1;
+			} else if (ch == '(') {
+				depth++;
+			} else if (ch == ')' && --depth == 0) {
+				return p;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks if a character may be part of a qualified name.
+	 * 
+	 * @param ch
+	 *            Character.
+	 * @return Result of check.
+	 */
+	private static boolean isNameChar(final char ch) {
+		return Character.isLetterOrDigit(ch) || ch == '-' || ch == '_'
+				|| ch == '.' || ch == ':' || ch == '$';
+	}
+
+	/**
+	 * Skips whitespaces and comments.
+	 * 
+	 * @param query
+	 *            Query.
+	 * @param pos
+	 *            Start position.
+	 * @return Position of next token.
+	 */
+	private static int skip(final String query, final int pos) {
+		int p = pos;
+		while (p < query.length()) {
+			if (Character.isWhitespace(query.charAt(p))) {
+				p++;
+			} else if (query.startsWith("(:", p)) {
+				int end = query.indexOf(":)", p + 2);
+				p = end == -1 ? query.length() : end + 2;
+			} else {
+				break;
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Checks if a prolog statement starts at the given position.
+	 * 
+	 * @param query
+	 *            Query.
+	 * @param pos
+	 *            Position.
+	 * @return Result of check.
+	 */
+	private static boolean isProlog(final String query, final int pos) {
+		for (String keyword : PROLOG) {
+			int end = pos + keyword.length();
+			if (query.startsWith(keyword, pos) && end < query.length()
+					&& Character.isWhitespace(query.charAt(end))) {
+				// "declare" could also be the name of a path step
+				int next = skip(query, end);
+				return next < query.length()
+						&& Character.isLetter(query.charAt(next));
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the position of the semicolon terminating a prolog statement.
+	 * 
+	 * @param query
+	 *            Query.
+	 * @param pos
+	 *            Start of statement.
+	 * @return Position or <code>-1</code>.
+	 */
+	private static int statementEnd(final String query, final int pos) {
+		int depth = 0;
+		char quote = 0;
+		for (int p = pos; p < query.length(); p++) {
+			char ch = query.charAt(p);
+			if (quote != 0) {
+				if (ch == quote)
+					quote = 0;
+			} else if (ch == '"' || ch == '\'') {
+				quote = ch;
+			} else if (query.startsWith("(:", p)) {
+				int end = query.indexOf(":)", p + 2);
+				if (end == -1)
+					return -1;
+				p = end + 1;
+			} else if (ch == '{') {
+				depth++;
+			} else if (ch == '}') {
+				depth--;
+			} else if (ch == ';' && depth == 0) {
+				return p;
+			}
+		}
+		return -1;
+	}
+}
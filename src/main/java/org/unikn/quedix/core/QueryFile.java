@@ -0,0 +1,45 @@
+package org.unikn.quedix.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class reads the XQ files of mappers, combiners and reducers.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public final class QueryFile {
+
+	/**
+	 * Hidden constructor.
+	 */
+	private QueryFile() {
+	}
+
+	/**
+	 * Reads input file and writes it to a byte array.
+	 * 
+	 * @param file
+	 *            File name.
+	 * @return Byte array representation of file.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public static byte[] read(final File file) throws IOException {
+		InputStream input = new BufferedInputStream(new FileInputStream(file));
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int i;
+			while ((i = input.read(buffer)) != -1)
+				bos.write(buffer, 0, i);
+			return bos.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package org.unikn.quedix.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This {@link Sink} pipes the results of all data servers into one
+ * {@link InputStream}, which can be consumed while the servers are still
+ * delivering. The results of one server are never interleaved with others:
+ * the server delivering first is streamed through directly, the remaining
+ * servers are buffered in chunks until it is their turn. The chunks are kept
+ * off the heap in a {@link SpillBuffer}. A pipe with a bounded capacity
+ * blocks writing servers, once the buffered results reach it, until the
+ * reader has caught up; the server currently read only waits for its own
+ * chunks, so it can always proceed.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class ResultPipe extends InputStream implements Sink {
+
+	/** Capacity of pipes, which are read while the servers deliver, 4 GB. */
+	public static final long CAPACITY = 1L << 32;
+	/** End of part marker. */
+	private static final SpillBuffer.Chunk EOF = new SpillBuffer.Chunk(null,
+			false);
+
+	/** Parts in order of their first delivery. */
+	private BlockingQueue<Part> mOrder = new LinkedBlockingQueue<Part>();
+	/** Marker for the end of all parts. */
+	private final Part mEnd = new Part(null);
+	/** Part currently read. */
+	private InputStream mCurrent;
+	/** Flag if all parts have been read. */
+	private boolean mDone;
+	/** Buffer for chunks. */
+	private SpillBuffer mBuffer;
+	/** Size of buffered results in bytes, after which writers block. */
+	private long mCapacity;
+	/** Lock guarding the number of buffered chunks and the current part. */
+	private final Object mLock = new Object();
+	/** Number of delivered, not yet released chunks. */
+	private long mBuffered;
+	/** Part currently read. */
+	private Part mHead;
+	/** Flag if the pipe has been closed by the reader. */
+	private boolean mClosed;
+
+	/**
+	 * Constructor, spilling chunks to disk beyond
+	 * {@link SpillBuffer#THRESHOLD}, without a capacity.
+	 */
+	public ResultPipe() {
+		this(SpillBuffer.THRESHOLD);
+	}
+
+	/**
+	 * Constructor without a capacity, for pipes which may buffer complete
+	 * results before they are read.
+	 * 
+	 * @param threshold
+	 *            Size of buffered results in bytes, after which chunks are
+	 *            spilled to disk.
+	 */
+	public ResultPipe(final long threshold) {
+		this(threshold, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param threshold
+	 *            Size of buffered results in bytes, after which chunks are
+	 *            spilled to disk.
+	 * @param capacity
+	 *            Size of buffered results in bytes, after which writers block
+	 *            until the reader has caught up. The pipe has to be read
+	 *            while the servers deliver.
+	 */
+	public ResultPipe(final long threshold, final long capacity) {
+		mBuffer = new SpillBuffer(threshold);
+		mCapacity = capacity;
+	}
+
+	@Override
+	public OutputStream open(final String server) throws IOException {
+		return new Part(server);
+	}
+
+	/**
+	 * Signals that all servers have finished and no further parts will be
+	 * opened.
+	 */
+	public void finish() {
+		mOrder.add(mEnd);
+	}
+
+	/**
+	 * Returns the results of the next delivering server. Blocks until a server
+	 * starts delivering.
+	 * 
+	 * @return {@link PartInput} of the next part or <code>null</code> if all
+	 *         parts have been returned.
+	 * @throws IOException
+	 *             Waiting has been interrupted.
+	 */
+	public PartInput nextPart() throws IOException {
+		if (mDone)
+			return null;
+		try {
+			Part part = mOrder.take();
+			if (part == mEnd) {
+				mDone = true;
+				return null;
+			}
+			synchronized (mLock) {
+				mHead = part;
+				mLock.notifyAll();
+			}
+			return new PartInput(part.mServer, part.mChunks, this);
+		} catch (final InterruptedException exc) {
+			throw new InterruptedIOException(exc.getMessage());
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+		while (true) {
+			if (mCurrent == null) {
+				mCurrent = nextPart();
+				if (mCurrent == null)
+					return -1;
+			}
+			int n = mCurrent.read(b, off, len);
+			if (n != -1)
+				return n;
+			mCurrent = null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (mLock) {
+			mClosed = true;
+			mLock.notifyAll();
+		}
+		mBuffer.close();
+	}
+
+	/**
+	 * Counts a chunk handed over to the reader.
+	 */
+	void delivered() {
+		synchronized (mLock) {
+			mBuffered++;
+		}
+	}
+
+	/**
+	 * Releases a chunk, which has been read completely, and wakes up blocked
+	 * writers.
+	 * 
+	 * @param chunk
+	 *            Chunk.
+	 */
+	void release(final SpillBuffer.Chunk chunk) {
+		mBuffer.release(chunk);
+		synchronized (mLock) {
+			mBuffered--;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Blocks a writing part while the buffered results exceed the capacity.
+	 * The part currently read only waits for its own chunks.
+	 * 
+	 * @param part
+	 *            Writing part.
+	 * @throws IOException
+	 *             Waiting has been interrupted or the pipe has been closed.
+	 */
+	void await(final Part part) throws IOException {
+		if (mCapacity == Long.MAX_VALUE)
+			return;
+		long chunks = Math.max(1, mCapacity / SpillBuffer.CHUNK);
+		synchronized (mLock) {
+			try {
+				while (!mClosed
+						&& (part == mHead ? part.mChunks.size()
+								: mBuffered) >= chunks)
+					mLock.wait();
+				if (mClosed)
+					throw new IOException("Result pipe has been closed.");
+			} catch (final InterruptedException exc) {
+				throw new InterruptedIOException(exc.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Results of one server, buffered in chunks.
+	 */
+	private class Part extends OutputStream {
+
+		/** Server id. */
+		private String mServer;
+		/** Delivered chunks. */
+		private BlockingQueue<SpillBuffer.Chunk> mChunks = new LinkedBlockingQueue<SpillBuffer.Chunk>();
+		/** Current chunk. */
+		private SpillBuffer.Chunk mChunk;
+		/** Flag if this part has been registered for reading. */
+		private boolean mRegistered;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param server
+		 *            Server id.
+		 */
+		Part(final String server) {
+			mServer = server;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			if (mChunk == null || !mChunk.getBuffer().hasRemaining())
+				deliver();
+			mChunk.getBuffer().put((byte) b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+				throws IOException {
+			int o = off;
+			int l = len;
+			while (l > 0) {
+				if (mChunk == null || !mChunk.getBuffer().hasRemaining())
+					deliver();
+				int n = Math.min(l, mChunk.getBuffer().remaining());
+				mChunk.getBuffer().put(b, o, n);
+				o += n;
+				l -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mChunk != null) {
+				mChunk.getBuffer().flip();
+				delivered();
+				mChunks.add(mChunk);
+				mChunk = null;
+			}
+			mChunks.add(EOF);
+			register();
+		}
+
+		/**
+		 * Hands the current chunk over to the reader and allocates a new one,
+		 * as soon as the capacity of the pipe allows it.
+		 * 
+		 * @throws IOException
+		 *             Chunk could not be allocated.
+		 */
+		private void deliver() throws IOException {
+			if (mChunk != null) {
+				mChunk.getBuffer().flip();
+				delivered();
+				mChunks.add(mChunk);
+				register();
+			}
+			await(this);
+			mChunk = mBuffer.allocate();
+		}
+
+		/**
+		 * Registers this part for reading as soon as it delivers.
+		 */
+		private void register() {
+			if (!mRegistered) {
+				mRegistered = true;
+				mOrder.add(this);
+			}
+		}
+	}
+
+	/**
+	 * Reading side of the results of one server. Chunks are read in place and
+	 * released afterwards.
+	 */
+	public static class PartInput extends InputStream {
+
+		/** Server id. */
+		private String mServer;
+		/** Delivered chunks. */
+		private BlockingQueue<SpillBuffer.Chunk> mChunks;
+		/** Pipe the chunks are released to. */
+		private ResultPipe mPipe;
+		/** Current chunk. */
+		private SpillBuffer.Chunk mIn;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param server
+		 *            Server id.
+		 * @param chunks
+		 *            Delivered chunks.
+		 * @param pipe
+		 *            Pipe the chunks are released to.
+		 */
+		PartInput(final String server,
+				final BlockingQueue<SpillBuffer.Chunk> chunks,
+				final ResultPipe pipe) {
+			mServer = server;
+			mChunks = chunks;
+			mPipe = pipe;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return server id.
+		 */
+		public String getServer() {
+			return mServer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+				throws IOException {
+			if (mIn == EOF)
+				return -1;
+			try {
+				while (mIn == null || !mIn.getBuffer().hasRemaining()) {
+					if (mIn != null)
+						mPipe.release(mIn);
+					mIn = mChunks.take();
+					if (mIn == EOF)
+						return -1;
+				}
+			} catch (final InterruptedException exc) {
+				throw new InterruptedIOException(exc.getMessage());
+			}
+			int n = Math.min(len, mIn.getBuffer().remaining());
+			mIn.getBuffer().get(b, off, n);
+			return n;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package org.unikn.quedix.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This interface abstracts a target for query results, which receives the
+ * results of each data server in a separate stream. The streams are written
+ * concurrently.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public interface Sink {
+
+	/**
+	 * Opens the stream for the results of one data server. The stream is
+	 * closed by the caller as soon as the server has delivered all results.
+	 * 
+	 * @param server
+	 *            Server id.
+	 * @return {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Stream could not be opened.
+	 */
+	public OutputStream open(final String server) throws IOException;
+
+}
@@ -0,0 +1,177 @@
+package org.unikn.quedix.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class provides the chunks for buffering map results off the heap.
+ * Chunks are taken from a pool of direct {@link ByteBuffer}s as long as the
+ * buffered size stays below a configurable threshold. Beyond it, chunks are
+ * memory mapped regions of a temporary spill file. Readers consume the chunks
+ * in place and release them afterwards. Released regions are reused before
+ * the spill file grows, so its size follows the buffered data, not the
+ * throughput.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class SpillBuffer {
+
+	/** Chunk size. */
+	public static final int CHUNK = 1 << 18;
+	/** Default threshold for spilling, 256 MB. */
+	public static final long THRESHOLD = 1L << 28;
+	/** Maximum number of pooled direct buffers. */
+	private static final int POOL_SIZE = 64;
+	/** Pool of direct buffers, shared by all instances. */
+	private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/** Threshold for spilling in bytes. */
+	private long mThreshold;
+	/** Size of direct buffers in use. */
+	private AtomicLong mInMemory = new AtomicLong();
+	/** Spill file. */
+	private File mFile;
+	/** Spill file channel. */
+	private FileChannel mChannel;
+	/** Next free position in spill file. */
+	private long mPos;
+	/** Released regions of the spill file. */
+	private Queue<ByteBuffer> mFree = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param threshold
+	 *            Size of buffered data in bytes, after which chunks are
+	 *            spilled to disk.
+	 */
+	public SpillBuffer(final long threshold) {
+		mThreshold = threshold;
+	}
+
+	/**
+	 * Returns an empty chunk for writing.
+	 * 
+	 * @return {@link Chunk} instance.
+	 * @throws IOException
+	 *             Spill file could not be mapped.
+	 */
+	public Chunk allocate() throws IOException {
+		if (mInMemory.addAndGet(CHUNK) <= mThreshold) {
+			ByteBuffer bb = POOL.poll();
+			if (bb == null)
+				bb = ByteBuffer.allocateDirect(CHUNK);
+			return new Chunk(bb, false);
+		}
+		mInMemory.addAndGet(-CHUNK);
+		ByteBuffer bb = mFree.poll();
+		if (bb == null)
+			bb = map();
+		return new Chunk(bb, true);
+	}
+
+	/**
+	 * Releases a chunk, which has been read completely.
+	 * 
+	 * @param chunk
+	 *            {@link Chunk} instance.
+	 */
+	public void release(final Chunk chunk) {
+		if (!chunk.mSpilled) {
+			mInMemory.addAndGet(-CHUNK);
+			if (POOL.size() < POOL_SIZE) {
+				chunk.mBuffer.clear();
+				POOL.offer(chunk.mBuffer);
+			}
+		} else {
+			chunk.mBuffer.clear();
+			mFree.offer(chunk.mBuffer);
+		}
+		chunk.mBuffer = null;
+	}
+
+	/**
+	 * Closes and deletes the spill file, if one has been created.
+	 * 
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public synchronized void close() throws IOException {
+		mFree.clear();
+		if (mChannel != null) {
+			mChannel.close();
+			mChannel = null;
+			if (!mFile.delete())
+				mFile.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Maps the next region of the spill file.
+	 * 
+	 * @return Mapped region.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private synchronized ByteBuffer map() throws IOException {
+		if (mChannel == null) {
+			mFile = File.createTempFile("quedix-spill", ".tmp");
+			mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+			System.out.println("Spilling map results to "
+					+ mFile.getAbsolutePath());
+		}
+		ByteBuffer bb = mChannel.map(FileChannel.MapMode.READ_WRITE, mPos,
+				CHUNK);
+		mPos += CHUNK;
+		return bb;
+	}
+
+	/**
+	 * Buffer chunk, either a pooled direct buffer or a mapped region of the
+	 * spill file.
+	 */
+	public static class Chunk {
+
+		/** Buffer. */
+		private ByteBuffer mBuffer;
+		/** Flag if the chunk is a region of the spill file. */
+		private boolean mSpilled;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param buffer
+		 *            Buffer.
+		 * @param spilled
+		 *            Flag if the chunk is a region of the spill file.
+		 */
+		Chunk(final ByteBuffer buffer, final boolean spilled) {
+			mBuffer = buffer;
+			mSpilled = spilled;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return buffer.
+		 */
+		public ByteBuffer getBuffer() {
+			return mBuffer;
+		}
+
+		/**
+		 * Checks if the chunk is a region of the spill file.
+		 * 
+		 * @return Result of check.
+		 */
+		public boolean isSpilled() {
+			return mSpilled;
+		}
+	}
+}
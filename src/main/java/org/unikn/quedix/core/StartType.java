@@ -19,6 +19,22 @@ public enum StartType {
 	/** Map and Reduce with sockets. */
 	MAP_AND_REDUCE_SOCKETS,
 	/** Map and Reduce with REST. */
-	MAP_AND_REDUCE_REST
+	MAP_AND_REDUCE_REST,
+	/** Join with sockets. */
+	JOIN_SOCKETS,
+	/** Join with REST. */
+	JOIN_REST,
+	/** Continuous map with sockets. */
+	CONTINUOUS_SOCKETS,
+	/** Materialized view definition or refresh with sockets. */
+	VIEW_SOCKETS,
+	/** Materialized view definition or refresh with REST. */
+	VIEW_REST,
+	/** Materialized view lookup. */
+	VIEW_READ,
+	/** Job graph with sockets. */
+	GRAPH_SOCKETS,
+	/** Job graph with REST. */
+	GRAPH_REST
 
 }
@@ -0,0 +1,68 @@
+package org.unikn.quedix.core;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class provides the handling of parallel tasks, which is shared by the
+ * clients executing queries on several servers.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public final class Tasks {
+
+	/**
+	 * Hidden constructor.
+	 */
+	private Tasks() {
+	}
+
+	/**
+	 * Shuts an executor down and blocks until all its tasks have terminated.
+	 * If the waiting thread is interrupted, the tasks are cancelled and the
+	 * interrupt flag is kept.
+	 * 
+	 * @param executor
+	 *            {@link ExecutorService} executing the tasks.
+	 */
+	public static void terminate(final ExecutorService executor) {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (final InterruptedException exc) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Shuts an executor down and blocks until all its tasks have terminated.
+	 * The first failed task is rethrown.
+	 * 
+	 * @param executor
+	 *            {@link ExecutorService} executing the tasks.
+	 * @param futures
+	 *            Futures of the tasks.
+	 * @throws IOException
+	 *             A task failed or the waiting thread has been interrupted.
+	 */
+	public static void await(final ExecutorService executor,
+			final List<? extends Future<?>> futures) throws IOException {
+		terminate(executor);
+		if (Thread.currentThread().isInterrupted())
+			throw new IOException("Interrupted while waiting for tasks.");
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (final InterruptedException exc) {
+				exc.printStackTrace();
+			} catch (final ExecutionException exc) {
+				throw new IOException(exc.getCause().getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package org.unikn.quedix.map;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.basex.util.Token;
+import org.unikn.quedix.core.QueryFile;
+import org.unikn.quedix.core.Tasks;
+import org.unikn.quedix.reduce.Aggregator;
+import org.unikn.quedix.socket.BaseXClient;
+import org.unikn.quedix.socket.BaseXClient.EventNotifier;
+import org.unikn.quedix.socket.SocketClient;
+
+/**
+ * This class keeps the results of a mapper up to date. It watches a database
+ * event on every data server and re-runs the mapper only on the servers
+ * firing the event. The results of the other servers are kept, so every
+ * update costs one server execution instead of a complete job. Events, which
+ * arrive while the mapper is running, are coalesced into the next run. The
+ * combined results, optionally aggregated by a built-in {@link Aggregator},
+ * are pushed to the registered {@link ResultListener}s. If the mapper fails
+ * on a server, the listeners are told that its results are outdated, and the
+ * server is run again with the next event.
+ * <p>
+ * Events are not fired by BaseX itself: updating clients have to fire them,
+ * e.g. by <code>db:event("quedix", "factbook.xml")</code> within their
+ * updating query.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class ContinuousQuery {
+
+	/** Start tag. */
+	private static final byte[] START = Token.token("<results>");
+	/** End tag. */
+	private static final byte[] END = Token.token("</results>");
+
+	/** Client. */
+	private SocketClient mClient;
+	/** Event name. */
+	private String mEvent;
+	/** Mapper query. */
+	private String mMapper;
+	/** Optional built-in aggregation of the results. */
+	private Aggregator mAggregator;
+	/** Current results of each server. */
+	private Map<String, byte[]> mResults = new TreeMap<String, byte[]>();
+	/** Servers with pending events. */
+	private Set<String> mPending = new TreeSet<String>();
+	/** Flag if a run has been scheduled, guarded by {@link #mPending}. */
+	private boolean mScheduled;
+	/** Flag if the query has been stopped, guarded by {@link #mPending}. */
+	private boolean mStopped;
+	/** Registered listeners. */
+	private List<ResultListener> mListeners = new CopyOnWriteArrayList<ResultListener>();
+	/** Executor running the mapper after events, one run at a time. */
+	private ExecutorService mExecutor;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param client
+	 *            {@link SocketClient} instance.
+	 * @param event
+	 *            Event name.
+	 * @param xq
+	 *            XQ file for mapping.
+	 * @throws IOException
+	 *             XQ file could not be read.
+	 */
+	public ContinuousQuery(final SocketClient client, final String event,
+			final File xq) throws IOException {
+		mClient = client;
+		mEvent = event;
+		mMapper = Token.string(QueryFile.read(xq));
+	}
+
+	/**
+	 * Sets a built-in aggregation of the combined results. Sketch
+	 * aggregations are computed on the servers, so only the sketches of the
+	 * updated servers are recomputed.
+	 * 
+	 * @param aggregator
+	 *            {@link Aggregator} instance or <code>null</code>.
+	 */
+	public void setAggregator(final Aggregator aggregator) {
+		mAggregator = aggregator;
+	}
+
+	/**
+	 * Registers a listener.
+	 * 
+	 * @param listener
+	 *            Listener of updated results.
+	 */
+	public void addListener(final ResultListener listener) {
+		mListeners.add(listener);
+	}
+
+	/**
+	 * Creates the event on every server, if it does not exist, watches it and
+	 * runs the mapper on all servers.
+	 * 
+	 * @throws IOException
+	 *             Event could not be watched.
+	 */
+	public void start() throws IOException {
+		mExecutor = Executors.newSingleThreadExecutor();
+		List<String> servers = mClient.getServers();
+		for (final String server : servers) {
+			BaseXClient c = mClient.getClients().get(server);
+			synchronized (c) {
+				try {
+					c.execute("create event " + mEvent);
+				} catch (final IOException exc) {
+					// event exists already
+				}
+				c.watch(mEvent, new EventNotifier() {
+
+					@Override
+					public void notify(final String value) {
+						changed(Collections.singleton(server));
+					}
+				});
+			}
+		}
+		changed(servers);
+	}
+
+	/**
+	 * Unwatches the event on every server and waits for the last run.
+	 */
+	public void stop() {
+		for (String server : mClient.getServers()) {
+			BaseXClient c = mClient.getClients().get(server);
+			synchronized (c) {
+				try {
+					c.unwatch(mEvent);
+				} catch (final IOException exc) {
+					exc.printStackTrace();
+				}
+			}
+		}
+		synchronized (mPending) {
+			mStopped = true;
+		}
+		if (mExecutor != null) {
+			Tasks.terminate(mExecutor);
+		}
+	}
+
+	/**
+	 * Marks servers as changed and schedules a run, unless one is scheduled
+	 * or the query has been stopped.
+	 * 
+	 * @param servers
+	 *            Changed servers.
+	 */
+	private void changed(final Collection<String> servers) {
+		synchronized (mPending) {
+			mPending.addAll(servers);
+			if (mScheduled || mStopped)
+				return;
+			mScheduled = true;
+			mExecutor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					refresh();
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs the mapper on the changed servers in parallel, replaces their
+	 * results and pushes the combined results. Failed servers keep their
+	 * previous results, are reported to the listeners and are marked as
+	 * pending again, so they are run with the next event.
+	 */
+	private void refresh() {
+		final String query = mAggregator == null ? mMapper : mAggregator
+				.compose(mMapper);
+		Set<String> servers;
+		synchronized (mPending) {
+			servers = new TreeSet<String>(mPending);
+			mPending.clear();
+			mScheduled = false;
+		}
+		long start = System.nanoTime();
+		Map<String, Future<byte[]>> futures = new TreeMap<String, Future<byte[]>>();
+		ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+		for (final String server : servers) {
+			futures.put(server, executor.submit(new Callable<byte[]>() {
+
+				@Override
+				public byte[] call() throws Exception {
+					ByteArrayOutputStream bos = new ByteArrayOutputStream();
+					mClient.query(server, null, query, bos);
+					return bos.toByteArray();
+				}
+			}));
+		}
+		Tasks.terminate(executor);
+		Set<String> updated = new TreeSet<String>();
+		Map<String, String> failed = new TreeMap<String, String>();
+		for (Map.Entry<String, Future<byte[]>> future : futures.entrySet()) {
+			try {
+				mResults.put(future.getKey(), future.getValue().get());
+				updated.add(future.getKey());
+			} catch (final InterruptedException exc) {
+				failed.put(future.getKey(), exc.toString());
+			} catch (final ExecutionException exc) {
+				failed.put(future.getKey(), exc.getCause().toString());
+			}
+		}
+		if (!failed.isEmpty()) {
+			synchronized (mPending) {
+				mPending.addAll(failed.keySet());
+			}
+			for (ResultListener listener : mListeners)
+				listener.failed(failed);
+		}
+		try {
+			byte[] results = combine();
+			long time = System.nanoTime() - start;
+			System.out.println("Time for updating " + updated + ": " + time
+					/ 1000000 + " ms");
+			for (ResultListener listener : mListeners)
+				listener.update(updated, results);
+		} catch (final IOException exc) {
+			exc.printStackTrace();
+		}
+	}
+
+	/**
+	 * Combines the current results of all servers.
+	 * 
+	 * @return Combined results.
+	 * @throws IOException
+	 *             Results could not be aggregated.
+	 */
+	private byte[] combine() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (byte[] result : mResults.values())
+			bos.write(result);
+		if (mAggregator == null)
+			return bos.toByteArray();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mAggregator.aggregate(new SequenceInputStream(new ByteArrayInputStream(
+				START), new SequenceInputStream(new ByteArrayInputStream(bos
+				.toByteArray()), new ByteArrayInputStream(END))), out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Listener of updated results.
+	 */
+	public interface ResultListener {
+
+		/**
+		 * Invoked after the results have been updated.
+		 * 
+		 * @param servers
+		 *            Servers, whose results have been recomputed.
+		 * @param results
+		 *            Combined results of all servers.
+		 */
+		void update(final Set<String> servers, final byte[] results);
+
+		/**
+		 * Invoked before the results are updated, if the mapper failed on
+		 * some servers. Their previous results are still part of the combined
+		 * results, but are outdated.
+		 * 
+		 * @param servers
+		 *            Failed servers with the reason of the failure.
+		 */
+		void failed(final Map<String, String> servers);
+	}
+}
@@ -0,0 +1,189 @@
+package org.unikn.quedix.map;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.basex.query.QueryException;
+import org.basex.util.Token;
+import org.unikn.quedix.core.Client;
+import org.unikn.quedix.core.QueryComposer;
+import org.unikn.quedix.core.QueryFile;
+import org.unikn.quedix.core.ResultPipe;
+import org.unikn.quedix.reduce.Demultiplexer;
+import org.unikn.quedix.reduce.ReduceClient;
+
+/**
+ * This class executes several independent map jobs as one fused job. The
+ * mappers are shipped together and executed as one query on each data
+ * server, so all jobs share one distribution, one execution round trip and
+ * one cleanup. The results are demultiplexed back to the reducer of each job.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class FusedMapClient {
+
+	/** Start tag. */
+	private static final byte[] START = Token.token("<results>");
+	/** End tag. */
+	private static final byte[] END = Token.token("</results>");
+	/** Client. */
+	private Client mClient;
+	/** XQ files for mapping. */
+	private List<File> mMappers = new ArrayList<File>();
+	/** Reducers, <code>null</code> for jobs without reducer. */
+	private List<ReduceClient> mReducers = new ArrayList<ReduceClient>();
+
+	/**
+	 * Constructor sets existing {@link Client} instance.
+	 * 
+	 * @param client
+	 *            {@link Client} instance.
+	 */
+	public FusedMapClient(final Client client) {
+		mClient = client;
+		for (String updateDataServer : mClient.checkMapperDb())
+			mClient.createMapperDb(updateDataServer);
+	}
+
+	/**
+	 * Adds a job.
+	 * 
+	 * @param xq
+	 *            XQ file for mapping.
+	 * @param reducer
+	 *            Reducer instance or <code>null</code>.
+	 * @return Id of the job.
+	 */
+	public int add(final File xq, final ReduceClient reducer) {
+		mMappers.add(xq);
+		mReducers.add(reducer);
+		System.out.println("Job " + (mMappers.size() - 1) + ": "
+				+ xq.getName());
+		return mMappers.size() - 1;
+	}
+
+	/**
+	 * Distributes the fused XQ file. The mapper of each job is composed for
+	 * its reducer, so sketch aggregations compute their sketches on the
+	 * servers.
+	 */
+	public void distribute() {
+		try {
+			String[] mappers = new String[mMappers.size()];
+			for (int i = 0; i < mappers.length; i++) {
+				mappers[i] = Token.string(QueryFile.read(mMappers.get(i)));
+				if (mReducers.get(i) != null)
+					mappers[i] = mReducers.get(i).compose(mappers[i]);
+			}
+			mClient.distributeXq(Token.token(QueryComposer.fuse(mappers)));
+		} catch (final IOException exce) {
+			exce.printStackTrace();
+		}
+	}
+
+	/**
+	 * Executes the fused query files in parallel. The results of each job are
+	 * piped into its reducer while the servers are still delivering. The
+	 * outputs of the jobs are printed in order of the jobs.
+	 */
+	public void execute() {
+		int jobs = mMappers.size();
+		final ResultPipe pipe = new ResultPipe();
+		final ResultPipe[] jobPipes = new ResultPipe[jobs];
+		final OutputStream[] jobInputs = new OutputStream[jobs];
+		List<Future<byte[]>> outputs = new ArrayList<Future<byte[]>>();
+		ExecutorService executor = Executors.newFixedThreadPool(jobs + 1);
+		try {
+			for (ReduceClient reducer : mReducers) {
+				if (reducer != null)
+					reducer.sendReducerTask();
+			}
+			for (int j = 0; j < jobs; j++) {
+				final ResultPipe jobPipe = new ResultPipe();
+				final ReduceClient reducer = mReducers.get(j);
+				jobPipes[j] = jobPipe;
+				jobInputs[j] = jobPipe.open("job" + j);
+				outputs.add(executor.submit(new Callable<byte[]>() {
+
+					@Override
+					public byte[] call() throws Exception {
+						ByteArrayOutputStream bos = new ByteArrayOutputStream();
+						try {
+							if (reducer == null) {
+								byte[] buffer = new byte[8192];
+								int i;
+								while ((i = jobPipe.read(buffer)) != -1)
+									bos.write(buffer, 0, i);
+							} else {
+								reducer.execute(jobPipe, bos);
+							}
+						} finally {
+							jobPipe.close();
+						}
+						return bos.toByteArray();
+					}
+				}));
+			}
+			Future<Void> demux = executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					InputStream is = new SequenceInputStream(
+							new ByteArrayInputStream(START),
+							new SequenceInputStream(pipe,
+									new ByteArrayInputStream(END)));
+					try {
+						new Demultiplexer().split(is, jobInputs);
+					} finally {
+						for (int j = 0; j < jobInputs.length; j++) {
+							jobInputs[j].close();
+							jobPipes[j].finish();
+						}
+						is.close();
+					}
+					return null;
+				}
+			});
+			executor.shutdown();
+			try {
+				mClient.execute("fused", pipe);
+			} finally {
+				pipe.finish();
+			}
+			demux.get();
+			for (int j = 0; j < jobs; j++) {
+				System.out.println("Results of job " + j + " ("
+						+ mMappers.get(j).getName() + "):");
+				System.out.write(outputs.get(j).get());
+				System.out.println();
+			}
+		} catch (final IOException exc) {
+			exc.printStackTrace();
+		} catch (final QueryException exc) {
+			exc.printStackTrace();
+		} catch (final InterruptedException exc) {
+			exc.printStackTrace();
+		} catch (final ExecutionException exc) {
+			exc.printStackTrace();
+		}
+	}
+
+	/**
+	 * Deletes the fused query file.
+	 */
+	public void cleanup() {
+		mClient.delete();
+	}
+}
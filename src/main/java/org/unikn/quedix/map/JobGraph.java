@@ -0,0 +1,307 @@
+package org.unikn.quedix.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.basex.query.QueryException;
+import org.basex.util.Token;
+import org.unikn.quedix.core.Client;
+import org.unikn.quedix.core.QueryComposer;
+import org.unikn.quedix.core.QueryFile;
+import org.unikn.quedix.core.ResultPipe;
+import org.unikn.quedix.core.SpillBuffer;
+import org.unikn.quedix.core.Tasks;
+import org.unikn.quedix.reduce.ReduceClient;
+import org.unikn.quedix.reduce.ShuffleReducer;
+
+/**
+ * This class executes a graph of map stages, e.g. the rounds of an iterative
+ * algorithm. The results of intermediate stages are not sent to this client,
+ * but stored in temporary databases on the data servers. A stage reads the
+ * results of its input stages in place: the results of an input stage
+ * <code>NAME</code> on the executing server are bound to the variable
+ * <code>$NAME</code>. If a stage has a key expression, its results are
+ * shuffled by the key between the servers first, so all results with the
+ * same key are read by the same server. Only the results of the final stage
+ * are returned, optionally reduced. The temporary databases of a stage are
+ * dropped as soon as no later stage reads them.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class JobGraph {
+
+	/** Client. */
+	private Client mClient;
+	/** Stages in the order of their declaration. */
+	private Map<String, Stage> mStages = new LinkedHashMap<String, Stage>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param client
+	 *            {@link Client} instance.
+	 */
+	public JobGraph(final Client client) {
+		mClient = client;
+	}
+
+	/**
+	 * Adds a stage. Its input stages have to be added before.
+	 * 
+	 * @param name
+	 *            Stage name, which is the variable name of its results.
+	 * @param xq
+	 *            XQ file for mapping.
+	 * @param inputs
+	 *            Names of the input stages.
+	 * @param key
+	 *            Key expression, relative to a result item, for shuffling the
+	 *            results or <code>null</code>, if they stay on their server.
+	 * @throws IOException
+	 *             XQ file could not be read.
+	 */
+	public void add(final String name, final File xq, final String[] inputs,
+			final String key) throws IOException {
+		if (mStages.containsKey(name))
+			throw new IllegalArgumentException("Stage exists already: " + name);
+		for (String input : inputs) {
+			if (!mStages.containsKey(input))
+				throw new IllegalArgumentException("Unknown input stage of "
+						+ name + ": " + input);
+		}
+		mStages.put(name,
+				new Stage(name, Token.string(QueryFile.read(xq)), inputs, key));
+	}
+
+	/**
+	 * Executes a stage with all stages it depends on and writes its results.
+	 * 
+	 * @param target
+	 *            Name of the final stage.
+	 * @param reducer
+	 *            Reducer of the final results or <code>null</code>.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 * @throws QueryException
+	 *             Reducer could not be executed.
+	 */
+	public void execute(final String target, final ReduceClient reducer,
+			final OutputStream output) throws IOException, QueryException {
+		Stage last = mStages.get(target);
+		if (last == null)
+			throw new IllegalArgumentException("Unknown stage: " + target);
+		List<Stage> plan = plan(last);
+		// index of the last stage reading each stage
+		Map<String, Integer> lastUse = new HashMap<String, Integer>();
+		for (int i = 0; i < plan.size(); i++) {
+			for (String input : plan.get(i).mInputs)
+				lastUse.put(input, i);
+		}
+		String job = "quedixdag" + System.nanoTime();
+		List<String> stored = new ArrayList<String>();
+		try {
+			for (int i = 0; i < plan.size() - 1; i++) {
+				Stage stage = plan.get(i);
+				long start = System.nanoTime();
+				String db = job + stage.mName;
+				stored.add(db);
+				store(stage, bind(stage, job), db);
+				long time = System.nanoTime() - start;
+				System.out.println("Time for stage " + stage.mName + ": "
+						+ time / 1000000 + " ms");
+				for (int s = 0; s <= i; s++) {
+					String name = plan.get(s).mName;
+					Integer use = lastUse.get(name);
+					if (use != null && use == i && stored.remove(job + name))
+						drop(job + name);
+				}
+			}
+			String mapper = bind(last, job);
+			if (reducer == null) {
+				mClient.execute(mapper, output);
+			} else {
+				reducer.sendReducerTask();
+				final ResultPipe pipe = new ResultPipe(SpillBuffer.THRESHOLD,
+						ResultPipe.CAPACITY);
+				ExecutorService es = Executors.newFixedThreadPool(1);
+				Future<Void> reduce = es.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						try {
+							reducer.execute(pipe, output);
+						} finally {
+							pipe.close();
+						}
+						return null;
+					}
+				});
+				es.shutdown();
+				try {
+					mClient.execute(reducer.compose(mapper), pipe);
+				} finally {
+					pipe.finish();
+				}
+				try {
+					reduce.get();
+				} catch (final InterruptedException exc) {
+					exc.printStackTrace();
+				} catch (final ExecutionException exc) {
+					throw new IOException(exc.getCause().getMessage());
+				}
+			}
+		} finally {
+			for (String db : stored)
+				drop(db);
+		}
+	}
+
+	/**
+	 * Returns the stages a stage depends on, including itself, in the order
+	 * of their declaration, which is a topological order.
+	 * 
+	 * @param target
+	 *            Final stage.
+	 * @return Stages to execute.
+	 */
+	private List<Stage> plan(final Stage target) {
+		Map<String, Stage> needed = new TreeMap<String, Stage>();
+		List<Stage> open = new ArrayList<Stage>();
+		open.add(target);
+		while (!open.isEmpty()) {
+			Stage stage = open.remove(open.size() - 1);
+			if (needed.put(stage.mName, stage) == null) {
+				for (String input : stage.mInputs)
+					open.add(mStages.get(input));
+			}
+		}
+		List<Stage> plan = new ArrayList<Stage>();
+		for (Stage stage : mStages.values()) {
+			if (needed.containsKey(stage.mName))
+				plan.add(stage);
+		}
+		return plan;
+	}
+
+	/**
+	 * Binds the stored results of the input stages to the mapper of a stage.
+	 * 
+	 * @param stage
+	 *            Stage.
+	 * @param job
+	 *            Prefix of the temporary databases.
+	 * @return Mapper query.
+	 */
+	private String bind(final Stage stage, final String job) {
+		Map<String, String> inputs = new LinkedHashMap<String, String>();
+		for (String input : stage.mInputs)
+			inputs.put(input, job + input);
+		return QueryComposer.bind(stage.mMapper, inputs);
+	}
+
+	/**
+	 * Executes the mapper of an intermediate stage on all servers and stores
+	 * its results in a temporary database of each server, shuffled by the
+	 * key of the stage, if any.
+	 * 
+	 * @param stage
+	 *            Stage.
+	 * @param mapper
+	 *            Mapper query with bound inputs.
+	 * @param db
+	 *            Name of the temporary database.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void store(final Stage stage, final String mapper, final String db)
+			throws IOException {
+		if (stage.mKey != null) {
+			new ShuffleReducer(mClient, null, stage.mKey).partition(mapper, db);
+			return;
+		}
+		final String query = QueryComposer.store(mapper, db);
+		List<String> servers = mClient.getServers();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+		for (final String server : servers) {
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					if (!mClient.createDb(server, db))
+						throw new IOException("Database " + db
+								+ " could not be created on " + server);
+					mClient.query(server, null, query, new OutputStream() {
+
+						@Override
+						public void write(final int b) {
+							// updating query, no results
+						}
+					});
+					return null;
+				}
+			}));
+		}
+		Tasks.await(executor, futures);
+	}
+
+	/**
+	 * Drops a temporary database on all servers.
+	 * 
+	 * @param db
+	 *            Database name.
+	 */
+	private void drop(final String db) {
+		for (String server : mClient.getServers())
+			mClient.dropDb(server, db);
+	}
+
+	/**
+	 * Stage of a job graph.
+	 */
+	private static class Stage {
+
+		/** Name. */
+		private String mName;
+		/** Mapper query. */
+		private String mMapper;
+		/** Names of the input stages. */
+		private String[] mInputs;
+		/** Key expression for shuffling or <code>null</code>. */
+		private String mKey;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param name
+		 *            Name.
+		 * @param mapper
+		 *            Mapper query.
+		 * @param inputs
+		 *            Names of the input stages.
+		 * @param key
+		 *            Key expression or <code>null</code>.
+		 */
+		Stage(final String name, final String mapper, final String[] inputs,
+				final String key) {
+			mName = name;
+			mMapper = mapper;
+			mInputs = inputs;
+			mKey = key;
+		}
+	}
+}
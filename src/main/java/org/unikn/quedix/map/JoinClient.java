@@ -0,0 +1,628 @@
+package org.unikn.quedix.map;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.basex.util.Token;
+import org.unikn.quedix.core.BloomFilter;
+import org.unikn.quedix.core.Client;
+import org.unikn.quedix.core.QueryComposer;
+import org.unikn.quedix.core.ResultPipe;
+import org.unikn.quedix.core.Tasks;
+import org.unikn.quedix.reduce.ShuffleReducer;
+
+/**
+ * This class joins two distributed collections on the data servers. Rows of
+ * both collections with equal first key values are returned as
+ * <code>&lt;match&gt;</code> elements. The strategy is chosen by the sizes
+ * of the collections:
+ * <ul>
+ * <li>Broadcast join: if the smaller collection fits the broadcast limit, its
+ * rows are stored on every server in a temporary database and joined with
+ * the local rows of the other collection.</li>
+ * <li>Bloom filter semi-join: otherwise, or if its rows turn out to exceed
+ * the limit, a Bloom filter of the keys of the smaller collection is sent to
+ * all servers, which return only the rows of the larger collection that can
+ * match. These rows are broadcast and joined with the local rows of the
+ * smaller collection.</li>
+ * <li>Shuffle join: if the filtered rows exceed the broadcast limit as well,
+ * the rows of the smaller collection and the filtered rows are partitioned
+ * by their keys with a {@link ShuffleReducer}, so rows with equal keys meet
+ * on one server, and are joined there.</li>
+ * </ul>
+ * If both collections are co-partitioned by their join keys, i.e. the path of
+ * the rows and the key expression of each collection form its partition key,
+ * the rows are joined locally on each server instead. As co-partitioning
+ * places whole documents by the first key value, this requires the rows of
+ * each document to have a single key, which is checked before; otherwise,
+ * one of the other strategies is chosen. Both collections have to exist on
+ * every server, which is ensured by co-partitioning.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class JoinClient {
+
+	/** Start tag. */
+	private static final byte[] START = Token.token("<results>");
+	/** End tag. */
+	private static final byte[] END = Token.token("</results>");
+	/** Document of the broadcast rows. */
+	private static final String BROADCAST = "broadcast.xml";
+	/** Rows of a partitioned collection, relative to its database. */
+	private static final String PARTITION = "/results/*";
+	/** Suffix of the partitions of the smaller collection. */
+	private static final String SMALL = "s";
+	/** Suffix of the partitions of the larger collection. */
+	private static final String LARGE = "l";
+
+	/** Client. */
+	private Client mClient;
+	/** Left collection. */
+	private Side mLeft;
+	/** Right collection. */
+	private Side mRight;
+	/** Maximum size of a broadcast collection in byte. */
+	private long mBroadcastLimit;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param client
+	 *            {@link Client} instance.
+	 * @param left
+	 *            Left collection.
+	 * @param right
+	 *            Right collection.
+	 * @param broadcastLimit
+	 *            Maximum size of a broadcast collection in byte.
+	 */
+	public JoinClient(final Client client, final Side left, final Side right,
+			final long broadcastLimit) {
+		mClient = client;
+		mLeft = left;
+		mRight = right;
+		mBroadcastLimit = broadcastLimit;
+	}
+
+	/**
+	 * Executes the join and writes the matches.
+	 * 
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public void execute(final OutputStream output) throws IOException {
+		List<String> servers = mClient.getServers();
+		if (servers.isEmpty())
+			return;
+		boolean leftSmall = mLeft.getSize() >= 0
+				&& (mRight.getSize() < 0 || mLeft.getSize() <= mRight.getSize());
+		Side small = leftSmall ? mLeft : mRight;
+		Side large = leftSmall ? mRight : mLeft;
+		long start = System.nanoTime();
+		if (mLeft.isPartitionedByKey() && mRight.isPartitionedByKey()
+				&& singleKeyed(servers, mLeft) && singleKeyed(servers, mRight)) {
+			System.out.println("Co-partitioned join by "
+					+ mLeft.getPartitionKey() + " and "
+					+ mRight.getPartitionKey());
+			join(servers, QueryComposer.localJoin(mLeft.rows(),
+					mLeft.getKey(), mRight.rows(), mRight.getKey()), start,
+					output);
+			return;
+		}
+		if (mLeft.getPartitionKey() != null
+				&& mRight.getPartitionKey() != null)
+			System.out.println("Partition keys differ from the join keys");
+		String db = "quedixjoin" + System.nanoTime();
+		try {
+			byte[] rows = small.getSize() >= 0
+					&& small.getSize() <= mBroadcastLimit ? collect(servers,
+					small.rows()) : null;
+			if (rows != null) {
+				System.out.println("Broadcast join, broadcasting "
+						+ small.getDb());
+				broadcast(servers, db, rows);
+				join(servers, QueryComposer.broadcastJoin(large.rows(),
+						large.getKey(), db, small.getKey(), leftSmall), start,
+						output);
+			} else {
+				System.out.println("Bloom filter semi-join, filtering "
+						+ large.getDb() + " by the keys of " + small.getDb());
+				BloomFilter filter = filter(servers, small);
+				String probe = QueryComposer.bloomProbe(large.rows(),
+						large.getKey(), filter.toHex(), filter.getBits(),
+						filter.getHashes());
+				byte[] probed = collect(servers, probe);
+				if (probed != null) {
+					broadcast(servers, db, probed);
+					join(servers, QueryComposer.broadcastJoin(small.rows(),
+							small.getKey(), db, large.getKey(), !leftSmall),
+							start, output);
+				} else {
+					System.out.println("Shuffle join, partitioning "
+							+ small.getDb() + " and the filtered rows of "
+							+ large.getDb());
+					shuffleJoin(servers, db, small, large, probe, leftSmall,
+							start, output);
+				}
+			}
+		} finally {
+			for (String server : servers) {
+				mClient.dropDb(server, db);
+				mClient.dropDb(server, db + SMALL);
+				mClient.dropDb(server, db + LARGE);
+			}
+		}
+	}
+
+	/**
+	 * Checks if the rows of each document of a co-partitioned collection
+	 * have a single key.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @param side
+	 *            Collection.
+	 * @return Result of check.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private boolean singleKeyed(final List<String> servers, final Side side)
+			throws IOException {
+		long mixed = 0;
+		for (byte[] count : query(servers, QueryComposer.mixedKeys(
+				side.getDb(), side.getRows(), side.getKey())))
+			mixed += Long.parseLong(Token.string(count).trim());
+		if (mixed > 0)
+			System.out.println(mixed + " documents of " + side.getDb()
+					+ " have rows of several keys");
+		return mixed == 0;
+	}
+
+	/**
+	 * Partitions the rows of the smaller collection and the filtered rows of
+	 * the larger one by their keys on the servers and joins the partitions
+	 * locally on each server. The probe query is executed once more, while
+	 * its rows are partitioned, so they are never buffered by this client.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @param db
+	 *            Prefix of the names of the temporary databases.
+	 * @param small
+	 *            Smaller collection.
+	 * @param large
+	 *            Larger collection.
+	 * @param probe
+	 *            Query returning the filtered rows of the larger collection.
+	 * @param leftSmall
+	 *            Flag if the smaller collection is the left one.
+	 * @param start
+	 *            Start time of the join.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void shuffleJoin(final List<String> servers, final String db,
+			final Side small, final Side large, final String probe,
+			final boolean leftSmall, final long start,
+			final OutputStream output) throws IOException {
+		new ShuffleReducer(mClient, null, small.getKey()).partition(
+				small.rows(), db + SMALL);
+		new ShuffleReducer(mClient, null, large.getKey()).partition(probe,
+				db + LARGE);
+		String smallRows = "db:open(" + QueryComposer.literal(db + SMALL)
+				+ ")" + PARTITION;
+		String largeRows = "db:open(" + QueryComposer.literal(db + LARGE)
+				+ ")" + PARTITION;
+		join(servers, leftSmall ? QueryComposer.localJoin(smallRows,
+				small.getKey(), largeRows, large.getKey()) : QueryComposer
+				.localJoin(largeRows, large.getKey(), smallRows,
+						small.getKey()), start, output);
+	}
+
+	/**
+	 * Builds a Bloom filter of the keys of a collection. The filter is sized
+	 * by the number of rows; the bit positions are computed on the servers.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @param side
+	 *            Collection.
+	 * @return Bloom filter.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private BloomFilter filter(final List<String> servers, final Side side)
+			throws IOException {
+		long rows = 0;
+		for (byte[] count : query(servers, QueryComposer.count(side.rows())))
+			rows += Long.parseLong(Token.string(count).trim());
+		BloomFilter filter = new BloomFilter(rows, BloomFilter.FPP);
+		String positions = QueryComposer.bloomPositions(side.rows(),
+				side.getKey(), filter.getBits(), filter.getHashes());
+		for (byte[] result : query(servers, positions)) {
+			for (String p : Token.string(result).trim().split("\\s+")) {
+				if (p.length() > 0)
+					filter.set(Integer.parseInt(p));
+			}
+		}
+		System.out.println("Bloom filter: " + rows + " keys, "
+				+ filter.getBits() + " bits, " + filter.getHashes()
+				+ " hashes");
+		return filter;
+	}
+
+	/**
+	 * Collects the results of a query from all servers as children of one
+	 * root element. Results are only buffered up to the broadcast limit;
+	 * beyond it, the remaining results are read and discarded.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @param query
+	 *            Query returning rows.
+	 * @return Collected rows or <code>null</code>, if they exceed the
+	 *         broadcast limit.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private byte[] collect(final List<String> servers, final String query)
+			throws IOException {
+		final AtomicLong size = new AtomicLong(START.length + END.length);
+		List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+		ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+		for (final String server : servers) {
+			futures.add(executor.submit(new Callable<byte[]>() {
+
+				@Override
+				public byte[] call() throws Exception {
+					ByteArrayOutputStream bos = new ByteArrayOutputStream() {
+
+						@Override
+						public synchronized void write(final byte[] b,
+								final int off, final int len) {
+							if (size.addAndGet(len) <= mBroadcastLimit)
+								super.write(b, off, len);
+						}
+
+						@Override
+						public synchronized void write(final int b) {
+							write(new byte[] { (byte) b }, 0, 1);
+						}
+					};
+					mClient.query(server, null, query, bos);
+					return bos.toByteArray();
+				}
+			}));
+		}
+		List<byte[]> results = await(executor, futures);
+		if (size.get() > mBroadcastLimit) {
+			System.out.println("Broadcast rows exceed " + mBroadcastLimit
+					+ " bytes");
+			return null;
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(START);
+		for (byte[] result : results)
+			bos.write(result);
+		bos.write(END);
+		System.out.println("Broadcast rows: " + bos.size() + " bytes");
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Stores rows on every server in a temporary database.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @param db
+	 *            Name of the temporary database.
+	 * @param rows
+	 *            Rows, wrapped by one root element.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void broadcast(final List<String> servers, final String db,
+			final byte[] rows) throws IOException {
+		List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+		ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+		for (final String server : servers) {
+			futures.add(executor.submit(new Callable<byte[]>() {
+
+				@Override
+				public byte[] call() throws Exception {
+					if (!mClient.createDb(server, db)
+							|| !mClient.add(server, db, BROADCAST,
+									new ByteArrayInputStream(rows)))
+						throw new IOException("Rows could not be broadcast to "
+								+ server);
+					return null;
+				}
+			}));
+		}
+		await(executor, futures);
+	}
+
+	/**
+	 * Executes a join query on all servers in parallel and streams the
+	 * matches to the output.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @param query
+	 *            Join query.
+	 * @param start
+	 *            Start time of the join.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void join(final List<String> servers, final String query,
+			final long start, final OutputStream output) throws IOException {
+		final ResultPipe pipe = new ResultPipe();
+		final List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+		ExecutorService executor = Executors
+				.newFixedThreadPool(servers.size() + 1);
+		for (final String server : servers) {
+			futures.add(executor.submit(new Callable<byte[]>() {
+
+				@Override
+				public byte[] call() throws Exception {
+					OutputStream out = pipe.open(server);
+					try {
+						mClient.query(server, null, query, out);
+					} finally {
+						out.close();
+					}
+					return null;
+				}
+			}));
+		}
+		executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				try {
+					for (Future<byte[]> future : futures)
+						future.get();
+				} finally {
+					pipe.finish();
+				}
+				return null;
+			}
+		});
+		long time = System.nanoTime() - start;
+		System.out.println("Time for preparing the join: " + time / 1000000
+				+ " ms");
+		System.out.println("Join result: ");
+		try {
+			byte[] buffer = new byte[8192];
+			int i;
+			while ((i = pipe.read(buffer)) != -1)
+				output.write(buffer, 0, i);
+			output.flush();
+		} finally {
+			pipe.close();
+		}
+		await(executor, futures);
+	}
+
+	/**
+	 * Executes a query on all servers in parallel.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @param query
+	 *            Query.
+	 * @return Results of the servers.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private List<byte[]> query(final List<String> servers, final String query)
+			throws IOException {
+		List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+		ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+		for (final String server : servers) {
+			futures.add(executor.submit(new Callable<byte[]>() {
+
+				@Override
+				public byte[] call() throws Exception {
+					ByteArrayOutputStream bos = new ByteArrayOutputStream();
+					mClient.query(server, null, query, bos);
+					return bos.toByteArray();
+				}
+			}));
+		}
+		return await(executor, futures);
+	}
+
+	/**
+	 * Waits for the termination of all tasks.
+	 * 
+	 * @param executor
+	 *            {@link ExecutorService} executing the tasks.
+	 * @param futures
+	 *            Futures of the tasks.
+	 * @return Results of the tasks.
+	 * @throws IOException
+	 *             A task failed.
+	 */
+	private static List<byte[]> await(final ExecutorService executor,
+			final List<Future<byte[]>> futures) throws IOException {
+		Tasks.terminate(executor);
+		List<byte[]> results = new ArrayList<byte[]>();
+		for (Future<byte[]> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (final InterruptedException exc) {
+				exc.printStackTrace();
+			} catch (final ExecutionException exc) {
+				throw new IOException(exc.getCause().getMessage());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * One collection of a join.
+	 */
+	public static class Side {
+
+		/** Separator of the specification. */
+		private static final String COMMA = ",";
+
+		/** Database name. */
+		private String mDb;
+		/** Path of the rows, relative to the database. */
+		private String mRows;
+		/** Key expression, relative to a row. */
+		private String mKey;
+		/** Size in byte, -1 if unknown. */
+		private long mSize;
+		/** Partition key of the collection or <code>null</code>. */
+		private String mPartitionKey;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param db
+		 *            Database name.
+		 * @param rows
+		 *            Path of the rows, relative to the database, e.g.
+		 *            <code>//country</code>.
+		 * @param key
+		 *            Key expression, relative to a row, e.g.
+		 *            <code>@id</code>.
+		 * @param size
+		 *            Size in byte, -1 if unknown.
+		 * @param partitionKey
+		 *            Partition key of a co-partitioned collection or
+		 *            <code>null</code>.
+		 */
+		public Side(final String db, final String rows, final String key,
+				final long size, final String partitionKey) {
+			mDb = db;
+			mRows = rows;
+			mKey = key;
+			mSize = size;
+			mPartitionKey = partitionKey;
+		}
+
+		/**
+		 * Parses a specification <code>DB,ROWS,KEY</code>, e.g.
+		 * <code>factbook,//country,@id</code>.
+		 * 
+		 * @param spec
+		 *            Specification.
+		 * @param size
+		 *            Size in byte, -1 if unknown.
+		 * @param partitionKey
+		 *            Partition key of a co-partitioned collection or
+		 *            <code>null</code>.
+		 * @return {@link Side} instance.
+		 */
+		public static Side parse(final String spec, final long size,
+				final String partitionKey) {
+			String[] parts = spec.split(COMMA, 3);
+			if (parts.length < 3)
+				throw new IllegalArgumentException(
+						"Join collection has to be given as DB,ROWS,KEY: "
+								+ spec);
+			return new Side(parts[0], parts[1], parts[2], size, partitionKey);
+		}
+
+		/**
+		 * Returns the expression of all rows.
+		 * 
+		 * @return Rows expression.
+		 */
+		String rows() {
+			return "db:open(" + QueryComposer.literal(mDb) + ")" + mRows;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return database name.
+		 */
+		public String getDb() {
+			return mDb;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return path of the rows, relative to the database.
+		 */
+		public String getRows() {
+			return mRows;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return key expression.
+		 */
+		public String getKey() {
+			return mKey;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return size in byte, -1 if unknown.
+		 */
+		public long getSize() {
+			return mSize;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return partition key or <code>null</code>.
+		 */
+		public String getPartitionKey() {
+			return mPartitionKey;
+		}
+
+		/**
+		 * Checks if the collection is co-partitioned by its join key, i.e. if
+		 * the path of the rows followed by the key expression is the
+		 * partition key path.
+		 * 
+		 * @return Result of check.
+		 */
+		boolean isPartitionedByKey() {
+			return mPartitionKey != null
+					&& path(mRows + "/" + mKey).equals(path(mPartitionKey));
+		}
+
+		/**
+		 * Normalizes a key path. Paths starting with a descendant step match
+		 * at any depth, as relative partition key paths do.
+		 * 
+		 * @param path
+		 *            Key path.
+		 * @return Normalized path.
+		 */
+		private static String path(final String path) {
+			String p = path.trim().replaceAll("\\s+", "").replaceAll("/\\./",
+					"/");
+			return p.startsWith("//") ? p.substring(2) : p;
+		}
+	}
+}
@@ -1,16 +1,38 @@
 package org.unikn.quedix.map;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.basex.query.QueryException;
 import org.basex.util.Token;
 import org.unikn.quedix.core.Client;
+import org.unikn.quedix.core.GlobalIndex;
+import org.unikn.quedix.core.MetaData;
+import org.unikn.quedix.core.PartFileSink;
+import org.unikn.quedix.core.QueryComposer;
+import org.unikn.quedix.core.QueryFile;
+import org.unikn.quedix.core.ResultPipe;
+import org.unikn.quedix.core.SpillBuffer;
+import org.unikn.quedix.core.Tasks;
+import org.unikn.quedix.reduce.Aggregator;
 import org.unikn.quedix.reduce.ReduceClient;
+import org.unikn.quedix.reduce.ShuffleReducer;
+import org.unikn.quedix.reduce.SortMerger;
+import org.unikn.quedix.reduce.SortOrder;
+import org.unikn.quedix.reduce.TreeReducer;
 
 /**
  * This class is the client representation for executing/sending map XQuery
@@ -20,18 +42,36 @@ import org.unikn.quedix.reduce.ReduceClient;
  */
 public class MapClient {
 
-	/** Start tag. */
-	private static final String START = "<results>";
-	/** End tag. */
-	private static final String END = "</results>";
 	/** Client. */
 	private Client mClient;
 	/** XQ file name for mapping. */
 	private String mMappingXq;
 	/** XQ file for mapping. */
 	private File mMappingFile;
+	/** Optional XQ file for combining the map results on each server. */
+	private File mCombinerFile;
 	/** Reducer. */
 	private ReduceClient mReducer;
+	/** Size of buffered map results, after which they are spilled to disk. */
+	private long mSpillThreshold = SpillBuffer.THRESHOLD;
+	/** Fan-in of the tree reduce on the data servers, 0 for local reduce. */
+	private int mFanIn;
+	/** Key expression of the shuffle or <code>null</code>. */
+	private String mShuffleKey;
+	/** Compact intermediate format for the map results. */
+	private boolean mCompact;
+	/** Order of an ordered job or <code>null</code>. */
+	private SortOrder mOrder;
+	/** Number of results of a ranking job, 0 for all results. */
+	private int mLimit;
+	/** Sampling fraction of the documents, 1 for all documents. */
+	private double mSample = 1;
+	/** Seed of the sample. */
+	private long mSeed;
+	/** Listener of online estimates or <code>null</code>. */
+	private Aggregator.ProgressListener mProgress;
+	/** Meta data with the recorded server sizes or <code>null</code>. */
+	private MetaData mSizes;
 
 	/**
 	 * Constructor sets existing {@link Client} instance.
@@ -72,52 +112,326 @@ public class MapClient {
 	}
 
 	/**
-	 * Distributes a XQ file.
+	 * Distributes a XQ file. If a combiner is set, it is shipped together with
+	 * the mapper. If the compact format is set and the map results are
+	 * reduced locally, the mapper is wrapped by the encoding functions.
 	 */
 	public void distribute() {
 		try {
-			mClient.distributeXq(readByteArray(mMappingFile));
+			String xq = mapper();
+			if (compact())
+				xq = QueryComposer.encode(xq);
+			mClient.distributeXq(Token.token(xq));
 		} catch (final IOException exce) {
 			exce.printStackTrace();
 		}
 	}
 
 	/**
-	 * Executes query files in parallel.
-	 * 
-	 * @param xq
-	 *            XQ which has to be executed in parallel.
+	 * Executes query files in parallel. If a reducer is set, the map results
+	 * are piped into the reducer, which starts parsing the results of each
+	 * server as soon as it delivers.
 	 */
 	public void execute() {
 		try {
-		        if(mReducer==null){
-                            String[] res = mClient.execute(mMappingXq);
-                            for (String r : res)
-                                System.out.println(r);
-		        }else {
-//		                    final PipedOutputStream pos = new PipedOutputStream();
-//                            final PipedInputStream pis = new PipedInputStream(pos);
-//                            executeReadPipeThread(pis);
-                            mReducer.sendReducerTask();
-//                            final DataOutputStream out = new DataOutputStream(
-//                                new BufferedOutputStream(pos));
-                            ByteArrayOutputStream out = new ByteArrayOutputStream();
-                            out.write(Token.token(START));
-                            mClient.execute(mMappingXq, out);
-                            out.write(Token.token(END));
-                            out.close();
-                            ByteArrayInputStream is = new ByteArrayInputStream(out.toByteArray());
-                            mReducer.execute(is, null);
-//                            pos.close();
-                            is.close();
-		            }
+			if (mOrder != null) {
+				System.out.println(mLimit > 0 ? "Top " + mLimit + " results: "
+						: "Ordered results: ");
+				new SortMerger(mClient, mOrder).execute(mapper(), mLimit,
+						System.out);
+				System.out.println();
+			} else if (mReducer == null) {
+				String[] res = mClient.execute(mMappingXq);
+				for (String r : res)
+					System.out.println(r);
+			} else if (!local() && mShuffleKey != null) {
+				System.out.println("Complete reduce result: ");
+				new ShuffleReducer(mClient, mReducer.getQuery(), mShuffleKey)
+						.execute(mapper(), System.out);
+				System.out.println();
+			} else if (!local()) {
+				System.out.println("Complete reduce result: ");
+				new TreeReducer(mClient, mReducer.getQuery(), mFanIn).execute(
+						mapper(), System.out);
+				System.out.println();
+			} else {
+				mReducer.setCompact(compact());
+				if (mProgress != null) {
+					List<String> servers = mClient.getServers();
+					mReducer.setOnline(servers.size(), mProgress);
+					if (!mReducer.setSizes(mSizes == null ? null : mSizes
+							.getStorageSizes(servers))
+							&& mReducer.isAggregation())
+						System.out.println("No server sizes recorded: "
+								+ "estimates assume equally sized servers and "
+								+ "are biased low, if small servers complete "
+								+ "first.");
+				}
+				mReducer.sendReducerTask();
+				// estimates are reported before the complete result
+				final OutputStream out = mProgress == null ? System.out
+						: new ByteArrayOutputStream();
+				if (mProgress == null)
+					System.out.println("Complete reduce result: ");
+				final ResultPipe pipe = new ResultPipe(mSpillThreshold,
+						ResultPipe.CAPACITY);
+				ExecutorService es = Executors.newFixedThreadPool(1);
+				Future<Void> reduce = es.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						try {
+							mReducer.execute(pipe, out);
+						} finally {
+							pipe.close();
+						}
+						return null;
+					}
+				});
+				es.shutdown();
+				try {
+					if (units())
+						sample(pipe);
+					else
+						mClient.execute(mMappingXq, pipe);
+				} finally {
+					pipe.finish();
+				}
+				reduce.get();
+				if (mProgress != null) {
+					System.out.println("Complete reduce result: ");
+					System.out.write(((ByteArrayOutputStream) out)
+							.toByteArray());
+				}
+				System.out.println();
+			}
 		} catch (final IOException exc) {
 			exc.printStackTrace();
 		} catch (final QueryException exc) {
 			exc.printStackTrace();
+		} catch (final InterruptedException exc) {
+			exc.printStackTrace();
+		} catch (final ExecutionException exc) {
+			exc.printStackTrace();
+		}
+	}
+
+	/**
+	 * Executes query files in parallel and writes the results of each server
+	 * concurrently into its own part file of the given directory. A manifest
+	 * describes the written parts. It is only written if all servers have
+	 * succeeded, so a truncated part is never listed as complete.
+	 * 
+	 * @param dir
+	 *            Output directory.
+	 */
+	public void execute(final File dir) {
+		try {
+			PartFileSink sink = new PartFileSink(dir);
+			mClient.execute(mMappingXq, sink);
+			File manifest = sink.writeManifest();
+			System.out.println("Map results written, see "
+					+ manifest.getAbsolutePath());
+		} catch (final IOException exc) {
+			exc.printStackTrace();
 		}
 	}
 
+	/**
+	 * Sets an optional combiner, which is executed on each data server over
+	 * the map results of that server, so that only partial aggregates are
+	 * sent back to the reducer. The map results of a server are bound to the
+	 * variable <code>$results</code>, e.g.
+	 * <code>&lt;count&gt;{ count($results/*) }&lt;/count&gt;</code>.
+	 * 
+	 * @param xq
+	 *            XQ file for combining or <code>null</code>.
+	 */
+	public void setCombiner(final File xq) {
+		mCombinerFile = xq;
+	}
+
+	/**
+	 * Switches to the tree reduce, which reduces the map results on the data
+	 * servers in groups of the given fan-in, so that only the root result
+	 * reaches this client.
+	 * 
+	 * @param fanIn
+	 *            Fan-in, at least 2, or 0 for reducing locally.
+	 * @throws IllegalArgumentException
+	 *             The reducer is a built-in aggregation, which is only
+	 *             reduced locally.
+	 */
+	public void setTreeReduce(final int fanIn) {
+		if (fanIn > 1)
+			checkLocal();
+		mFanIn = fanIn;
+	}
+
+	/**
+	 * Switches to the distributed reduce with a key based shuffle. The map
+	 * results of all servers are partitioned by the key expression and each
+	 * partition is reduced on the server owning it.
+	 * 
+	 * @param key
+	 *            Key expression, relative to a map result item, e.g.
+	 *            <code>@country</code>, or <code>null</code> for reducing
+	 *            locally.
+	 * @throws IllegalArgumentException
+	 *             The reducer is a built-in aggregation, which is only
+	 *             reduced locally.
+	 */
+	public void setShuffle(final String key) {
+		if (key != null)
+			checkLocal();
+		mShuffleKey = key;
+	}
+
+	/**
+	 * Rejects distributed reduce modes for built-in aggregations.
+	 */
+	private void checkLocal() {
+		if (mReducer != null && mReducer.isAggregation())
+			throw new IllegalArgumentException("Built-in aggregations are"
+					+ " reduced locally, without tree reduce or shuffle.");
+	}
+
+	/**
+	 * Switches to an ordered job, which returns the results of all servers
+	 * in the given order. Each server sorts its results, which are merged on
+	 * this client while they are streamed. A reducer is not executed.
+	 * 
+	 * @param order
+	 *            Order of the results or <code>null</code>.
+	 */
+	public void setOrder(final SortOrder order) {
+		setTopK(order, 0);
+	}
+
+	/**
+	 * Switches to a ranking job, which returns only the first results of all
+	 * servers in the given order. Each server returns its local top k, which
+	 * are merged on this client. A reducer is not executed.
+	 * 
+	 * @param order
+	 *            Order of the results or <code>null</code>.
+	 * @param k
+	 *            Number of results.
+	 */
+	public void setTopK(final SortOrder order, final int k) {
+		mOrder = order;
+		mLimit = k;
+	}
+
+	/**
+	 * Switches the map results to the compact intermediate format, which is
+	 * decoded by the reducer without XML parsing. It is only used if the map
+	 * results are reduced locally.
+	 * 
+	 * @param compact
+	 *            Compact format.
+	 */
+	public void setCompact(final boolean compact) {
+		mCompact = compact;
+	}
+
+	/**
+	 * Switches to the approximate mode, which runs the mapper over a random
+	 * sample of the documents. Each server selects its documents
+	 * independently, so the sample is stratified by the placement of the
+	 * documents. Built-in additive aggregations are scaled to estimates.
+	 * <p>
+	 * If the mapper opens exactly one collection and is reduced by a built-in
+	 * additive aggregation without combiner, the map results are returned
+	 * per sampled document, so the estimates get confidence intervals, see
+	 * {@link Aggregator}. Each server is then sampled by its own query: with
+	 * the recorded server sizes, servers smaller than half of the average
+	 * size are sampled with a higher fraction, so they contribute at least
+	 * half of an equal share of the sampled bytes, instead of being missed by
+	 * a small sample. The estimates weight each document by the fraction of
+	 * its server, so they stay unbiased. Otherwise all servers are sampled
+	 * with the same fraction and estimates are given without intervals.
+	 * </p>
+	 * 
+	 * @param fraction
+	 *            Sampling fraction, greater than 0 and at most 1.
+	 * @param meta
+	 *            Meta data with the recorded server sizes or
+	 *            <code>null</code>.
+	 */
+	public void setSample(final double fraction, final MetaData meta) {
+		if (fraction <= 0 || fraction > 1)
+			throw new IllegalArgumentException(
+					"Sampling fraction has to be in (0, 1]: " + fraction);
+		mSample = fraction;
+		mSizes = meta;
+		// the hash is seeded in [1, 2^31 - 2]
+		mSeed = 1 + new Random().nextInt(Integer.MAX_VALUE - 1);
+		if (mReducer != null)
+			mReducer.setSample(fraction);
+		if (fraction < 1)
+			System.out.println("Sampling " + fraction * 100
+					+ " % of the documents, seed " + mSeed);
+	}
+
+	/**
+	 * Sets a listener, which receives estimates of a built-in aggregation
+	 * after each server has delivered its map results, until the complete
+	 * result is written. The estimates are weighted by the server sizes
+	 * recorded in the meta data. Without them, the servers are assumed to be
+	 * equally sized, so estimates are biased low, as small servers tend to
+	 * complete first.
+	 * 
+	 * @param listener
+	 *            Listener of the estimates or <code>null</code>.
+	 * @param meta
+	 *            Meta data of the distributed collection or
+	 *            <code>null</code>.
+	 */
+	public void setOnline(final Aggregator.ProgressListener listener,
+			final MetaData meta) {
+		mProgress = listener;
+		mSizes = meta;
+	}
+
+	/**
+	 * Setter.
+	 * 
+	 * @param threshold
+	 *            Size of buffered map results in bytes, after which they are
+	 *            spilled into a memory mapped temporary file.
+	 */
+	public void setSpillThreshold(final long threshold) {
+		mSpillThreshold = threshold;
+	}
+
+	/**
+	 * Routes the following executions to the servers owning the key values of
+	 * an inclusive range, looked up in a global secondary index. Equality
+	 * lookups use the same value for both bounds.
+	 * 
+	 * @param index
+	 *            {@link GlobalIndex} instance.
+	 * @param path
+	 *            Indexed key path.
+	 * @param from
+	 *            Lower bound or <code>null</code>.
+	 * @param to
+	 *            Upper bound or <code>null</code>.
+	 * @return Owning servers.
+	 * @throws IOException
+	 *             No server owns a key value of the range.
+	 */
+	public Set<String> route(final GlobalIndex index, final String path,
+			final String from, final String to) throws IOException {
+		Set<String> servers = GlobalIndex.servers(index.lookup(path, from, to));
+		if (servers.isEmpty())
+			throw new IOException("No server owns a key value of " + path
+					+ " in [" + from + ", " + to + "].");
+		System.out.println("Routed to servers: " + servers);
+		mClient.restrict(servers);
+		return servers;
+	}
+
 	/**
 	 * Deletes a query file over HTTP DELETE.
 	 * 
@@ -129,64 +443,151 @@ public class MapClient {
 	}
 
 	/**
-	 * Reads input file and writes it to a byte array.
+	 * Returns the mapper query, restricted to the sample and composed with the
+	 * combiner if they are set. Sketch aggregations compute their sketches on
+	 * the servers.
+	 * 
+	 * @return Mapper query.
+	 * @throws IOException
+	 *             XQ file could not be read.
+	 */
+	private String mapper() throws IOException {
+		String xq = Token.string(QueryFile.read(mMappingFile));
+		if (mSample < 1)
+			xq = QueryComposer.sample(xq, mSample, mSeed);
+		if (mCombinerFile != null)
+			xq = QueryComposer.combine(xq,
+					Token.string(QueryFile.read(mCombinerFile)));
+		if (mReducer != null)
+			xq = mReducer.compose(xq);
+		return xq;
+	}
+
+	/**
+	 * Returns the mapper query of a server, which returns the map results of
+	 * each sampled document separately.
+	 * 
+	 * @param fraction
+	 *            Sampling fraction of the server.
+	 * @return Mapper query or <code>null</code>, if the mapper does not open
+	 *         exactly one collection.
+	 * @throws IOException
+	 *             XQ file could not be read.
+	 */
+	private String unitMapper(final double fraction) throws IOException {
+		String xq = QueryComposer.sampleUnits(
+				Token.string(QueryFile.read(mMappingFile)), fraction, mSeed);
+		return xq == null ? null : mReducer.compose(xq);
+	}
+
+	/**
+	 * Checks if the map results are sampled per document, see
+	 * {@link #setSample(double, MetaData)}.
 	 * 
-	 * @param file
-	 *            File name.
-	 * @return Byte array representation of file.
+	 * @return Result of check.
+	 * @throws IOException
+	 *             XQ file could not be read.
+	 */
+	private boolean units() throws IOException {
+		if (mSample >= 1 || !local() || !mReducer.isAdditive()
+				|| mCombinerFile != null)
+			return false;
+		if (unitMapper(mSample) != null)
+			return true;
+		System.out.println("The mapper does not open exactly one collection:"
+				+ " estimates are given without confidence intervals.");
+		return false;
+	}
+
+	/**
+	 * Returns the sampling fractions of the servers. With recorded sizes,
+	 * a server smaller than half of the average size gets the fraction,
+	 * which samples half of its equal share of the sampled bytes.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @return Fractions keyed by server.
+	 */
+	private Map<String, Double> fractions(final List<String> servers) {
+		Map<String, Long> sizes = mSizes == null ? null : mSizes
+				.getStorageSizes(servers);
+		double total = 0;
+		if (sizes != null) {
+			for (long size : sizes.values())
+				total += size;
+		} else {
+			System.out.println("No server sizes recorded: all servers are"
+					+ " sampled with the same fraction.");
+		}
+		Map<String, Double> fractions = new HashMap<String, Double>();
+		for (String server : servers) {
+			double fraction = mSample;
+			if (sizes != null)
+				fraction = Math.min(1, Math.max(mSample, mSample * total
+						/ (2 * servers.size() * sizes.get(server))));
+			if (fraction != mSample)
+				System.out.println("Sampling " + fraction * 100
+						+ " % of the documents of " + server);
+			fractions.put(server, fraction);
+		}
+		return fractions;
+	}
+
+	/**
+	 * Executes the mapper on all servers, each with its own sampling
+	 * fraction, and writes the map results per sampled document into the
+	 * pipe.
+	 * 
+	 * @param pipe
+	 *            {@link ResultPipe} for the map results.
 	 * @throws IOException
 	 *             Exception occurred.
 	 */
-	private byte[] readByteArray(final File file) throws IOException {
-		BufferedInputStream input = new BufferedInputStream(
-				new FileInputStream(file));
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		int i;
-		while ((i = input.read()) != -1)
-			bos.write(i);
-		input.close();
-		byte[] content = bos.toByteArray();
-		bos.close();
-		return content;
-	}
-
-//	/**
-//	 * Reads data out of {@link InputStream}.
-//	 * 
-//	 * @param is
-//	 *            {@link InputStream} instance.
-//	 */
-//	private void readData(final InputStream is) {
-//		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
-//
-//		try {
-//			mReducer.execute(in, null);
-//			in.close();
-//		} catch (final IOException exc) {
-//			exc.printStackTrace();
-//		} catch (final QueryException exc) {
-//			exc.printStackTrace();
-//		}
-//	}
-//
-//	/**
-//	 * Executes a reader thread for receiving items from
-//	 * {@link PipedOutputStream}.
-//	 * 
-//	 * @param pis
-//	 *            {@link PipedInputStream} instance.
-//	 */
-//	private void executeReadPipeThread(final InputStream pis) {
-//		ExecutorService es = Executors.newFixedThreadPool(1);
-//		Callable<Void> task = new Callable<Void>() {
-//			@Override
-//			public Void call() throws Exception {
-//				readData(pis);
-//				return null;
-//			}
-//		};
-//		es.submit(task);
-//		es.shutdown();
-//
-//	}
+	private void sample(final ResultPipe pipe) throws IOException {
+		List<String> servers = mClient.getServers();
+		if (servers.isEmpty())
+			return;
+		Map<String, Double> fractions = fractions(servers);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+		for (final String server : servers) {
+			final String query = unitMapper(fractions.get(server));
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					OutputStream out = pipe.open(server);
+					try {
+						mClient.query(server, null, query, out);
+					} finally {
+						out.close();
+					}
+					return null;
+				}
+			}));
+		}
+		Tasks.await(executor, futures);
+	}
+
+	/**
+	 * Checks if the map results are reduced locally. Built-in aggregations
+	 * are always executed locally.
+	 * 
+	 * @return Result of check.
+	 */
+	private boolean local() {
+		return mReducer != null && mShuffleKey == null && mFanIn <= 1;
+	}
+
+	/**
+	 * Checks if the map results are encoded in the compact format, i.e. if it
+	 * is set and the results are reduced locally in one partition by an
+	 * XQuery reducer.
+	 * 
+	 * @return Result of check.
+	 */
+	private boolean compact() {
+		return mCompact && local() && !mReducer.isPartitioned()
+				&& !mReducer.isAggregation();
+	}
 }
@@ -0,0 +1,381 @@
+package org.unikn.quedix.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.basex.query.QueryException;
+import org.basex.util.Token;
+import org.unikn.quedix.core.Client;
+import org.unikn.quedix.core.MetaData;
+import org.unikn.quedix.core.QueryFile;
+import org.unikn.quedix.core.Tasks;
+import org.unikn.quedix.reduce.Aggregator;
+import org.unikn.quedix.reduce.ReduceClient;
+
+/**
+ * This class is a materialized map-reduce view over a distributed
+ * collection. The view keeps the map results of every server and the reduced
+ * result in its directory. A refresh compares the versions of the servers,
+ * recorded in the meta data file of the collection during distribution, with
+ * the versions of the last refresh, and re-runs the mapper only on the
+ * servers, whose documents have changed or which have been invalidated by
+ * {@link #invalidate(String)}. The reducer then runs locally over the kept map
+ * results. Reading the view returns the stored result without querying the
+ * servers.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class MaterializedView {
+
+	/** Definition and state file. */
+	private static final String VIEW = "view.properties";
+	/** Reduced result file. */
+	private static final String RESULT = "result.xml";
+	/** Suffix of the map result files. */
+	private static final String MAP = ".map";
+	/** Property of the mapper file. */
+	private static final String MAPPER = "map";
+	/** Property of the reducer file. */
+	private static final String REDUCER = "reduce";
+	/** Property of the built-in aggregation. */
+	private static final String AGGREGATION = "aggregation";
+	/** Property of the meta data file of the collection. */
+	private static final String META = "meta";
+	/** Property prefix of the server versions of the last refresh. */
+	private static final String VERSION = "version.";
+	/** Property prefix of invalidated servers. */
+	private static final String INVALID = "invalid.";
+	/** Property prefix of the map result files of the servers. */
+	private static final String FILE = "file.";
+	/** Start tag. */
+	private static final byte[] START = Token.token("<results>");
+	/** End tag. */
+	private static final byte[] END = Token.token("</results>");
+
+	/** View directory. */
+	private File mDir;
+	/** Definition and state. */
+	private Properties mProps = new Properties();
+
+	/**
+	 * Constructor opens a view or prepares a new one.
+	 * 
+	 * @param dir
+	 *            View directory.
+	 * @throws IOException
+	 *             View could not be read.
+	 */
+	public MaterializedView(final File dir) throws IOException {
+		mDir = dir;
+		File file = new File(dir, VIEW);
+		if (file.exists()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				mProps.load(in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Defines the view. A changed definition invalidates all kept results.
+	 * 
+	 * @param mapXq
+	 *            XQ file for mapping.
+	 * @param reduceXq
+	 *            XQ file for reducing or <code>null</code>.
+	 * @param aggregation
+	 *            Built-in aggregation, used if no reducer is given, or
+	 *            <code>null</code>.
+	 * @param meta
+	 *            Meta data file of the collection.
+	 * @throws IOException
+	 *             View could not be written.
+	 */
+	public void define(final File mapXq, final File reduceXq,
+			final String aggregation, final File meta) throws IOException {
+		if (!mDir.exists() && !mDir.mkdirs())
+			throw new IOException("View directory could not be created: "
+					+ mDir);
+		mProps.clear();
+		mProps.setProperty(MAPPER, mapXq.getAbsolutePath());
+		if (reduceXq != null)
+			mProps.setProperty(REDUCER, reduceXq.getAbsolutePath());
+		else if (aggregation != null)
+			mProps.setProperty(AGGREGATION, aggregation);
+		mProps.setProperty(META, meta.getAbsolutePath());
+		store();
+	}
+
+	/**
+	 * Marks the results of a server as outdated, so they are recomputed by the
+	 * next refresh.
+	 * 
+	 * @param server
+	 *            Server.
+	 * @throws IOException
+	 *             View could not be written.
+	 */
+	public void invalidate(final String server) throws IOException {
+		mProps.setProperty(INVALID + server, Boolean.TRUE.toString());
+		store();
+	}
+
+	/**
+	 * Refreshes the view. The mapper is executed only on the changed servers
+	 * and the result is reduced again, if any map results have changed.
+	 * 
+	 * @param client
+	 *            {@link Client} instance.
+	 * @return Recomputed servers.
+	 * @throws IOException
+	 *             Exception occurred.
+	 * @throws QueryException
+	 *             Reducer could not be executed.
+	 */
+	public Set<String> refresh(final Client client) throws IOException,
+			QueryException {
+		if (mProps.getProperty(MAPPER) == null)
+			throw new IOException("View is not defined: " + mDir);
+		long start = System.nanoTime();
+		MetaData meta = new MetaData();
+		File metaFile = new File(mProps.getProperty(META));
+		if (metaFile.exists())
+			meta.load(metaFile);
+		ReduceClient reducer = reducer();
+		List<String> servers = client.getServers();
+		Set<String> changed = new TreeSet<String>();
+		for (String server : servers) {
+			String version = Long.toString(meta.getVersion(server));
+			if (!version.equals(mProps.getProperty(VERSION + server))
+					|| mProps.getProperty(INVALID + server) != null
+					|| !mapFile(server).exists())
+				changed.add(server);
+		}
+		// results of removed servers are dropped
+		boolean removed = false;
+		for (String name : new TreeSet<String>(mProps.stringPropertyNames())) {
+			if (name.startsWith(VERSION)
+					&& !servers.contains(name.substring(VERSION.length()))) {
+				String server = name.substring(VERSION.length());
+				mProps.remove(name);
+				mapFile(server).delete();
+				mProps.remove(FILE + server);
+				removed = true;
+			}
+		}
+		if (!changed.isEmpty()) {
+			// file names are assigned before the servers are mapped in parallel
+			for (String server : changed)
+				mapFile(server);
+			String mapper = Token.string(QueryFile.read(new File(mProps
+					.getProperty(MAPPER))));
+			map(client, changed, reducer == null ? mapper : reducer
+					.compose(mapper));
+		}
+		for (String server : changed) {
+			mProps.setProperty(VERSION + server,
+					Long.toString(meta.getVersion(server)));
+			mProps.remove(INVALID + server);
+		}
+		if (!changed.isEmpty() || removed || !new File(mDir, RESULT).exists())
+			reduce(servers, reducer);
+		store();
+		long time = System.nanoTime() - start;
+		System.out.println("Refreshed " + changed + " in " + time / 1000000
+				+ " ms");
+		return changed;
+	}
+
+	/**
+	 * Writes the reduced result of the last refresh.
+	 * 
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             View has not been refreshed.
+	 */
+	public void read(final OutputStream output) throws IOException {
+		File file = new File(mDir, RESULT);
+		if (!file.exists())
+			throw new IOException("View has not been refreshed: " + mDir);
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			byte[] buffer = new byte[8192];
+			int i;
+			while ((i = in.read(buffer)) != -1)
+				output.write(buffer, 0, i);
+			output.flush();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Executes the mapper on the given servers in parallel and keeps the
+	 * results of each server in its own file.
+	 * 
+	 * @param client
+	 *            {@link Client} instance.
+	 * @param servers
+	 *            Servers.
+	 * @param mapper
+	 *            Mapper query.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void map(final Client client, final Set<String> servers,
+			final String mapper) throws IOException {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+		for (final String server : servers) {
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					File file = mapFile(server);
+					File tmp = new File(mDir, file.getName() + ".tmp");
+					OutputStream out = new BufferedOutputStream(
+							new FileOutputStream(tmp));
+					boolean mapped = false;
+					try {
+						client.query(server, null, mapper, out);
+						mapped = true;
+					} finally {
+						out.close();
+						// a failed server keeps its previous results
+						if (!mapped)
+							tmp.delete();
+					}
+					if (file.exists() && !file.delete() || !tmp.renameTo(file))
+						throw new IOException("Map results could not be kept: "
+								+ file);
+					return null;
+				}
+			}));
+		}
+		Tasks.await(executor, futures);
+	}
+
+	/**
+	 * Reduces the kept map results of all servers into the result file.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @param reducer
+	 *            Reducer or <code>null</code> for keeping the map results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 * @throws QueryException
+	 *             Reducer could not be executed.
+	 */
+	private void reduce(final List<String> servers, final ReduceClient reducer)
+			throws IOException, QueryException {
+		Vector<InputStream> inputs = new Vector<InputStream>();
+		if (reducer != null)
+			inputs.add(new ByteArrayInputStream(START));
+		for (String server : servers)
+			inputs.add(new BufferedInputStream(new FileInputStream(
+					mapFile(server))));
+		if (reducer != null)
+			inputs.add(new ByteArrayInputStream(END));
+		InputStream input = new SequenceInputStream(inputs.elements());
+		File tmp = new File(mDir, RESULT + ".tmp");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+		try {
+			if (reducer == null) {
+				byte[] buffer = new byte[8192];
+				int i;
+				while ((i = input.read(buffer)) != -1)
+					out.write(buffer, 0, i);
+			} else {
+				reducer.execute(input, out);
+			}
+		} finally {
+			out.close();
+			input.close();
+		}
+		File file = new File(mDir, RESULT);
+		if (file.exists() && !file.delete() || !tmp.renameTo(file))
+			throw new IOException("Result could not be stored: " + file);
+	}
+
+	/**
+	 * Creates the reducer of the view.
+	 * 
+	 * @return Reducer or <code>null</code>.
+	 * @throws IOException
+	 *             XQ file could not be read.
+	 */
+	private ReduceClient reducer() throws IOException {
+		String reduceXq = mProps.getProperty(REDUCER);
+		if (reduceXq != null)
+			return new ReduceClient(new File(reduceXq));
+		String aggregation = mProps.getProperty(AGGREGATION);
+		if (aggregation != null)
+			return new ReduceClient(Aggregator.parse(aggregation));
+		return null;
+	}
+
+	/**
+	 * Returns the file of the kept map results of a server. Server ids, e.g.
+	 * the URLs of REST servers, are no valid file names, so the file is named
+	 * after the id with all other characters than letters, digits and dots
+	 * replaced, and numbered if this name is taken. The name is kept in the
+	 * view properties under the original id.
+	 * 
+	 * @param server
+	 *            Server.
+	 * @return File.
+	 */
+	private synchronized File mapFile(final String server) {
+		String name = mProps.getProperty(FILE + server);
+		if (name == null) {
+			String base = server.replaceAll("[^A-Za-z0-9.]+", "_");
+			Set<String> taken = new TreeSet<String>();
+			for (String n : mProps.stringPropertyNames()) {
+				if (n.startsWith(FILE))
+					taken.add(mProps.getProperty(n));
+			}
+			name = base + MAP;
+			for (int i = 1; taken.contains(name); i++)
+				name = base + "-" + i + MAP;
+			mProps.setProperty(FILE + server, name);
+		}
+		return new File(mDir, name);
+	}
+
+	/**
+	 * Stores the definition and state of the view.
+	 * 
+	 * @throws IOException
+	 *             View could not be written.
+	 */
+	private void store() throws IOException {
+		OutputStream out = new FileOutputStream(new File(mDir, VIEW));
+		try {
+			mProps.store(out, "Materialized view");
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package org.unikn.quedix.reduce;
+
+/**
+ * This enumeration defines the built-in aggregation reducers, which are
+ * executed by the {@link Aggregator} without building an XML database.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public enum Aggregation {
+	/** Sum of all values. */
+	SUM,
+	/** Number of all items. */
+	COUNT,
+	/** Minimum of all values. */
+	MIN,
+	/** Maximum of all values. */
+	MAX,
+	/** Number of items per key. */
+	GROUP_COUNT,
+	/** Sum of the values per key. */
+	GROUP_SUM,
+	/** Approximate number of distinct values, by a HyperLogLog sketch. */
+	DISTINCT_COUNT,
+	/** Approximate quantiles of the values, by a t-digest. */
+	QUANTILE;
+
+	/**
+	 * Checks if the aggregation is computed per key.
+	 * 
+	 * @return Result of check.
+	 */
+	public boolean isGrouped() {
+		return this == GROUP_COUNT || this == GROUP_SUM;
+	}
+
+	/**
+	 * Checks if the aggregation needs the values of the items.
+	 * 
+	 * @return Result of check.
+	 */
+	public boolean hasValue() {
+		return this != COUNT && this != GROUP_COUNT;
+	}
+
+	/**
+	 * Checks if the aggregation is additive, i.e. if the result of a sample
+	 * can be scaled to an estimate of the result of all items.
+	 * 
+	 * @return Result of check.
+	 */
+	public boolean isAdditive() {
+		return this == SUM || this == COUNT || this == GROUP_COUNT
+				|| this == GROUP_SUM;
+	}
+
+	/**
+	 * Checks if the aggregation is computed by a sketch on each data server,
+	 * so only the sketches are returned and merged.
+	 * 
+	 * @return Result of check.
+	 */
+	public boolean isSketch() {
+		return this == DISTINCT_COUNT || this == QUANTILE;
+	}
+}
@@ -0,0 +1,997 @@
+package org.unikn.quedix.reduce;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.basex.util.Token;
+import org.unikn.quedix.core.QueryComposer;
+import org.unikn.quedix.core.ResultPipe;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * This class executes a built-in {@link Aggregation} directly on the stream
+ * of map results. The items are consumed by a SAX handler into primitive
+ * accumulators, one per key for grouped aggregations, so neither an XML
+ * database nor a query is needed. A job declares its aggregation by a
+ * specification like <code>sum</code>, <code>max:@population</code>,
+ * <code>group-count:@country</code> or
+ * <code>group-sum:@country:population</code>. Keys and values are paths
+ * relative to a result item; by default the value is the string value of the
+ * item itself. Atomic results are aggregated as items without key.
+ * <p>
+ * Sketch aggregations, declared like <code>distinct-count:@country</code> or
+ * <code>quantile:0.5,0.99:@population</code>, are computed on the data
+ * servers, whose mapper is composed by {@link #compose(String)}. Each server
+ * returns only a {@link HyperLogLog} sketch or a {@link TDigest} of its
+ * values, which are merged here.
+ * <p>
+ * If the map results stem from a sample of the documents, additive
+ * aggregations are scaled to an estimate of the result of all documents,
+ * written as <code>&lt;estimate&gt;...&lt;/estimate&gt;</code> or as group.
+ * Documents are the sampled units, as the items of one document are not
+ * independent. If the results of each sampled document are wrapped in a
+ * {@link QueryComposer#UNIT} element, see
+ * {@link QueryComposer#sampleUnits(String, double, long)}, the subtotal of
+ * each document is weighted by the inverse of its sampling fraction, which
+ * may differ between the servers, and the estimate is written with the
+ * bounds of a 95% confidence interval of this cluster sample. Otherwise the
+ * results are scaled by the sampling fraction without bounds. Minimum and
+ * maximum are those of the sample.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class Aggregator {
+
+	/** Separator of the specification. */
+	private static final String COLON = ":";
+	/** Path step separator. */
+	private static final String SLASH = "/";
+	/** Attribute step prefix. */
+	private static final String AT = "@";
+	/** Path of the item itself. */
+	private static final String SELF = ".";
+	/** Separator of the quantiles. */
+	private static final String COMMA = ",";
+	/** Index of the key path. */
+	private static final int KEY = 0;
+	/** Index of the value path. */
+	private static final int VALUE = 1;
+	/** Quantile of the standard normal distribution for 95% confidence. */
+	private static final double Z = 1.96;
+	/** Start tag of the results of a server. */
+	private static final byte[] START = Token.token("<results>");
+	/** End tag of the results of a server. */
+	private static final byte[] END = Token.token("</results>");
+
+	/** Aggregation. */
+	private Aggregation mType;
+	/** Element steps of the key and the value path. */
+	private String[][] mSteps = new String[2][];
+	/** Attribute names of the key and the value path or <code>null</code>. */
+	private String[] mAttributes = new String[2];
+	/** SAX parser factory. */
+	private SAXParserFactory mFactory;
+	/** Sampling fraction of the map results, 1 if not sampled. */
+	private double mFraction = 1;
+	/** Flag if the map results are wrapped by sampled document. */
+	private boolean mUnits;
+	/** Value path. */
+	private String mValue;
+	/** Quantiles of a quantile aggregation. */
+	private double[] mQuantiles = new double[0];
+	/** Number of servers of an online aggregation. */
+	private int mServers;
+	/** Listener of an online aggregation or <code>null</code>. */
+	private ProgressListener mListener;
+	/** Recorded sizes of the servers or <code>null</code> if unweighted. */
+	private Map<String, Long> mSizes;
+	/** Summed sizes of all servers. */
+	private double mTotalSize;
+	/** Summed sizes of the completed servers. */
+	private double mPartSizes;
+	/** Summed squared sizes of the completed servers. */
+	private double mPartSizeSquares;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param type
+	 *            Aggregation.
+	 * @param key
+	 *            Key path, relative to a result item, or <code>null</code>
+	 *            if not grouped.
+	 * @param value
+	 *            Value path, relative to a result item, or <code>null</code>
+	 *            for the item itself.
+	 */
+	public Aggregator(final Aggregation type, final String key,
+			final String value) {
+		if (type.isGrouped() && key == null)
+			throw new IllegalArgumentException("Aggregation " + type
+					+ " needs a key path.");
+		mType = type;
+		mValue = value == null ? SELF : value;
+		path(KEY, key == null ? SELF : key);
+		path(VALUE, mValue);
+		mFactory = SAXParserFactory.newInstance();
+	}
+
+	/**
+	 * Parses an aggregation specification, e.g.
+	 * <code>group-sum:@country:population</code>.
+	 * 
+	 * @param spec
+	 *            Specification.
+	 * @return {@link Aggregator} instance.
+	 */
+	public static Aggregator parse(final String spec) {
+		String[] parts = spec.trim().split(COLON);
+		Aggregation type = Aggregation.valueOf(parts[0].toUpperCase()
+				.replace('-', '_'));
+		int v = type.isGrouped() || type == Aggregation.QUANTILE ? 2 : 1;
+		Aggregator aggregator = new Aggregator(type, type.isGrouped()
+				&& parts.length > 1 ? parts[1] : null,
+				parts.length > v ? parts[v] : null);
+		if (type == Aggregation.QUANTILE) {
+			if (parts.length < 2)
+				throw new IllegalArgumentException("Aggregation " + type
+						+ " needs quantiles.");
+			String[] q = parts[1].split(COMMA);
+			aggregator.mQuantiles = new double[q.length];
+			for (int i = 0; i < q.length; i++) {
+				aggregator.mQuantiles[i] = Double.parseDouble(q[i]);
+				if (aggregator.mQuantiles[i] < 0
+						|| aggregator.mQuantiles[i] > 1)
+					throw new IllegalArgumentException(
+							"Quantile has to be in [0, 1]: " + q[i]);
+			}
+		}
+		return aggregator;
+	}
+
+	/**
+	 * Composes the mapper of the data servers. Sketch aggregations return
+	 * their sketches instead of the map results, other aggregations run the
+	 * mapper unchanged.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @return Composed query.
+	 */
+	public String compose(final String mapper) {
+		if (mType == Aggregation.DISTINCT_COUNT)
+			return QueryComposer.distinctSketch(mapper, mValue,
+					HyperLogLog.REGISTERS);
+		if (mType == Aggregation.QUANTILE)
+			return QueryComposer.quantileSketch(mapper, mValue, new TDigest(
+					TDigest.COMPRESSION).bounds());
+		return mapper;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return aggregation.
+	 */
+	public Aggregation getType() {
+		return mType;
+	}
+
+	/**
+	 * Setter.
+	 * 
+	 * @param fraction
+	 *            Sampling fraction of the map results, 1 if not sampled.
+	 */
+	public void setSample(final double fraction) {
+		mFraction = fraction;
+	}
+
+	/**
+	 * Switches to the online aggregation of
+	 * {@link #aggregate(ResultPipe, OutputStream)}.
+	 * 
+	 * @param servers
+	 *            Number of servers delivering map results.
+	 * @param listener
+	 *            Listener of the estimates or <code>null</code> for the
+	 *            aggregation of the complete results only.
+	 */
+	public void setOnline(final int servers, final ProgressListener listener) {
+		mServers = servers;
+		mListener = listener;
+	}
+
+	/**
+	 * Sets the recorded sizes of the servers, which weight the online
+	 * estimates. Without sizes, the servers are assumed to be equally sized.
+	 * 
+	 * @param sizes
+	 *            Positive sizes of all servers delivering map results, keyed
+	 *            by server, or <code>null</code>.
+	 */
+	public void setSizes(final Map<String, Long> sizes) {
+		mSizes = sizes;
+		mTotalSize = 0;
+		if (sizes != null) {
+			for (long size : sizes.values())
+				mTotalSize += size;
+		}
+	}
+
+	/**
+	 * Checks if the online estimates are weighted by the sizes of the
+	 * servers.
+	 * 
+	 * @return Result of check.
+	 */
+	public boolean isWeighted() {
+		return mSizes != null;
+	}
+
+	/**
+	 * Checks if the online aggregation is used.
+	 * 
+	 * @return Result of check.
+	 */
+	public boolean isOnline() {
+		return mListener != null && mServers > 1;
+	}
+
+	/**
+	 * Aggregates the map results of the data servers. In the online
+	 * aggregation, the results of each server are folded into the running
+	 * aggregates as soon as the server has delivered them. After each server
+	 * but the last, the listener receives an estimate of the final result.
+	 * The completed servers are treated as a random sample of all servers:
+	 * additive aggregations are scaled by the recorded size of the completed
+	 * servers or, without sizes, by their number, and written with the bounds
+	 * of a 95% confidence interval, which is derived from the variance of the
+	 * per server results. As small servers tend to complete first, unweighted
+	 * estimates are biased low. Other aggregations are written as aggregate
+	 * of the completed servers. The result of all servers is written to the
+	 * output.
+	 * 
+	 * @param input
+	 *            {@link ResultPipe} containing map results.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Input could not be parsed or contains no numbers.
+	 */
+	public void aggregate(final ResultPipe input, final OutputStream output)
+			throws IOException {
+		if (!isOnline()) {
+			aggregate(new SequenceInputStream(new ByteArrayInputStream(START),
+					new SequenceInputStream(input, new ByteArrayInputStream(END))),
+					output);
+			return;
+		}
+		SketchHandler sketch = mType.isSketch() ? new SketchHandler() : null;
+		AggregateHandler handler = sketch == null ? new AggregateHandler()
+				: null;
+		int parts = 0;
+		mPartSizes = 0;
+		mPartSizeSquares = 0;
+		ResultPipe.PartInput part;
+		while ((part = input.nextPart()) != null) {
+			double size = 0;
+			if (mSizes != null) {
+				Long recorded = mSizes.get(part.getServer());
+				if (recorded == null)
+					throw new IOException("No size recorded for server "
+							+ part.getServer() + ".");
+				size = recorded;
+				mPartSizes += size;
+				mPartSizeSquares += size * size;
+			}
+			parse(new SequenceInputStream(new ByteArrayInputStream(START),
+					new SequenceInputStream(part, new ByteArrayInputStream(END))),
+					sketch == null ? handler : sketch);
+			if (++parts >= mServers)
+				continue;
+			if (sketch != null) {
+				mListener.progress((double) parts / mServers, sketch.result());
+			} else {
+				handler.mTotal.completePart(mType, size, mUnits);
+				for (Accumulator acc : handler.mGroups.values())
+					acc.completePart(mType, size, mUnits);
+				mListener.progress((double) parts / mServers,
+						result(handler, parts));
+			}
+		}
+		output.write(Token.token(sketch != null ? sketch.result() : result(
+				handler, 0)));
+	}
+
+	/**
+	 * Aggregates the result items of the input and writes the result.
+	 * Grouped results are written as
+	 * <code>&lt;group key="..."&gt;...&lt;/group&gt;</code> elements, in
+	 * order of their keys.
+	 * 
+	 * @param input
+	 *            Map results, wrapped by one root element.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Input could not be parsed or contains no numbers.
+	 */
+	public void aggregate(final InputStream input, final OutputStream output)
+			throws IOException {
+		if (mType.isSketch()) {
+			SketchHandler handler = new SketchHandler();
+			parse(input, handler);
+			output.write(Token.token(handler.result()));
+			return;
+		}
+		AggregateHandler handler = new AggregateHandler();
+		parse(input, handler);
+		output.write(Token.token(result(handler, 0)));
+	}
+
+	/**
+	 * Returns the result of the aggregated items.
+	 * 
+	 * @param handler
+	 *            Handler, which has aggregated the items.
+	 * @param parts
+	 *            Number of completed servers of an online estimate or 0 for
+	 *            the final result.
+	 * @return Result.
+	 */
+	private String result(final AggregateHandler handler, final int parts) {
+		StringBuilder sb = new StringBuilder();
+		if (mType.isGrouped()) {
+			for (Map.Entry<String, Accumulator> group : new TreeMap<String, Accumulator>(
+					handler.mGroups).entrySet()) {
+				if (sb.length() > 0)
+					sb.append('\n');
+				sb.append("<group key=\"");
+				escape(sb, group.getKey());
+				sb.append('"');
+				result(sb, group.getValue(), parts);
+				sb.append("</group>");
+			}
+		} else if (estimated(parts)) {
+			sb.append("<estimate");
+			result(sb, handler.mTotal, parts);
+			sb.append("</estimate>");
+		} else {
+			sb.append(handler.mTotal.result(mType));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parses the map results.
+	 * 
+	 * @param input
+	 *            Map results, wrapped by one root element.
+	 * @param handler
+	 *            SAX handler.
+	 * @throws IOException
+	 *             Input could not be parsed or contains no numbers.
+	 */
+	private void parse(final InputStream input, final DefaultHandler handler)
+			throws IOException {
+		try {
+			mFactory.newSAXParser().parse(new InputSource(input), handler);
+		} catch (final ParserConfigurationException exc) {
+			throw new IOException(exc.getMessage());
+		} catch (final SAXException exc) {
+			if (exc.getException() instanceof IOException)
+				throw (IOException) exc.getException();
+			throw new IOException(exc.getMessage());
+		}
+	}
+
+	/**
+	 * Checks if the result is estimated from a sample.
+	 * 
+	 * @param parts
+	 *            Number of completed servers of an online estimate or 0 for
+	 *            the final result.
+	 * @return Result of check.
+	 */
+	private boolean estimated(final int parts) {
+		return (mFraction < 1 || parts > 0) && mType.isAdditive();
+	}
+
+	/**
+	 * Writes the end of a start tag and the result of an accumulator. A
+	 * sampled result, whose documents are known, is the sum of the document
+	 * subtotals <code>y</code>, each divided by its sampling fraction
+	 * <code>f</code>, with the variance <code>&#931; (1 - f) &#183;
+	 * y&#178; / f&#178;</code> of selecting each document independently.
+	 * Otherwise, a sampled result is scaled by the inverse sampling fraction,
+	 * without bounds. An online estimate after <code>n</code> of
+	 * <code>N</code> servers scales the mean of the per server results
+	 * <code>y</code> by <code>N</code>, with the variance <code>N&#178;
+	 * &#183; (1 - n / N) &#183; s&#178; / n</code> of sampling servers
+	 * without replacement. With recorded sizes <code>x</code>, the ratio
+	 * <code>R = &#931;y / &#931;x</code> of the completed servers is scaled
+	 * by the size of all servers instead, and <code>s&#178;</code> is taken
+	 * from the residuals <code>y - Rx</code>. The per server results of a
+	 * sample are its estimates, so their spread covers the sampling of the
+	 * documents, too. The bounds are omitted after the first server.
+	 * 
+	 * @param sb
+	 *            Target buffer.
+	 * @param acc
+	 *            Accumulator.
+	 * @param parts
+	 *            Number of completed servers of an online estimate or 0 for
+	 *            the final result.
+	 */
+	private void result(final StringBuilder sb, final Accumulator acc,
+			final int parts) {
+		if (!estimated(parts)) {
+			sb.append('>').append(acc.result(mType));
+			return;
+		}
+		boolean count = !mType.hasValue();
+		double value = mUnits ? acc.mUnitTotal : acc.value(mType);
+		// document estimates are scaled by their own fractions
+		double fraction = mUnits ? 1 : mFraction;
+		if (parts > 0) {
+			double estimate;
+			double residuals;
+			if (mSizes != null) {
+				double ratio = value / mPartSizes;
+				estimate = ratio * mTotalSize / fraction;
+				residuals = acc.mPartSquares - 2 * ratio * acc.mPartProducts
+						+ ratio * ratio * mPartSizeSquares;
+			} else {
+				double mean = value / parts;
+				estimate = mServers * mean / fraction;
+				residuals = acc.mPartSquares - parts * mean * mean;
+			}
+			if (parts > 1) {
+				double variance = Math.max(0, residuals) / (parts - 1);
+				double error = Z * mServers
+						* Math.sqrt((1 - (double) parts / mServers) * variance
+								/ parts) / fraction;
+				sb.append(" low=\"").append(estimate(estimate - error, count))
+						.append("\" high=\"")
+						.append(estimate(estimate + error, count)).append('"');
+			}
+			sb.append('>').append(estimate(estimate, count));
+			return;
+		}
+		if (mUnits) {
+			double error = Z * Math.sqrt(acc.mUnitVariance);
+			sb.append(" low=\"").append(estimate(value - error, count))
+					.append("\" high=\"")
+					.append(estimate(value + error, count)).append('"');
+		}
+		sb.append('>').append(estimate(value / fraction, count));
+	}
+
+	/**
+	 * Formats an estimate. Counts are rounded to integers, sums to two
+	 * fraction digits.
+	 * 
+	 * @param d
+	 *            Estimate.
+	 * @param count
+	 *            Flag if the estimate is a count.
+	 * @return Lexical representation.
+	 */
+	private static String estimate(final double d, final boolean count) {
+		if (count)
+			return Long.toString(Math.round(d));
+		double r = Math.round(d * 100) / 100.0;
+		if (r == Math.rint(r) && Math.abs(r) < 1e15)
+			return Long.toString((long) r);
+		return Double.toString(r);
+	}
+
+	/**
+	 * Parses a key or value path.
+	 * 
+	 * @param i
+	 *            Index of the path.
+	 * @param path
+	 *            Path, relative to a result item.
+	 */
+	private void path(final int i, final String path) {
+		List<String> steps = new ArrayList<String>();
+		for (String step : path.trim().split(SLASH)) {
+			if (step.startsWith(AT))
+				mAttributes[i] = step.substring(1);
+			else if (step.length() > 0 && !step.equals(SELF))
+				steps.add(step);
+		}
+		mSteps[i] = steps.toArray(new String[steps.size()]);
+	}
+
+	/**
+	 * Escapes a string for XML attribute output.
+	 * 
+	 * @param sb
+	 *            Target buffer.
+	 * @param value
+	 *            String.
+	 */
+	private static void escape(final StringBuilder sb, final String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '&')
+				sb.append("&amp;");
+			else if (c == '<')
+				sb.append("&lt;");
+			else if (c == '"')
+				sb.append("&quot;");
+			else
+				sb.append(c);
+		}
+	}
+
+	/**
+	 * Accumulator of one group. Integer values are summed as long values, as
+	 * long as no other number occurs.
+	 */
+	private static class Accumulator {
+
+		/** Number of items. */
+		private long mCount;
+		/** Number of values. */
+		private long mValues;
+		/** Flag if all values are integers. */
+		private boolean mIntegral = true;
+		/** Integer sum. */
+		private long mLongSum;
+		/** Sum. */
+		private double mSum;
+		/** Minimum. */
+		private double mMin = Double.POSITIVE_INFINITY;
+		/** Maximum. */
+		private double mMax = Double.NEGATIVE_INFINITY;
+		/** Sum of the squared results of the completed servers. */
+		private double mPartSquares;
+		/** Sum of the results times the sizes of the completed servers. */
+		private double mPartProducts;
+		/** Result before the current server. */
+		private double mPartStart;
+		/** Result before the current sampled document. */
+		private double mUnitStart;
+		/** Flag if the current sampled document has added to the result. */
+		private boolean mInUnit;
+		/** Sum of the weighted subtotals of the sampled documents. */
+		private double mUnitTotal;
+		/** Estimated variance of the weighted subtotals. */
+		private double mUnitVariance;
+
+		/**
+		 * Adds a value.
+		 * 
+		 * @param value
+		 *            Lexical value.
+		 * @throws IOException
+		 *             Value is no number.
+		 */
+		void add(final String value) throws IOException {
+			double d;
+			if (mIntegral) {
+				try {
+					long l = Long.parseLong(value);
+					long sum = mLongSum + l;
+					if (((mLongSum ^ sum) & (l ^ sum)) < 0)
+						toDouble();
+					else
+						mLongSum = sum;
+					d = l;
+				} catch (final NumberFormatException exc) {
+					toDouble();
+					d = number(value);
+				}
+			} else {
+				d = number(value);
+			}
+			if (!mIntegral)
+				mSum += d;
+			mMin = Math.min(mMin, d);
+			mMax = Math.max(mMax, d);
+			mValues++;
+		}
+
+		/**
+		 * Returns the sum of the values.
+		 * 
+		 * @return Sum.
+		 */
+		double sum() {
+			return mIntegral ? mLongSum : mSum;
+		}
+
+		/**
+		 * Returns the result of an additive aggregation.
+		 * 
+		 * @param type
+		 *            Aggregation.
+		 * @return Sum of the values or number of items.
+		 */
+		double value(final Aggregation type) {
+			return type.hasValue() ? sum() : mCount;
+		}
+
+		/**
+		 * Completes the results of a sampled document.
+		 * 
+		 * @param type
+		 *            Aggregation.
+		 * @param fraction
+		 *            Sampling fraction of the document.
+		 */
+		void completeUnit(final Aggregation type, final double fraction) {
+			double y = value(type) - mUnitStart;
+			mUnitTotal += y / fraction;
+			mUnitVariance += (1 - fraction) * y * y / (fraction * fraction);
+			mInUnit = false;
+		}
+
+		/**
+		 * Completes the results of a server of an online aggregation.
+		 * 
+		 * @param type
+		 *            Aggregation.
+		 * @param size
+		 *            Recorded size of the server, 0 if unweighted.
+		 * @param units
+		 *            Flag if the results are the weighted subtotals of
+		 *            sampled documents.
+		 */
+		void completePart(final Aggregation type, final double size,
+				final boolean units) {
+			double value = units ? mUnitTotal : value(type);
+			double y = value - mPartStart;
+			mPartSquares += y * y;
+			mPartProducts += size * y;
+			mPartStart = value;
+		}
+
+		/**
+		 * Switches to summing double values.
+		 */
+		private void toDouble() {
+			if (mIntegral) {
+				mSum = mLongSum;
+				mIntegral = false;
+			}
+		}
+
+		/**
+		 * Returns the result of an aggregation.
+		 * 
+		 * @param type
+		 *            Aggregation.
+		 * @return Lexical result, empty if there are no values.
+		 */
+		String result(final Aggregation type) {
+			switch (type) {
+			case COUNT:
+			case GROUP_COUNT:
+				return Long.toString(mCount);
+			case MIN:
+				return mValues == 0 ? "" : format(mMin);
+			case MAX:
+				return mValues == 0 ? "" : format(mMax);
+			default:
+				return mIntegral ? Long.toString(mLongSum) : format(mSum);
+			}
+		}
+
+		/**
+		 * Formats a number. Integers are written without fraction digits.
+		 * 
+		 * @param d
+		 *            Number.
+		 * @return Lexical representation.
+		 */
+		private String format(final double d) {
+			if (Double.isInfinite(d))
+				return d > 0 ? "INF" : "-INF";
+			if ((mIntegral || d == Math.rint(d)) && Math.abs(d) < 1e15)
+				return Long.toString((long) d);
+			return Double.toString(d);
+		}
+
+		/**
+		 * Parses a number.
+		 * 
+		 * @param value
+		 *            Lexical value.
+		 * @return Number.
+		 * @throws IOException
+		 *             Value is no number.
+		 */
+		private static double number(final String value) throws IOException {
+			if (value.equals("INF"))
+				return Double.POSITIVE_INFINITY;
+			if (value.equals("-INF"))
+				return Double.NEGATIVE_INFINITY;
+			try {
+				return Double.parseDouble(value);
+			} catch (final NumberFormatException exc) {
+				throw new IOException("Value is no number: '" + value + "'");
+			}
+		}
+	}
+
+	/**
+	 * SAX handler aggregating each result item.
+	 */
+	private class AggregateHandler extends DefaultHandler {
+
+		/** Accumulator of ungrouped aggregations. */
+		private Accumulator mTotal = new Accumulator();
+		/** Accumulators of grouped aggregations. */
+		private Map<String, Accumulator> mGroups = new HashMap<String, Accumulator>();
+		/** Element depth, the root element has depth 1. */
+		private int mDepth;
+		/** Element stack below the current item. */
+		private List<String> mStack = new ArrayList<String>();
+		/** Key and value of the current item or <code>null</code>. */
+		private String[] mFound = new String[2];
+		/** Texts of open element paths or <code>null</code>. */
+		private StringBuilder[] mText = new StringBuilder[2];
+		/** Depths of open element paths. */
+		private int[] mTextDepth = new int[2];
+		/** Text between the items, i.e. atomic results. */
+		private StringBuilder mAtomic = new StringBuilder();
+		/** Depth of the parent of the items, 2 within a sampled document. */
+		private int mBase = 1;
+		/** Sampling fraction of the current sampled document. */
+		private double mUnitFraction;
+		/** Accumulators of the current sampled document. */
+		private List<Accumulator> mUnitAccs = new ArrayList<Accumulator>();
+
+		@Override
+		public void startElement(final String uri, final String localName,
+				final String qName, final Attributes atts) throws SAXException {
+			if (++mDepth == 1)
+				return;
+			if (mDepth == 2 && qName.equals(QueryComposer.UNIT)) {
+				flushAtomic();
+				try {
+					mUnitFraction = Accumulator.number(atts.getValue("f"));
+				} catch (final IOException exc) {
+					throw new SAXException(exc);
+				}
+				mUnits = true;
+				mBase = 2;
+				return;
+			}
+			if (mDepth == mBase + 1)
+				flushAtomic();
+			else
+				mStack.add(qName);
+			for (int i = KEY; i <= VALUE; i++) {
+				if (mFound[i] != null || mText[i] != null || !matches(i))
+					continue;
+				if (mAttributes[i] == null) {
+					mText[i] = new StringBuilder();
+					mTextDepth[i] = mDepth;
+				} else {
+					mFound[i] = atts.getValue(mAttributes[i]);
+				}
+			}
+		}
+
+		@Override
+		public void characters(final char[] ch, final int start,
+				final int length) {
+			if (mDepth == mBase)
+				mAtomic.append(ch, start, length);
+			for (StringBuilder sb : mText) {
+				if (sb != null)
+					sb.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endElement(final String uri, final String localName,
+				final String qName) throws SAXException {
+			if (mDepth == mBase) {
+				flushAtomic();
+				if (mBase == 2) {
+					for (Accumulator acc : mUnitAccs)
+						acc.completeUnit(mType, mUnitFraction);
+					mUnitAccs.clear();
+					mBase = 1;
+				}
+				mDepth--;
+				return;
+			}
+			for (int i = KEY; i <= VALUE; i++) {
+				if (mText[i] != null && mTextDepth[i] == mDepth) {
+					mFound[i] = mText[i].toString().trim();
+					mText[i] = null;
+				}
+			}
+			if (mDepth > mBase + 1)
+				mStack.remove(mStack.size() - 1);
+			if (--mDepth == mBase) {
+				add(mFound[KEY], mFound[VALUE]);
+				mFound[KEY] = null;
+				mFound[VALUE] = null;
+			}
+		}
+
+		/**
+		 * Aggregates the atomic results read so far, each as an item without
+		 * key.
+		 * 
+		 * @throws SAXException
+		 *             Wrapped {@link IOException}.
+		 */
+		private void flushAtomic() throws SAXException {
+			for (String token : mAtomic.toString().trim().split("\\s+")) {
+				if (token.length() > 0)
+					add(null, token);
+			}
+			mAtomic.setLength(0);
+		}
+
+		/**
+		 * Aggregates an item.
+		 * 
+		 * @param key
+		 *            Key or <code>null</code>.
+		 * @param value
+		 *            Value or <code>null</code>.
+		 * @throws SAXException
+		 *             Wrapped {@link IOException}.
+		 */
+		private void add(final String key, final String value)
+				throws SAXException {
+			Accumulator acc = mTotal;
+			if (mType.isGrouped()) {
+				String k = key == null ? "" : key;
+				acc = mGroups.get(k);
+				if (acc == null) {
+					acc = new Accumulator();
+					mGroups.put(k, acc);
+				}
+			}
+			if (mBase == 2 && !acc.mInUnit) {
+				acc.mInUnit = true;
+				acc.mUnitStart = acc.value(mType);
+				mUnitAccs.add(acc);
+			}
+			acc.mCount++;
+			if (mType.hasValue() && value != null && value.length() > 0) {
+				try {
+					acc.add(value);
+				} catch (final IOException exc) {
+					throw new SAXException(exc);
+				}
+			}
+		}
+
+		/**
+		 * Checks if the element stack below the current item matches a path.
+		 * 
+		 * @param i
+		 *            Index of the path.
+		 * @return Result of check.
+		 */
+		private boolean matches(final int i) {
+			if (mStack.size() != mSteps[i].length)
+				return false;
+			for (int s = 0; s < mSteps[i].length; s++) {
+				if (!mSteps[i][s].equals(mStack.get(s)))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * SAX handler merging the sketches of the data servers.
+	 */
+	private class SketchHandler extends DefaultHandler {
+
+		/** Merged distinct value sketch. */
+		private HyperLogLog mHll = new HyperLogLog(HyperLogLog.REGISTERS);
+		/** Merged quantile digest. */
+		private TDigest mDigest = new TDigest(TDigest.COMPRESSION);
+		/** Codes of the current distinct value sketch or <code>null</code>. */
+		private StringBuilder mCodes;
+
+		@Override
+		public void startElement(final String uri, final String localName,
+				final String qName, final Attributes atts) throws SAXException {
+			try {
+				if (qName.equals("hll")) {
+					mCodes = new StringBuilder();
+				} else if (qName.equals("digest")) {
+					String min = atts.getValue("min");
+					String max = atts.getValue("max");
+					if (min != null && min.length() > 0 && max != null
+							&& max.length() > 0)
+						mDigest.extremes(Accumulator.number(min),
+								Accumulator.number(max));
+				} else if (qName.equals("c")) {
+					mDigest.merge(Accumulator.number(atts.getValue("m")),
+							Accumulator.number(atts.getValue("w")));
+				}
+			} catch (final IOException exc) {
+				throw new SAXException(exc);
+			}
+		}
+
+		@Override
+		public void characters(final char[] ch, final int start,
+				final int length) {
+			if (mCodes != null)
+				mCodes.append(ch, start, length);
+		}
+
+		@Override
+		public void endElement(final String uri, final String localName,
+				final String qName) {
+			if (qName.equals("hll")) {
+				for (String code : mCodes.toString().trim().split("\\s+")) {
+					if (code.length() > 0)
+						mHll.merge(Long.parseLong(code));
+				}
+				mCodes = null;
+			}
+		}
+
+		/**
+		 * Returns the result of the merged sketches. Quantiles are written as
+		 * <code>&lt;quantile q="..."&gt;...&lt;/quantile&gt;</code> elements.
+		 * 
+		 * @return Result.
+		 */
+		String result() {
+			if (mType == Aggregation.DISTINCT_COUNT)
+				return Long.toString(mHll.estimate());
+			StringBuilder sb = new StringBuilder();
+			for (double q : mQuantiles) {
+				if (sb.length() > 0)
+					sb.append('\n');
+				double d = mDigest.quantile(q);
+				sb.append("<quantile q=\"").append(q).append("\">");
+				if (!Double.isNaN(d))
+					sb.append(d == Math.rint(d) && Math.abs(d) < 1e15 ? Long
+							.toString((long) d) : Double.toString(d));
+				sb.append("</quantile>");
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Listener of the estimates of an online aggregation.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Invoked after the results of a server have been aggregated.
+		 * 
+		 * @param completed
+		 *            Fraction of completed servers.
+		 * @param estimate
+		 *            Estimated result.
+		 */
+		void progress(final double completed, final String estimate);
+	}
+}
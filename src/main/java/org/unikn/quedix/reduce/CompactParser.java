@@ -0,0 +1,243 @@
+package org.unikn.quedix.reduce;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.basex.build.Builder;
+import org.basex.build.Parser;
+import org.basex.core.Prop;
+import org.basex.io.IOContent;
+import org.basex.util.Atts;
+import org.basex.util.Token;
+import org.unikn.quedix.core.QueryComposer;
+import org.unikn.quedix.core.ResultPipe;
+
+/**
+ * This parser builds the reduce input out of map results in the compact
+ * intermediate format (see {@link QueryComposer#encode(String)}). The
+ * results are decoded straight into the builder, without any XML scanning,
+ * escaping or entity handling. Like the {@link FragmentParser}, every server
+ * result becomes its own document with a <code>&lt;results/&gt;</code> root.
+ * Consecutive atomic values are merged into one text node, separated by
+ * spaces, as the XML serializer does.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class CompactParser extends Parser {
+
+	/** Root element name. */
+	private static final byte[] RESULTS = Token.token("results");
+	/** Header of the format. */
+	private static final String HEADER = "Q1;";
+
+	/** Map results. */
+	private ResultPipe mInput;
+	/** Current input. */
+	private Reader mIn;
+	/** Dictionary of the current input. */
+	private byte[][] mDict;
+	/** Pending atomic values. */
+	private StringBuilder mAtomics = new StringBuilder();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param input
+	 *            Map results of the data servers.
+	 * @param prop
+	 *            Database properties.
+	 */
+	public CompactParser(final ResultPipe input, final Prop prop) {
+		super(new IOContent(Token.EMPTY, "results"), prop);
+		mInput = input;
+	}
+
+	@Override
+	public void parse(final Builder build) throws IOException {
+		for (ResultPipe.PartInput part; (part = mInput.nextPart()) != null;) {
+			mIn = new BufferedReader(new InputStreamReader(part, "UTF-8"));
+			build.startDoc(Token.token(part.getServer()));
+			build.startElem(RESULTS, new Atts());
+			decode(build);
+			build.endElem();
+			build.endDoc();
+		}
+	}
+
+	/**
+	 * Decodes the results of one server.
+	 * 
+	 * @param build
+	 *            {@link Builder} instance.
+	 * @throws IOException
+	 *             Invalid input.
+	 */
+	private void decode(final Builder build) throws IOException {
+		int c = mIn.read();
+		// a server without results delivers nothing at all
+		if (c == -1)
+			return;
+		for (int i = 0; i < HEADER.length(); i++) {
+			if (c != HEADER.charAt(i))
+				throw new IOException("Invalid compact header.");
+			c = next();
+		}
+		mDict = new byte[Integer.parseInt(token(c, ';'))][];
+		for (int i = 0; i < mDict.length; i++)
+			mDict[i] = Token.token(string(next()));
+		mAtomics.setLength(0);
+		while ((c = mIn.read()) != -1) {
+			if (c == 'E' || c == 'T') {
+				flush(build);
+				node(c, build);
+			} else {
+				if (mAtomics.length() != 0)
+					mAtomics.append(' ');
+				mAtomics.append(atomic(c));
+			}
+		}
+		flush(build);
+	}
+
+	/**
+	 * Decodes a node.
+	 * 
+	 * @param type
+	 *            Type of the node.
+	 * @param build
+	 *            {@link Builder} instance.
+	 * @throws IOException
+	 *             Invalid input.
+	 */
+	private void node(final int type, final Builder build) throws IOException {
+		if (type == 'T') {
+			build.text(Token.token(string(next())));
+		} else if (type == 'E') {
+			byte[] name = name(token(next(), ','));
+			int atts = Integer.parseInt(token(next(), ','));
+			int children = Integer.parseInt(token(next(), ';'));
+			Atts att = new Atts();
+			for (int i = 0; i < atts; i++) {
+				byte[] key = name(token(next(), ','));
+				att.add(key, Token.token(string(next())));
+			}
+			build.startElem(name, att);
+			for (int i = 0; i < children; i++)
+				node(next(), build);
+			build.endElem();
+		} else {
+			throw new IOException("Invalid compact node: " + (char) type);
+		}
+	}
+
+	/**
+	 * Decodes an atomic value.
+	 * 
+	 * @param type
+	 *            Type of the value.
+	 * @return Lexical representation.
+	 * @throws IOException
+	 *             Invalid input.
+	 */
+	private String atomic(final int type) throws IOException {
+		switch (type) {
+		case 'I':
+		case 'D':
+			return token(next(), ';');
+		case 'B':
+			return "1".equals(token(next(), ';')) ? "true" : "false";
+		case 'S':
+			return string(next());
+		default:
+			throw new IOException("Invalid compact value: " + (char) type);
+		}
+	}
+
+	/**
+	 * Adds the pending atomic values as one text node.
+	 * 
+	 * @param build
+	 *            {@link Builder} instance.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void flush(final Builder build) throws IOException {
+		if (mAtomics.length() == 0)
+			return;
+		build.text(Token.token(mAtomics.toString()));
+		mAtomics.setLength(0);
+	}
+
+	/**
+	 * Returns a name of the dictionary.
+	 * 
+	 * @param index
+	 *            One-based position in the dictionary.
+	 * @return Name.
+	 * @throws IOException
+	 *             Invalid position.
+	 */
+	private byte[] name(final String index) throws IOException {
+		int i = Integer.parseInt(index) - 1;
+		if (i < 0 || i >= mDict.length)
+			throw new IOException("Invalid compact name: " + index);
+		return mDict[i];
+	}
+
+	/**
+	 * Reads a length prefixed string. The length is given in characters, so a
+	 * surrogate pair is counted once.
+	 * 
+	 * @param first
+	 *            First character of the length.
+	 * @return String.
+	 * @throws IOException
+	 *             Invalid input.
+	 */
+	private String string(final int first) throws IOException {
+		int length = Integer.parseInt(token(first, ':'));
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			char c = (char) next();
+			sb.append(c);
+			if (Character.isHighSurrogate(c))
+				sb.append((char) next());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads the characters up to a delimiter.
+	 * 
+	 * @param first
+	 *            First character.
+	 * @param delimiter
+	 *            Delimiter, which is consumed.
+	 * @return Characters before the delimiter.
+	 * @throws IOException
+	 *             Invalid input.
+	 */
+	private String token(final int first, final char delimiter)
+			throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int c = first; c != delimiter; c = next())
+			sb.append((char) c);
+		return sb.toString();
+	}
+
+	/**
+	 * Reads the next character.
+	 * 
+	 * @return Character.
+	 * @throws IOException
+	 *             End of input has been reached.
+	 */
+	private int next() throws IOException {
+		int c = mIn.read();
+		if (c == -1)
+			throw new IOException("Unexpected end of compact input.");
+		return c;
+	}
+}
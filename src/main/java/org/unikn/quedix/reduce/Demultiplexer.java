@@ -0,0 +1,37 @@
+package org.unikn.quedix.reduce;
+
+import java.io.IOException;
+
+/**
+ * This class demultiplexes the results of fused mappers. Every data server
+ * delivers the results of each mapper wrapped in a
+ * <code>&lt;job id="N"/&gt;</code> element; the contents of these wrappers
+ * are written to the output of job <code>N</code>.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class Demultiplexer extends Partitioner {
+
+	/** Name of the job id attribute. */
+	public static final String ID = "id";
+
+	/**
+	 * Constructor.
+	 */
+	public Demultiplexer() {
+		super("@" + ID, true);
+	}
+
+	@Override
+	protected int partitionOf(final String key, final int partitions)
+			throws IOException {
+		try {
+			int job = Integer.parseInt(key);
+			if (job >= 0 && job < partitions)
+				return job;
+		} catch (final NumberFormatException exc) {
+			// handled below
+		}
+		throw new IOException("Unknown job id: '" + key + "'");
+	}
+}
@@ -0,0 +1,62 @@
+package org.unikn.quedix.reduce;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+
+import org.basex.build.Builder;
+import org.basex.build.Parser;
+import org.basex.core.Prop;
+import org.basex.io.IOContent;
+import org.basex.io.IOStream;
+import org.basex.util.Token;
+import org.unikn.quedix.core.ResultPipe;
+
+/**
+ * This parser builds the reduce input straight from the map results of the
+ * data servers with the native XML parser of BaseX. Similar to the parser of
+ * directories, every server result is parsed into its own document, named by
+ * the server id, as soon as the server delivers. The sequence of fragments
+ * of a server becomes the children of the document's
+ * <code>&lt;results/&gt;</code> root, so reducers addressing
+ * <code>/results/*</code> see all map results.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class FragmentParser extends Parser {
+
+	/** Start tag. */
+	private static final byte[] START = Token.token("<results>");
+	/** End tag. */
+	private static final byte[] END = Token.token("</results>");
+
+	/** Map results. */
+	private ResultPipe mInput;
+	/** Database properties. */
+	private Prop mProp;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param input
+	 *            Map results of the data servers.
+	 * @param prop
+	 *            Database properties.
+	 */
+	public FragmentParser(final ResultPipe input, final Prop prop) {
+		super(new IOContent(Token.EMPTY, "results"), prop);
+		mInput = input;
+		mProp = prop;
+	}
+
+	@Override
+	public void parse(final Builder build) throws IOException {
+		for (ResultPipe.PartInput part; (part = mInput.nextPart()) != null;) {
+			IOStream io = new IOStream(new SequenceInputStream(
+					new ByteArrayInputStream(START), new SequenceInputStream(
+							part, new ByteArrayInputStream(END))),
+					part.getServer());
+			Parser.xmlParser(io, mProp).parse(build);
+		}
+	}
+}
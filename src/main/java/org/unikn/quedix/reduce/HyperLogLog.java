@@ -0,0 +1,83 @@
+package org.unikn.quedix.reduce;
+
+/**
+ * This class is a HyperLogLog sketch for counting distinct values. The
+ * registers are filled on the data servers by the query of
+ * {@link org.unikn.quedix.core.QueryComposer#distinctSketch(String, String, int)},
+ * which returns only the maximum rank of each register, encoded as
+ * <code>register * 64 + rank</code>. Merging the sketches of all servers
+ * takes the maximum of each register, so the traffic depends on the number of
+ * registers, but not on the number of values.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class HyperLogLog {
+
+	/** Default number of registers, which gives a standard error of 1.6%. */
+	public static final int REGISTERS = 4096;
+	/** Factor of a register in the encoding. */
+	public static final int CODE = 64;
+
+	/** Registers. */
+	private byte[] mRegisters;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param registers
+	 *            Number of registers, a power of two of at least 16.
+	 */
+	public HyperLogLog(final int registers) {
+		if (registers < 16 || Integer.bitCount(registers) != 1)
+			throw new IllegalArgumentException(
+					"Number of registers has to be a power of two of at least 16: "
+							+ registers);
+		mRegisters = new byte[registers];
+	}
+
+	/**
+	 * Merges an encoded register of a server sketch.
+	 * 
+	 * @param code
+	 *            Register and rank, encoded as <code>register * 64 + rank</code>.
+	 */
+	public void merge(final long code) {
+		int register = (int) (code / CODE);
+		byte rank = (byte) (code % CODE);
+		if (register >= 0 && register < mRegisters.length
+				&& rank > mRegisters[register])
+			mRegisters[register] = rank;
+	}
+
+	/**
+	 * Returns the estimated number of distinct values. Small cardinalities
+	 * are estimated by linear counting of the empty registers.
+	 * 
+	 * @return Estimate.
+	 */
+	public long estimate() {
+		int m = mRegisters.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte rank : mRegisters) {
+			sum += Math.pow(2, -rank);
+			if (rank == 0)
+				zeros++;
+		}
+		double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709
+				: 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0)
+			estimate = m * Math.log((double) m / zeros);
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return number of registers.
+	 */
+	public int getRegisters() {
+		return mRegisters.length;
+	}
+}
@@ -0,0 +1,309 @@
+package org.unikn.quedix.reduce;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.unikn.quedix.core.QueryComposer;
+
+/**
+ * This class reads map results item by item. In contrast to the SAX handlers
+ * of the {@link Partitioner}, the items are pulled, so that several streams
+ * can be read alternately, e.g., by a merge. Each item is serialized
+ * together with the first value of a key path, which is relative to the
+ * item. Atomic results, wrapped by a {@link QueryComposer#ATOM} element, are
+ * read as one item, which is its own key. Unwrapped atomic results are read
+ * as one item per whitespace separated token.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class ItemReader {
+
+	/** Path step separator. */
+	private static final String SLASH = "/";
+	/** Attribute step prefix. */
+	private static final String AT = "@";
+
+	/** Stream reader. */
+	private XMLStreamReader mReader;
+	/** Element steps of the key path. */
+	private String[] mSteps;
+	/** Attribute name of the key path or <code>null</code>. */
+	private String mAttribute;
+	/** Pending items, each serialized and with its key value. */
+	private LinkedList<String[]> mPending = new LinkedList<String[]>();
+	/** Text between the items. */
+	private StringBuilder mText = new StringBuilder();
+	/** Flag if the end of the root element has been reached. */
+	private boolean mEnd;
+	/** Current item. */
+	private String mItem;
+	/** Key value of the current item. */
+	private String mKey;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param input
+	 *            Map results, wrapped by one root element.
+	 * @param key
+	 *            Key path, relative to a result item.
+	 * @throws IOException
+	 *             Input could not be parsed.
+	 */
+	public ItemReader(final InputStream input, final String key)
+			throws IOException {
+		List<String> steps = new ArrayList<String>();
+		for (String step : key.trim().split(SLASH)) {
+			if (step.startsWith(AT))
+				mAttribute = step.substring(1);
+			else if (step.length() > 0 && !step.equals("."))
+				steps.add(step);
+		}
+		mSteps = steps.toArray(new String[steps.size()]);
+		try {
+			mReader = XMLInputFactory.newInstance().createXMLStreamReader(
+					input);
+			while (mReader.next() != XMLStreamConstants.START_ELEMENT)
+				;
+		} catch (final XMLStreamException exc) {
+			throw new IOException(exc.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the next item.
+	 * 
+	 * @return <code>false</code>, if there are no more items.
+	 * @throws IOException
+	 *             Input could not be parsed.
+	 */
+	public boolean next() throws IOException {
+		try {
+			while (mPending.isEmpty() && !mEnd) {
+				int event = mReader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					atomics();
+					if (QueryComposer.ATOM.equals(mReader.getLocalName()))
+						atom();
+					else
+						element();
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					atomics();
+					mEnd = true;
+				} else if (event == XMLStreamConstants.CHARACTERS
+						|| event == XMLStreamConstants.CDATA) {
+					mText.append(mReader.getText());
+				}
+			}
+		} catch (final XMLStreamException exc) {
+			throw new IOException(exc.getMessage());
+		}
+		if (mPending.isEmpty()) {
+			mItem = null;
+			mKey = null;
+			return false;
+		}
+		String[] item = mPending.removeFirst();
+		mItem = item[0];
+		mKey = item[1];
+		return true;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return serialized current item.
+	 */
+	public String getItem() {
+		return mItem;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return key value of the current item, an empty string if it has no
+	 *         key.
+	 */
+	public String getKey() {
+		return mKey;
+	}
+
+	/**
+	 * Closes the reader. The underlying stream is not closed.
+	 */
+	public void close() {
+		try {
+			mReader.close();
+		} catch (final XMLStreamException exc) {
+			exc.printStackTrace();
+		}
+	}
+
+	/**
+	 * Splits the text read so far into atomic results.
+	 */
+	private void atomics() {
+		for (String token : mText.toString().trim().split("\\s+")) {
+			if (token.length() > 0) {
+				StringBuilder sb = new StringBuilder();
+				escape(sb, token, false);
+				mPending.add(new String[] { sb.append(' ').toString(), token });
+			}
+		}
+		mText.setLength(0);
+	}
+
+	/**
+	 * Adds the atomic result wrapped by the element the reader is positioned
+	 * on to the pending items.
+	 * 
+	 * @throws XMLStreamException
+	 *             Input could not be parsed.
+	 */
+	private void atom() throws XMLStreamException {
+		String value = mReader.getElementText();
+		StringBuilder sb = new StringBuilder();
+		escape(sb, value, false);
+		mPending.add(new String[] { sb.append(' ').toString(), value });
+	}
+
+	/**
+	 * Serializes the element item the reader is positioned on and adds it to
+	 * the pending items.
+	 * 
+	 * @throws XMLStreamException
+	 *             Input could not be parsed.
+	 */
+	private void element() throws XMLStreamException {
+		StringBuilder sb = new StringBuilder();
+		List<String> stack = new ArrayList<String>();
+		String key = null;
+		StringBuilder keyText = null;
+		int keyDepth = 0;
+		int depth = 0;
+		int event = XMLStreamConstants.START_ELEMENT;
+		do {
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = name(mReader.getPrefix(), mReader.getLocalName());
+				if (depth++ > 0)
+					stack.add(name);
+				sb.append('<').append(name);
+				for (int i = 0; i < mReader.getNamespaceCount(); i++) {
+					String prefix = mReader.getNamespacePrefix(i);
+					sb.append(prefix == null || prefix.length() == 0 ? " xmlns"
+							: " xmlns:" + prefix).append("=\"");
+					escape(sb, mReader.getNamespaceURI(i), true);
+					sb.append('"');
+				}
+				for (int i = 0; i < mReader.getAttributeCount(); i++) {
+					sb.append(' ')
+							.append(name(mReader.getAttributePrefix(i),
+									mReader.getAttributeLocalName(i)))
+							.append("=\"");
+					escape(sb, mReader.getAttributeValue(i), true);
+					sb.append('"');
+				}
+				sb.append('>');
+				if (key == null && keyText == null && matches(stack)) {
+					if (mAttribute == null) {
+						keyText = new StringBuilder();
+						keyDepth = depth;
+					} else {
+						key = mReader.getAttributeValue(null, mAttribute);
+					}
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				sb.append("</")
+						.append(name(mReader.getPrefix(),
+								mReader.getLocalName())).append('>');
+				if (keyText != null && keyDepth == depth) {
+					key = keyText.toString().trim();
+					keyText = null;
+				}
+				if (--depth > 0)
+					stack.remove(stack.size() - 1);
+			} else if (event == XMLStreamConstants.CHARACTERS
+					|| event == XMLStreamConstants.CDATA
+					|| event == XMLStreamConstants.SPACE) {
+				escape(sb, mReader.getText(), false);
+				if (keyText != null)
+					keyText.append(mReader.getText());
+			} else if (event == XMLStreamConstants.COMMENT) {
+				sb.append("<!--").append(mReader.getText()).append("-->");
+			} else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+				sb.append("<?").append(mReader.getPITarget()).append(' ')
+						.append(mReader.getPIData()).append("?>");
+			}
+			if (depth > 0)
+				event = mReader.next();
+		} while (depth > 0);
+		mPending.add(new String[] { sb.toString(), key == null ? "" : key });
+	}
+
+	/**
+	 * Checks if the element stack below the current item matches the key
+	 * path.
+	 * 
+	 * @param stack
+	 *            Element stack.
+	 * @return Result of check.
+	 */
+	private boolean matches(final List<String> stack) {
+		if (stack.size() != mSteps.length)
+			return false;
+		for (int i = 0; i < mSteps.length; i++) {
+			if (!mSteps[i].equals(stack.get(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a qualified name.
+	 * 
+	 * @param prefix
+	 *            Prefix or <code>null</code>.
+	 * @param local
+	 *            Local name.
+	 * @return Qualified name.
+	 */
+	private static String name(final String prefix, final String local) {
+		return prefix == null || prefix.length() == 0 ? local : prefix + ":"
+				+ local;
+	}
+
+	/**
+	 * Escapes a string for XML output.
+	 * 
+	 * @param sb
+	 *            Target buffer.
+	 * @param value
+	 *            String.
+	 * @param attribute
+	 *            Flag if the string is an attribute value.
+	 */
+	private static void escape(final StringBuilder sb, final String value,
+			final boolean attribute) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '&')
+				sb.append("&amp;");
+			else if (c == '<')
+				sb.append("&lt;");
+			else if (c == '>')
+				sb.append("&gt;");
+			else if (c == '"' && attribute)
+				sb.append("&quot;");
+			else
+				sb.append(c);
+		}
+	}
+}
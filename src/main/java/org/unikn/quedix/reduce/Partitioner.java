@@ -0,0 +1,368 @@
+package org.unikn.quedix.reduce;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.basex.util.Token;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * This class hash partitions map results by a user declared grouping key. The
+ * map results are the children of one root element. The grouping key is a
+ * path relative to such a result item, e.g. <code>@country</code> or
+ * <code>city/name</code>, and its first value decides the partition of the
+ * whole item. Items with equal keys therefore always end up in the same
+ * partition.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class Partitioner {
+
+	/** Path step separator. */
+	private static final String SLASH = "/";
+	/** Attribute step prefix. */
+	private static final String AT = "@";
+
+	/** Element steps of the key path. */
+	private String[] mSteps;
+	/** Attribute name of the key path or <code>null</code>. */
+	private String mAttribute;
+	/** Flag if only the contents of the items are written. */
+	private boolean mUnwrap;
+	/** SAX parser factory. */
+	private SAXParserFactory mFactory;
+
+	/**
+	 * Constructor parses the grouping key path.
+	 * 
+	 * @param key
+	 *            Grouping key path, relative to a result item.
+	 */
+	public Partitioner(final String key) {
+		this(key, false);
+	}
+
+	/**
+	 * Constructor parses the grouping key path.
+	 * 
+	 * @param key
+	 *            Grouping key path, relative to a result item.
+	 * @param unwrap
+	 *            Flag if only the contents of the items are written, e.g.,
+	 *            if the items are wrappers of several results. The contents
+	 *            are forwarded while they are read, so the key has to be an
+	 *            attribute of the item itself.
+	 */
+	protected Partitioner(final String key, final boolean unwrap) {
+		mUnwrap = unwrap;
+		List<String> steps = new ArrayList<String>();
+		for (String step : key.trim().split(SLASH)) {
+			if (step.startsWith(AT))
+				mAttribute = step.substring(1);
+			else if (step.length() > 0 && !step.equals("."))
+				steps.add(step);
+		}
+		mSteps = steps.toArray(new String[steps.size()]);
+		if (unwrap && (mAttribute == null || mSteps.length > 0))
+			throw new IllegalArgumentException(
+					"Unwrapped items need an attribute key: " + key);
+		mFactory = SAXParserFactory.newInstance();
+	}
+
+	/**
+	 * Splits the result items of the input into the given partitions. The
+	 * outputs are not closed.
+	 * 
+	 * @param input
+	 *            Map results, wrapped by one root element.
+	 * @param outputs
+	 *            One {@link OutputStream} per partition.
+	 * @return Number of items written to each partition.
+	 * @throws IOException
+	 *             Input could not be parsed or written.
+	 */
+	public long[] split(final InputStream input, final OutputStream[] outputs)
+			throws IOException {
+		SplitHandler handler = new SplitHandler(outputs);
+		try {
+			mFactory.newSAXParser().parse(new InputSource(input), handler);
+		} catch (final ParserConfigurationException exc) {
+			throw new IOException(exc.getMessage());
+		} catch (final SAXException exc) {
+			if (exc.getException() instanceof IOException)
+				throw (IOException) exc.getException();
+			throw new IOException(exc.getMessage());
+		}
+		return handler.mCounts;
+	}
+
+	/**
+	 * Returns the partition of a key.
+	 * 
+	 * @param key
+	 *            Key value.
+	 * @param partitions
+	 *            Number of partitions.
+	 * @return Partition.
+	 */
+	public static int partition(final String key, final int partitions) {
+		return (key.hashCode() & Integer.MAX_VALUE) % partitions;
+	}
+
+	/**
+	 * Returns the partition of an item, based on its key value.
+	 * 
+	 * @param key
+	 *            Key value, an empty string if the item has no key.
+	 * @param partitions
+	 *            Number of partitions.
+	 * @return Partition.
+	 * @throws IOException
+	 *             Key does not denote a partition.
+	 */
+	protected int partitionOf(final String key, final int partitions)
+			throws IOException {
+		return partition(key, partitions);
+	}
+
+	/**
+	 * Escapes a string for XML output.
+	 * 
+	 * @param sb
+	 *            Target buffer.
+	 * @param ch
+	 *            Characters.
+	 * @param start
+	 *            Start offset.
+	 * @param length
+	 *            Number of characters.
+	 * @param attribute
+	 *            Flag if the string is an attribute value.
+	 */
+	private static void escape(final StringBuilder sb, final char[] ch,
+			final int start, final int length, final boolean attribute) {
+		for (int i = start; i < start + length; i++) {
+			char c = ch[i];
+			if (c == '&')
+				sb.append("&amp;");
+			else if (c == '<')
+				sb.append("&lt;");
+			else if (c == '>')
+				sb.append("&gt;");
+			else if (c == '"' && attribute)
+				sb.append("&quot;");
+			else
+				sb.append(c);
+		}
+	}
+
+	/**
+	 * SAX handler serializing each result item into its partition. Unwrapped
+	 * items are not buffered: their partition is known at their start tag, and
+	 * each child is forwarded as soon as it has been read.
+	 */
+	private class SplitHandler extends DefaultHandler {
+
+		/** Partition outputs. */
+		private OutputStream[] mOutputs;
+		/** Items written to each partition. */
+		private long[] mCounts;
+		/** Element depth, the root element has depth 1. */
+		private int mDepth;
+		/** Current item. */
+		private StringBuilder mItem = new StringBuilder();
+		/** Element stack below the current item. */
+		private List<String> mStack = new ArrayList<String>();
+		/** Key value of the current item or <code>null</code>. */
+		private String mKey;
+		/** Text of an open element key or <code>null</code>. */
+		private StringBuilder mKeyText;
+		/** Depth of an open element key. */
+		private int mKeyDepth;
+		/** Text between the items, i.e. atomic results. */
+		private StringBuilder mAtomic = new StringBuilder();
+		/** Partition of the current unwrapped item. */
+		private int mTarget;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param outputs
+		 *            Partition outputs.
+		 */
+		SplitHandler(final OutputStream[] outputs) {
+			mOutputs = outputs;
+			mCounts = new long[outputs.length];
+		}
+
+		@Override
+		public void startElement(final String uri, final String localName,
+				final String qName, final Attributes atts) throws SAXException {
+			if (++mDepth == 1)
+				return;
+			if (mDepth == 2)
+				flushAtomic();
+			if (mDepth > 2)
+				mStack.add(qName);
+			if (mUnwrap && mDepth == 3)
+				forward();
+			if (!mUnwrap || mDepth > 2) {
+				mItem.append('<').append(qName);
+				for (int i = 0; i < atts.getLength(); i++) {
+					String value = atts.getValue(i);
+					mItem.append(' ').append(atts.getQName(i)).append("=\"");
+					escape(mItem, value.toCharArray(), 0, value.length(), true);
+					mItem.append('"');
+				}
+				mItem.append('>');
+			}
+			if (mKey == null && mKeyText == null && matches()) {
+				if (mAttribute == null) {
+					mKeyText = new StringBuilder();
+					mKeyDepth = mDepth;
+				} else {
+					mKey = atts.getValue(mAttribute);
+				}
+			}
+			if (mUnwrap && mDepth == 2)
+				mTarget = target();
+		}
+
+		@Override
+		public void characters(final char[] ch, final int start,
+				final int length) throws SAXException {
+			if (mDepth < 2) {
+				// atomic results belong to no group
+				if (mDepth == 1)
+					mAtomic.append(ch, start, length);
+				return;
+			}
+			escape(mItem, ch, start, length, false);
+			if (mKeyText != null)
+				mKeyText.append(ch, start, length);
+		}
+
+		@Override
+		public void endElement(final String uri, final String localName,
+				final String qName) throws SAXException {
+			if (mDepth == 1) {
+				flushAtomic();
+				mDepth--;
+				return;
+			}
+			if (!mUnwrap || mDepth > 2)
+				mItem.append("</").append(qName).append('>');
+			if (mKeyText != null && mKeyDepth == mDepth) {
+				mKey = mKeyText.toString().trim();
+				mKeyText = null;
+			}
+			if (mDepth > 2)
+				mStack.remove(mStack.size() - 1);
+			if (--mDepth == 1) {
+				if (mUnwrap) {
+					forward();
+					mCounts[mTarget]++;
+				} else {
+					write(target(), mItem.toString());
+				}
+				mItem.setLength(0);
+				mKey = null;
+			} else if (mUnwrap && mDepth == 2) {
+				forward();
+			}
+		}
+
+		/**
+		 * Returns the partition of the current item.
+		 * 
+		 * @return Partition.
+		 * @throws SAXException
+		 *             Wrapped {@link IOException}.
+		 */
+		private int target() throws SAXException {
+			try {
+				return partitionOf(mKey == null ? "" : mKey, mOutputs.length);
+			} catch (final IOException exc) {
+				throw new SAXException(exc);
+			}
+		}
+
+		/**
+		 * Forwards the child of an unwrapped item read so far to its
+		 * partition.
+		 * 
+		 * @throws SAXException
+		 *             Wrapped {@link IOException}.
+		 */
+		private void forward() throws SAXException {
+			if (mItem.length() == 0)
+				return;
+			try {
+				mOutputs[mTarget].write(Token.token(mItem.toString()));
+			} catch (final IOException exc) {
+				throw new SAXException(exc);
+			}
+			mItem.setLength(0);
+		}
+
+		/**
+		 * Writes the atomic results read so far to the first partition.
+		 * 
+		 * @throws SAXException
+		 *             Wrapped {@link IOException}.
+		 */
+		private void flushAtomic() throws SAXException {
+			String text = mAtomic.toString().trim();
+			if (text.length() > 0) {
+				StringBuilder sb = new StringBuilder();
+				escape(sb, text.toCharArray(), 0, text.length(), false);
+				write(0, sb.append(' ').toString());
+			}
+			mAtomic.setLength(0);
+		}
+
+		/**
+		 * Writes an item to a partition.
+		 * 
+		 * @param p
+		 *            Partition.
+		 * @param item
+		 *            Serialized item.
+		 * @throws SAXException
+		 *             Wrapped {@link IOException}.
+		 */
+		private void write(final int p, final String item) throws SAXException {
+			try {
+				mOutputs[p].write(Token.token(item));
+			} catch (final IOException exc) {
+				throw new SAXException(exc);
+			}
+			mCounts[p]++;
+		}
+
+		/**
+		 * Checks if the element stack below the current item matches the key
+		 * path.
+		 * 
+		 * @return Result of check.
+		 */
+		private boolean matches() {
+			if (mStack.size() != mSteps.length)
+				return false;
+			for (int i = 0; i < mSteps.length; i++) {
+				if (!mSteps[i].equals(mStack.get(i)))
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -1,25 +1,28 @@
 package org.unikn.quedix.reduce;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.xml.transform.sax.SAXSource;
-
-import org.basex.build.Parser;
-import org.basex.build.xml.SAXWrapper;
 import org.basex.core.Context;
-import org.basex.core.cmd.CreateDB;
-import org.basex.data.MemData;
-import org.basex.data.Result;
 import org.basex.query.QueryException;
-import org.basex.query.QueryProcessor;
 import org.basex.util.Token;
-import org.xml.sax.InputSource;
+import org.unikn.quedix.core.QueryFile;
+import org.unikn.quedix.core.ResultPipe;
+import org.unikn.quedix.core.Tasks;
 
 /**
  * This class is responsible to distribute the reducer task.
@@ -28,12 +31,31 @@ import org.xml.sax.InputSource;
  */
 public class ReduceClient {
 
-	/** Context. */
-	private Context mCtx;
+	/** Start tag. */
+	private static final byte[] START = Token.token("<results>");
+	/** End tag. */
+	private static final byte[] END = Token.token("</results>");
+
+	/** Engine executing the reducer. */
+	private ReduceEngine mEngine = ReduceEngine.shared();
+	/** Id of the registered reducer. */
+	private String mReducerId;
+	/** Built-in aggregation or <code>null</code>. */
+	private Aggregator mAggregator;
 	/** reduce process query. */
 	private byte[] mReduceFile;
-	/** start time. */
-	private long mStart;
+	/** Grouping key path for the partitioned reduce or <code>null</code>. */
+	private String mKey;
+	/** Number of partitions reduced in parallel. */
+	private int mPartitions = Runtime.getRuntime().availableProcessors();
+	/** Map results are in the compact intermediate format. */
+	private boolean mCompact;
+	/**
+	 * Size of the map results in bytes, up to which they are reduced in main
+	 * memory, by default a quarter of the heap. Their main memory
+	 * representation takes a multiple of it.
+	 */
+	private long mBudget = Runtime.getRuntime().maxMemory() / 4;
 
 	/**
 	 * Default.
@@ -44,40 +66,34 @@ public class ReduceClient {
 	 */
 	public ReduceClient(final File xQueryReducer) throws IOException {
 
-		mReduceFile = readByteArray(xQueryReducer);
+		mReduceFile = QueryFile.read(xQueryReducer);
 	}
 
 	/**
-	 * Default 2.
+	 * Constructor for a built-in aggregation, which is executed instead of an
+	 * XQuery reducer.
 	 * 
-	 * @param xQueryReducer
-	 *            reduce XQ file.
-	 * @param start
-	 *            start time.
-	 * @throws IOException
+	 * @param aggregator
+	 *            {@link Aggregator} instance.
 	 */
-	public ReduceClient(final File xQueryReducer, final long start)
-			throws IOException {
-		this(xQueryReducer);
-		mStart = start;
-
+	public ReduceClient(final Aggregator aggregator) {
+		mAggregator = aggregator;
 	}
 
 	/**
-	 * This method sends the user implemented XQuery reducer file to the
-	 * ReducerDb, where it will be executed.
+	 * This method registers the user implemented XQuery reducer file at the
+	 * {@link ReduceEngine}, where it will be executed. Reducers with the same
+	 * content are registered only once.
 	 * 
-	 * @param xQueryReducer
-	 *            The XQuery reducer file as byte array.
 	 * @throws QueryException
 	 *             Query exception.
 	 * @throws IOException
 	 *             XQuery processor exception.
 	 */
 	public void sendReducerTask() throws QueryException, IOException {
-
-		// local
-		mCtx = new Context();
+		if (mAggregator != null)
+			return;
+		mReducerId = mEngine.register(mReduceFile);
 	}
 
 	/**
@@ -96,47 +112,391 @@ public class ReduceClient {
 	 */
 	public void execute(final InputStream input, final OutputStream output)
 			throws IOException, QueryException {
-		mCtx = new Context();
-		// Nur well-formed XML contents erlaubt, dh keine Sequenz von Knoten
-		// ohne wrapping node :(
-		SAXSource sax = new SAXSource(new InputSource(input));
-		Parser p = new SAXWrapper(sax, mCtx.prop);
-		MemData memData = CreateDB.mainMem(p, mCtx);
-		mCtx.openDB(memData);
-		QueryProcessor proc = new QueryProcessor(Token.string(mReduceFile),
-				mCtx);
-		Result result = proc.execute();
-		System.out.println("Complete reduce result: " + result);
-		memData.close();
-		mCtx.close();
-		proc.close();
-
-		long end = System.nanoTime() - mStart;
-		System.out.println("\nComplete map and reduce execution time: " + end
-				/ 1000000 + " ms \n");
-	}
-
-	/**
-	 * Reads input file and writes it to a byte array.
-	 * 
-	 * @param file
-	 *            File name.
-	 * @return Byte array representation of file.
+		if (mAggregator != null) {
+			aggregate(input, output == null ? System.out : output);
+			return;
+		}
+		if (mKey != null && mPartitions > 1) {
+			executePartitioned(input, output == null ? System.out : output);
+			return;
+		}
+		if (mReducerId == null)
+			sendReducerTask();
+		OutputStream out = output == null ? System.out : output;
+		mEngine.reduce(mReducerId, input, out, mBudget);
+		out.flush();
+	}
+
+	/**
+	 * Executes reduce query on the map results of the data servers. The
+	 * results of each server are parsed as they arrive, without concatenating
+	 * them into one wrapped document first.
+	 * 
+	 * @param input
+	 *            {@link ResultPipe} containing map results.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Error creation of database.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public void execute(final ResultPipe input, final OutputStream output)
+			throws IOException, QueryException {
+		if (mAggregator != null && mAggregator.isOnline()) {
+			// estimates are reported before the complete result
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			mAggregator.aggregate(input, result);
+			aggregate(new ByteArrayInputStream(result.toByteArray()),
+					output == null ? System.out : output, false);
+			return;
+		}
+		if (mAggregator != null) {
+			aggregate(new SequenceInputStream(new ByteArrayInputStream(START),
+					new SequenceInputStream(input, new ByteArrayInputStream(END))),
+					output == null ? System.out : output);
+			return;
+		}
+		if (isPartitioned()) {
+			if (mCompact)
+				throw new IOException(
+						"Compact map results are not supported by the partitioned reduce.");
+			InputStream is = new SequenceInputStream(new ByteArrayInputStream(
+					START), new SequenceInputStream(input,
+					new ByteArrayInputStream(END)));
+			executePartitioned(is, output == null ? System.out : output);
+			return;
+		}
+		if (mReducerId == null)
+			sendReducerTask();
+		OutputStream out = output == null ? System.out : output;
+		mEngine.reduce(mReducerId, input, out, mCompact, mBudget);
+		out.flush();
+	}
+
+	/**
+	 * Opens the result of the XQuery reducer on the map results as iterator
+	 * of items, which are evaluated one by one. The result has to be closed.
+	 * 
+	 * @param input
+	 *            {@link InputStream} containing map results, wrapped by one
+	 *            root element.
+	 * @return {@link ReduceResult} instance.
+	 * @throws IOException
+	 *             Error creation of database or a built-in aggregation is
+	 *             used.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public ReduceResult iterate(final InputStream input) throws IOException,
+			QueryException {
+		if (mAggregator != null)
+			throw new IOException("Built-in aggregations have no item results.");
+		if (mReducerId == null)
+			sendReducerTask();
+		return mEngine.open(mReducerId, input, mBudget);
+	}
+
+	/**
+	 * Opens the result of the XQuery reducer on the map results of the data
+	 * servers as iterator of items, which are evaluated one by one. The
+	 * result has to be closed.
+	 * 
+	 * @param input
+	 *            {@link ResultPipe} containing map results.
+	 * @return {@link ReduceResult} instance.
+	 * @throws IOException
+	 *             Error creation of database or a built-in aggregation is
+	 *             used.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public ReduceResult iterate(final ResultPipe input) throws IOException,
+			QueryException {
+		if (mAggregator != null)
+			throw new IOException("Built-in aggregations have no item results.");
+		if (mReducerId == null)
+			sendReducerTask();
+		return mEngine.open(mReducerId, input, mCompact, mBudget);
+	}
+
+	/**
+	 * Executes the built-in aggregation on the stream of map results.
+	 * 
+	 * @param input
+	 *            {@link InputStream} containing map results.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void aggregate(final InputStream input, final OutputStream output)
+			throws IOException {
+		aggregate(input, output, true);
+	}
+
+	/**
+	 * Writes the result of the built-in aggregation.
+	 * 
+	 * @param input
+	 *            {@link InputStream} containing map results or the aggregated
+	 *            result.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @param aggregate
+	 *            Flag if the input has to be aggregated or is copied.
 	 * @throws IOException
 	 *             Exception occurred.
 	 */
-	private byte[] readByteArray(final File file) throws IOException {
-		BufferedInputStream input = new BufferedInputStream(
-				new FileInputStream(file));
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		int i;
-		while ((i = input.read()) != -1)
-			bos.write(i);
-		input.close();
-		byte[] content = bos.toByteArray();
-		bos.close();
-		return content;
+	private void aggregate(final InputStream input, final OutputStream output,
+			final boolean aggregate) throws IOException {
+		if (aggregate) {
+			mAggregator.aggregate(input, output);
+		} else {
+			byte[] buffer = new byte[8192];
+			int i;
+			while ((i = input.read(buffer)) != -1)
+				output.write(buffer, 0, i);
+		}
+		output.flush();
+	}
 
+	/**
+	 * Hash partitions the map results by the grouping key and reduces each
+	 * partition in its own pooled {@link Context} in parallel. The partitions
+	 * are reduced while the map results are still being split. The output of
+	 * each partition is piped through its own {@link ResultPipe}, so it is
+	 * kept off the heap, and the outputs are streamed in order of the
+	 * partitions.
+	 * 
+	 * @param input
+	 *            {@link InputStream} containing map results.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Error creation of database.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	private void executePartitioned(final InputStream input,
+			final OutputStream output) throws IOException, QueryException {
+		if (mReducerId == null)
+			sendReducerTask();
+		final long budget = mBudget == Long.MAX_VALUE ? mBudget : mBudget
+				/ mPartitions;
+		ResultPipe[] pipes = new ResultPipe[mPartitions];
+		OutputStream[] parts = new OutputStream[mPartitions];
+		ResultPipe[] outputs = new ResultPipe[mPartitions];
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		ExecutorService executor = Executors.newFixedThreadPool(mPartitions);
+		for (int p = 0; p < mPartitions; p++) {
+			final String name = "partition" + p;
+			final ResultPipe pipe = new ResultPipe();
+			final ResultPipe result = new ResultPipe();
+			pipes[p] = pipe;
+			parts[p] = pipe.open(name);
+			outputs[p] = result;
+			results.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					InputStream is = new SequenceInputStream(
+							new ByteArrayInputStream(START),
+							new SequenceInputStream(pipe,
+									new ByteArrayInputStream(END)));
+					OutputStream out = result.open(name);
+					try {
+						mEngine.reduce(mReducerId, is, out, budget);
+					} finally {
+						out.close();
+						result.finish();
+						is.close();
+					}
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+		try {
+			try {
+				long[] counts = new Partitioner(mKey).split(input, parts);
+				for (int p = 0; p < mPartitions; p++)
+					System.out.println("Partition " + p + ": " + counts[p]
+							+ " items");
+			} finally {
+				for (int p = 0; p < mPartitions; p++) {
+					parts[p].close();
+					pipes[p].finish();
+				}
+			}
+			byte[] buffer = new byte[8192];
+			for (int p = 0; p < mPartitions; p++) {
+				int i;
+				while ((i = outputs[p].read(buffer)) != -1)
+					output.write(buffer, 0, i);
+				try {
+					results.get(p).get();
+				} catch (final InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(exc.getMessage());
+				} catch (final ExecutionException exc) {
+					if (exc.getCause() instanceof QueryException)
+						throw (QueryException) exc.getCause();
+					throw new IOException(exc.getCause().getMessage());
+				}
+			}
+		} finally {
+			Tasks.terminate(executor);
+			for (ResultPipe result : outputs)
+				result.close();
+		}
+		output.flush();
+	}
+
+	/**
+	 * Switches to the partitioned reduce, which hash partitions the map
+	 * results by a grouping key and reduces the partitions in parallel. The
+	 * reducer has to group by the same key, so that no group spans several
+	 * partitions.
+	 * 
+	 * @param key
+	 *            Grouping key path relative to a map result item, e.g.
+	 *            <code>@country</code>, or <code>null</code> for one
+	 *            partition.
+	 * @param partitions
+	 *            Number of partitions, e.g. the number of cores.
+	 */
+	public void setPartitionKey(final String key, final int partitions) {
+		mKey = key;
+		mPartitions = partitions;
+	}
+
+	/**
+	 * Checks if the partitioned reduce is used.
+	 * 
+	 * @return Result of check.
+	 */
+	public boolean isPartitioned() {
+		return mKey != null && mPartitions > 1;
+	}
+
+	/**
+	 * Checks if a built-in aggregation is executed instead of an XQuery
+	 * reducer.
+	 * 
+	 * @return Result of check.
+	 */
+	public boolean isAggregation() {
+		return mAggregator != null;
+	}
+
+	/**
+	 * Composes the mapper of the data servers for the reducer. Sketch
+	 * aggregations let the servers return their sketches instead of the map
+	 * results.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @return Composed query.
+	 */
+	public String compose(final String mapper) {
+		return mAggregator == null ? mapper : mAggregator.compose(mapper);
+	}
+
+	/**
+	 * Checks if a built-in additive aggregation is executed, which estimates
+	 * confidence intervals from the map results of each sampled document,
+	 * see {@link Aggregator}.
+	 * 
+	 * @return Result of check.
+	 */
+	public boolean isAdditive() {
+		return mAggregator != null && mAggregator.getType().isAdditive();
+	}
+
+	/**
+	 * Declares that the map results stem from a sample of the documents.
+	 * Built-in additive aggregations are scaled to estimates; the results of
+	 * XQuery reducers are those of the sample.
+	 * 
+	 * @param fraction
+	 *            Sampling fraction, 1 if not sampled.
+	 */
+	public void setSample(final double fraction) {
+		if (mAggregator != null)
+			mAggregator.setSample(fraction);
+	}
+
+	/**
+	 * Switches the built-in aggregation to the online aggregation, which
+	 * reports estimates after each server, see
+	 * {@link Aggregator#aggregate(ResultPipe, OutputStream)}. XQuery reducers
+	 * need the complete map results and report no estimates.
+	 * 
+	 * @param servers
+	 *            Number of servers delivering map results.
+	 * @param listener
+	 *            Listener of the estimates.
+	 */
+	public void setOnline(final int servers,
+			final Aggregator.ProgressListener listener) {
+		if (mAggregator != null)
+			mAggregator.setOnline(servers, listener);
+	}
+
+	/**
+	 * Weights the online estimates of the built-in aggregation by the
+	 * recorded sizes of the servers, see {@link Aggregator#setSizes(Map)}.
+	 * 
+	 * @param sizes
+	 *            Sizes keyed by server or <code>null</code>.
+	 * @return <code>true</code>, if the estimates are weighted.
+	 */
+	public boolean setSizes(final Map<String, Long> sizes) {
+		if (mAggregator == null)
+			return false;
+		mAggregator.setSizes(sizes);
+		return mAggregator.isWeighted();
+	}
+
+	/**
+	 * Sets the memory budget of the reduce. Larger map results are built as
+	 * temporary database on disk instead of main memory, which is slower, but
+	 * does not run out of memory.
+	 * 
+	 * @param budget
+	 *            Size of the map results in bytes, up to which they are
+	 *            reduced in main memory, or {@link Long#MAX_VALUE} to always
+	 *            reduce in main memory.
+	 */
+	public void setMemoryBudget(final long budget) {
+		mBudget = budget;
+	}
+
+	/**
+	 * Setter.
+	 * 
+	 * @param compact
+	 *            The map results piped into
+	 *            {@link #execute(ResultPipe, OutputStream)} are in the compact
+	 *            intermediate format instead of XML.
+	 */
+	public void setCompact(final boolean compact) {
+		mCompact = compact;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return reduce query.
+	 * @throws IllegalStateException
+	 *             The reducer is a built-in aggregation, which has no query.
+	 */
+	public String getQuery() {
+		if (mAggregator != null)
+			throw new IllegalStateException(
+					"Built-in aggregations are only reduced locally.");
+		return Token.string(mReduceFile);
 	}
 
 }
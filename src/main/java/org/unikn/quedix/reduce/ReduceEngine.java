@@ -0,0 +1,780 @@
+package org.unikn.quedix.reduce;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.basex.build.Parser;
+import org.basex.core.Context;
+import org.basex.core.cmd.CreateDB;
+import org.basex.core.cmd.DropDB;
+import org.basex.data.MemData;
+import org.basex.io.IOStream;
+import org.basex.query.QueryException;
+import org.basex.query.QueryProcessor;
+import org.basex.util.Token;
+import org.unikn.quedix.core.ResultPipe;
+import org.unikn.quedix.core.SpillBuffer;
+
+/**
+ * This class is a long-lived engine for local reduce executions. It keeps a
+ * pool of warm {@link Context} instances, which are reused by the following
+ * jobs, and registers the reducer queries by the hash of their content. A
+ * reducer is decoded and checked for errors once, when it is registered
+ * first. Every job still parses and compiles it again, as a compiled query
+ * is bound to the input it has been compiled for. The reducer is evaluated
+ * lazily, item by item, into the output stream or by iterating a
+ * {@link ReduceResult}, so its result is never materialized as a whole.
+ * <p>
+ * The input is built in main memory, while the map results are still
+ * delivered. Their size is measured on the way, and if it exceeds the memory
+ * budget of the job, the main memory build is abandoned and the input is
+ * built again as temporary database on disk, which is dropped after the
+ * reducer has been executed.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class ReduceEngine {
+
+	/** Engine shared by all reduce clients of this process. */
+	private static final ReduceEngine SHARED = new ReduceEngine(Runtime
+			.getRuntime().availableProcessors());
+	/** Name prefix of temporary databases on disk. */
+	private static final String TEMP = "quedixreduce";
+	/** Number of temporary databases created by this process. */
+	private static final AtomicInteger TEMPS = new AtomicInteger();
+	/** Source of map results in the native XML format. */
+	private static final Source XML = new Source() {
+
+		@Override
+		public Parser parser(final ResultPipe pipe, final Context ctx)
+				throws IOException {
+			return Parser.xmlParser(new IOStream(pipe), ctx.prop);
+		}
+	};
+	/** Source of map results as XML fragments, one document per server. */
+	private static final Source FRAGMENTS = new Source() {
+
+		@Override
+		public Parser parser(final ResultPipe pipe, final Context ctx)
+				throws IOException {
+			return new FragmentParser(pipe, ctx.prop);
+		}
+	};
+	/** Source of map results in the compact intermediate format. */
+	private static final Source COMPACT = new Source() {
+
+		@Override
+		public Parser parser(final ResultPipe pipe, final Context ctx)
+				throws IOException {
+			return new CompactParser(pipe, ctx.prop);
+		}
+	};
+
+	/** Idle contexts. */
+	private BlockingQueue<Context> mIdle = new LinkedBlockingQueue<Context>();
+	/** Number of created contexts. */
+	private AtomicInteger mCreated = new AtomicInteger();
+	/** Maximum number of contexts. */
+	private int mMax;
+	/** Registered reducer queries, indexed by content hash. */
+	private Map<String, String> mReducers = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param contexts
+	 *            Maximum number of contexts, i.e. of concurrent reduce
+	 *            executions.
+	 */
+	public ReduceEngine(final int contexts) {
+		mMax = Math.max(1, contexts);
+	}
+
+	/**
+	 * Returns the engine shared by all reduce clients, with one context per
+	 * available processor.
+	 * 
+	 * @return Shared {@link ReduceEngine} instance.
+	 */
+	public static ReduceEngine shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Registers a reducer. A new reducer is parsed once to report errors
+	 * before any map results arrive; registering it again only returns its
+	 * id.
+	 * 
+	 * @param reducer
+	 *            Reducer query as byte array.
+	 * @return Id of the reducer, i.e. the hash of its content.
+	 * @throws QueryException
+	 *             Reducer could not be parsed.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public String register(final byte[] reducer) throws QueryException,
+			IOException {
+		String id = hash(reducer);
+		if (!mReducers.containsKey(id)) {
+			String query = Token.string(reducer);
+			Context ctx = acquire();
+			try {
+				QueryProcessor proc = new QueryProcessor(query, ctx);
+				proc.parse();
+				proc.close();
+			} finally {
+				release(ctx);
+			}
+			mReducers.put(id, query);
+		}
+		return id;
+	}
+
+	/**
+	 * Builds the input in main memory with the native XML parser and executes
+	 * a registered reducer on it with one of the pooled contexts.
+	 * 
+	 * @param id
+	 *            Id of the reducer.
+	 * @param input
+	 *            {@link InputStream} containing map results, wrapped by one
+	 *            root element.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Error creation of database.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public void reduce(final String id, final InputStream input,
+			final OutputStream output) throws IOException, QueryException {
+		reduce(id, input, output, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Builds the input with the native XML parser, in main memory or on disk
+	 * if it exceeds the memory budget, and executes a registered reducer on
+	 * it with one of the pooled contexts.
+	 * 
+	 * @param id
+	 *            Id of the reducer.
+	 * @param input
+	 *            {@link InputStream} containing map results, wrapped by one
+	 *            root element.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @param budget
+	 *            Size of the map results in bytes, up to which the input is
+	 *            built in main memory.
+	 * @throws IOException
+	 *             Error creation of database.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public void reduce(final String id, final InputStream input,
+			final OutputStream output, final long budget) throws IOException,
+			QueryException {
+		serialize(open(id, input, budget), output);
+	}
+
+	/**
+	 * Builds the input with the native XML parser, in main memory or on disk
+	 * if it exceeds the memory budget, and opens the lazily evaluated result
+	 * of a registered reducer on it. The result holds one of the pooled
+	 * contexts until it is closed.
+	 * 
+	 * @param id
+	 *            Id of the reducer.
+	 * @param input
+	 *            {@link InputStream} containing map results, wrapped by one
+	 *            root element.
+	 * @param budget
+	 *            Size of the map results in bytes, up to which the input is
+	 *            built in main memory.
+	 * @return {@link ReduceResult} instance.
+	 * @throws IOException
+	 *             Error creation of database.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public ReduceResult open(final String id, final InputStream input,
+			final long budget) throws IOException, QueryException {
+		String query = query(id);
+		Meter meter = budget == Long.MAX_VALUE ? null : new Meter(input, budget);
+		Context ctx = acquire();
+		Parser parser = null;
+		try {
+			parser = meter == null ? Parser.xmlParser(new IOStream(input),
+					ctx.prop) : XML.parser(meter.getPipe(), ctx);
+		} finally {
+			if (parser == null)
+				release(ctx);
+		}
+		return open(query, ctx, parser, meter, XML);
+	}
+
+	/**
+	 * Builds the input in main memory out of the map results of the data
+	 * servers, one document per server, and executes a registered reducer on
+	 * it with one of the pooled contexts.
+	 * 
+	 * @param id
+	 *            Id of the reducer.
+	 * @param input
+	 *            Map results of the data servers.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Error creation of database.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public void reduce(final String id, final ResultPipe input,
+			final OutputStream output) throws IOException, QueryException {
+		reduce(id, input, output, false);
+	}
+
+	/**
+	 * Builds the input in main memory out of the map results of the data
+	 * servers, one document per server, and executes a registered reducer on
+	 * it with one of the pooled contexts.
+	 * 
+	 * @param id
+	 *            Id of the reducer.
+	 * @param input
+	 *            Map results of the data servers.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @param compact
+	 *            Map results are in the compact intermediate format instead
+	 *            of XML.
+	 * @throws IOException
+	 *             Error creation of database.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public void reduce(final String id, final ResultPipe input,
+			final OutputStream output, final boolean compact)
+			throws IOException, QueryException {
+		reduce(id, input, output, compact, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Builds the input out of the map results of the data servers, one
+	 * document per server, in main memory or on disk if it exceeds the memory
+	 * budget, and executes a registered reducer on it with one of the pooled
+	 * contexts.
+	 * 
+	 * @param id
+	 *            Id of the reducer.
+	 * @param input
+	 *            Map results of the data servers.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @param compact
+	 *            Map results are in the compact intermediate format instead
+	 *            of XML.
+	 * @param budget
+	 *            Size of the map results in bytes, up to which the input is
+	 *            built in main memory.
+	 * @throws IOException
+	 *             Error creation of database.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public void reduce(final String id, final ResultPipe input,
+			final OutputStream output, final boolean compact, final long budget)
+			throws IOException, QueryException {
+		serialize(open(id, input, compact, budget), output);
+	}
+
+	/**
+	 * Builds the input out of the map results of the data servers, one
+	 * document per server, in main memory or on disk if it exceeds the memory
+	 * budget, and opens the lazily evaluated result of a registered reducer
+	 * on it. The result holds one of the pooled contexts until it is closed.
+	 * 
+	 * @param id
+	 *            Id of the reducer.
+	 * @param input
+	 *            Map results of the data servers.
+	 * @param compact
+	 *            Map results are in the compact intermediate format instead
+	 *            of XML.
+	 * @param budget
+	 *            Size of the map results in bytes, up to which the input is
+	 *            built in main memory.
+	 * @return {@link ReduceResult} instance.
+	 * @throws IOException
+	 *             Error creation of database.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	public ReduceResult open(final String id, final ResultPipe input,
+			final boolean compact, final long budget) throws IOException,
+			QueryException {
+		String query = query(id);
+		Meter meter = budget == Long.MAX_VALUE ? null : new Meter(input, budget);
+		Source source = compact ? COMPACT : FRAGMENTS;
+		Context ctx = acquire();
+		Parser parser = null;
+		try {
+			parser = source.parser(meter == null ? input : meter.getPipe(),
+					ctx);
+		} finally {
+			if (parser == null)
+				release(ctx);
+		}
+		return open(query, ctx, parser, meter, source);
+	}
+
+	/**
+	 * Takes an idle context out of the pool. New contexts are created as long
+	 * as the maximum is not reached, otherwise the call waits for a released
+	 * one.
+	 * 
+	 * @return {@link Context} instance.
+	 * @throws IOException
+	 *             Waiting has been interrupted.
+	 */
+	public Context acquire() throws IOException {
+		Context ctx = mIdle.poll();
+		if (ctx != null)
+			return ctx;
+		if (mCreated.incrementAndGet() <= mMax)
+			return new Context();
+		mCreated.decrementAndGet();
+		try {
+			return mIdle.take();
+		} catch (final InterruptedException exc) {
+			throw new InterruptedIOException(exc.getMessage());
+		}
+	}
+
+	/**
+	 * Returns a context into the pool.
+	 * 
+	 * @param ctx
+	 *            {@link Context} instance without opened database.
+	 */
+	public void release(final Context ctx) {
+		mIdle.offer(ctx);
+	}
+
+	/**
+	 * Closes all idle contexts.
+	 */
+	public void close() {
+		for (Context ctx = mIdle.poll(); ctx != null; ctx = mIdle.poll()) {
+			ctx.close();
+			mCreated.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns a registered reducer.
+	 * 
+	 * @param id
+	 *            Id of the reducer.
+	 * @return Reducer query.
+	 * @throws IOException
+	 *             Reducer is not registered.
+	 */
+	private String query(final String id) throws IOException {
+		String query = mReducers.get(id);
+		if (query == null)
+			throw new IOException("Reducer " + id + " is not registered.");
+		return query;
+	}
+
+	/**
+	 * Builds the input and opens the result of the reducer on it. The input
+	 * is built in main memory first. If the {@link Meter} signals that it
+	 * exceeds the budget, the main memory build is abandoned and the input is
+	 * built again from the copy of the meter as temporary database on disk.
+	 * The context is released, if the result cannot be opened.
+	 * 
+	 * @param query
+	 *            Reducer query.
+	 * @param ctx
+	 *            {@link Context} instance.
+	 * @param input
+	 *            {@link Parser} for the map results.
+	 * @param meter
+	 *            {@link Meter} of the map results or <code>null</code> to
+	 *            build the input in main memory.
+	 * @param source
+	 *            {@link Source} of the parser for the build on disk.
+	 * @return {@link ReduceResult} instance.
+	 * @throws IOException
+	 *             Error creation of database.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	private ReduceResult open(final String query, final Context ctx,
+			final Parser input, final Meter meter, final Source source)
+			throws IOException, QueryException {
+		String name = null;
+		QueryProcessor proc = null;
+		ReduceResult result = null;
+		try {
+			MemData memData = null;
+			try {
+				memData = CreateDB.mainMem(input, ctx);
+			} catch (final IOException exc) {
+				// the map results have been cut off at the budget
+				if (meter == null || !meter.isExceeded())
+					throw exc;
+			}
+			if (meter != null && meter.exceeds()) {
+				memData = null;
+				name = TEMP + System.nanoTime() + "x" + TEMPS.incrementAndGet();
+				System.out.println("Map results exceed the memory budget, "
+						+ "reducing on disk in database " + name);
+				ctx.openDB(CreateDB.create(name,
+						source.parser(meter.getCopy(), ctx), ctx));
+			} else {
+				if (meter != null)
+					meter.getCopy().close();
+				ctx.openDB(memData);
+			}
+			if (meter != null)
+				meter.check();
+			proc = new QueryProcessor(query, ctx);
+			result = new ReduceResult(this, ctx, proc, name);
+			return result;
+		} finally {
+			if (meter != null)
+				meter.close();
+			if (result == null) {
+				try {
+					if (proc != null)
+						proc.close();
+				} finally {
+					ctx.closeDB();
+					try {
+						if (name != null)
+							drop(name, ctx);
+					} finally {
+						release(ctx);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serializes and closes the result of a reducer.
+	 * 
+	 * @param result
+	 *            {@link ReduceResult} instance.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 * @throws QueryException
+	 *             Query exception.
+	 */
+	private static void serialize(final ReduceResult result,
+			final OutputStream output) throws IOException, QueryException {
+		try {
+			result.serialize(output);
+		} finally {
+			result.close();
+		}
+	}
+
+	/**
+	 * Drops a temporary database.
+	 * 
+	 * @param name
+	 *            Database name.
+	 * @param ctx
+	 *            {@link Context} instance.
+	 * @throws IOException
+	 *             Database could not be dropped.
+	 */
+	static void drop(final String name, final Context ctx) throws IOException {
+		new DropDB(name).execute(ctx);
+	}
+
+	/**
+	 * Computes the content hash of a reducer.
+	 * 
+	 * @param reducer
+	 *            Reducer query as byte array.
+	 * @return Hex string of the MD5 hash.
+	 */
+	private static String hash(final byte[] reducer) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(reducer);
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest)
+				sb.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+			return sb.toString();
+		} catch (final NoSuchAlgorithmException exc) {
+			// MD5 is available on every Java platform
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	/**
+	 * Creates the parser for one build of the map results.
+	 */
+	private interface Source {
+
+		/**
+		 * Creates a parser for the map results.
+		 * 
+		 * @param pipe
+		 *            Map results.
+		 * @param ctx
+		 *            {@link Context} instance.
+		 * @return {@link Parser} instance.
+		 * @throws IOException
+		 *             Parser could not be created.
+		 */
+		Parser parser(ResultPipe pipe, Context ctx) throws IOException;
+	}
+
+	/**
+	 * Passes the map results on to the main memory build and measures them on
+	 * the way. Once they exceed the budget, the main memory build is cut off
+	 * and the results are only copied on. The copy is spilled to disk chunk by
+	 * chunk, so the heap only holds the results of the main memory build, and
+	 * is read for the build on disk.
+	 */
+	private static class Meter {
+
+		/** Memory budget in bytes. */
+		private final long mBudget;
+		/** Map results for the main memory build. */
+		private final ResultPipe mPipe = new ResultPipe(SpillBuffer.THRESHOLD,
+				ResultPipe.CAPACITY);
+		/** Copy of the map results for the build on disk. */
+		private final ResultPipe mCopy = new ResultPipe(0);
+		/** Number of measured bytes. */
+		private long mBytes;
+		/** Flag if the map results exceed the budget. */
+		private boolean mExceeded;
+		/** Flag if all map results have been passed on. */
+		private boolean mDone;
+		/** Exception of the transfer or <code>null</code>. */
+		private IOException mError;
+
+		/**
+		 * Constructor, which starts passing on the map results of the data
+		 * servers.
+		 * 
+		 * @param input
+		 *            Map results of the data servers.
+		 * @param budget
+		 *            Memory budget in bytes.
+		 */
+		Meter(final ResultPipe input, final long budget) {
+			mBudget = budget;
+			start(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					for (ResultPipe.PartInput part; (part = input.nextPart()) != null;)
+						transfer(part, part.getServer());
+					return null;
+				}
+			});
+		}
+
+		/**
+		 * Constructor, which starts passing on the map results.
+		 * 
+		 * @param input
+		 *            {@link InputStream} containing map results.
+		 * @param budget
+		 *            Memory budget in bytes.
+		 */
+		Meter(final InputStream input, final long budget) {
+			mBudget = budget;
+			start(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					transfer(input, TEMP);
+					return null;
+				}
+			});
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return map results for the main memory build.
+		 */
+		ResultPipe getPipe() {
+			return mPipe;
+		}
+
+		/**
+		 * Getter.
+		 * 
+		 * @return copy of the map results for the build on disk.
+		 */
+		ResultPipe getCopy() {
+			return mCopy;
+		}
+
+		/**
+		 * Checks if the map results have exceeded the budget so far.
+		 * 
+		 * @return <code>true</code> if the map results exceed the budget.
+		 */
+		synchronized boolean isExceeded() {
+			return mExceeded;
+		}
+
+		/**
+		 * Waits until either all map results have been passed on or the
+		 * budget is exceeded.
+		 * 
+		 * @return <code>true</code> if the map results exceed the budget.
+		 * @throws IOException
+		 *             Waiting has been interrupted.
+		 */
+		synchronized boolean exceeds() throws IOException {
+			try {
+				while (!mDone && !mExceeded)
+					wait();
+			} catch (final InterruptedException exc) {
+				throw new InterruptedIOException(exc.getMessage());
+			}
+			return mExceeded;
+		}
+
+		/**
+		 * Throws the exception of the transfer, if any.
+		 * 
+		 * @throws IOException
+		 *             Map results could not be passed on.
+		 */
+		synchronized void check() throws IOException {
+			if (mError != null)
+				throw mError;
+		}
+
+		/**
+		 * Closes both pipes, which releases a blocked transfer.
+		 * 
+		 * @throws IOException
+		 *             Exception occurred.
+		 */
+		void close() throws IOException {
+			try {
+				mPipe.close();
+			} finally {
+				mCopy.close();
+			}
+		}
+
+		/**
+		 * Runs the transfer in its own thread.
+		 * 
+		 * @param task
+		 *            Transfer task.
+		 */
+		private void start(final Callable<Void> task) {
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					try {
+						task.call();
+					} catch (final IOException exc) {
+						synchronized (Meter.this) {
+							mError = exc;
+						}
+					} finally {
+						mCopy.finish();
+						if (!isExceeded())
+							mPipe.finish();
+						synchronized (Meter.this) {
+							mDone = true;
+							Meter.this.notifyAll();
+						}
+					}
+					return null;
+				}
+			});
+			executor.shutdown();
+		}
+
+		/**
+		 * Passes on the map results of one server, to the main memory build
+		 * until the budget is exceeded and to the copy.
+		 * 
+		 * @param input
+		 *            Map results.
+		 * @param server
+		 *            Server id.
+		 * @throws IOException
+		 *             Exception occurred.
+		 */
+		private void transfer(final InputStream input, final String server)
+				throws IOException {
+			OutputStream copy = mCopy.open(server);
+			OutputStream out = isExceeded() ? null : mPipe.open(server);
+			try {
+				byte[] buffer = new byte[8192];
+				int i;
+				while ((i = input.read(buffer)) != -1) {
+					copy.write(buffer, 0, i);
+					if (out == null)
+						continue;
+					if (measure(i)) {
+						out.write(buffer, 0, i);
+					} else {
+						// cut off the main memory build
+						out.close();
+						out = null;
+						mPipe.finish();
+					}
+				}
+			} finally {
+				try {
+					copy.close();
+				} finally {
+					if (out != null)
+						out.close();
+				}
+			}
+		}
+
+		/**
+		 * Counts transferred bytes.
+		 * 
+		 * @param bytes
+		 *            Number of bytes.
+		 * @return <code>true</code> if the map results are within the budget.
+		 */
+		private synchronized boolean measure(final int bytes) {
+			mBytes += bytes;
+			if (mBytes > mBudget) {
+				mExceeded = true;
+				notifyAll();
+			}
+			return !mExceeded;
+		}
+	}
+}
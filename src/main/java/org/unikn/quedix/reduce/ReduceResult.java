@@ -0,0 +1,155 @@
+package org.unikn.quedix.reduce;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.basex.core.Context;
+import org.basex.io.serial.Serializer;
+import org.basex.query.QueryException;
+import org.basex.query.QueryProcessor;
+import org.basex.query.item.Item;
+import org.basex.query.iter.Iter;
+
+/**
+ * This class is the result of a reducer, which is evaluated lazily. The items
+ * are computed one by one, while they are iterated or serialized, so the
+ * result is never materialized as a whole. The reducer input and the
+ * {@link Context} stay open until the result is closed; node items are only
+ * valid until then.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class ReduceResult implements Iterator<Item>, Closeable {
+
+	/** Engine owning the context. */
+	private ReduceEngine mEngine;
+	/** Context with the opened reducer input. */
+	private Context mCtx;
+	/** Query processor of the reducer. */
+	private QueryProcessor mProc;
+	/** Item iterator. */
+	private Iter mIter;
+	/** Name of a temporary database on disk or <code>null</code>. */
+	private String mTemp;
+	/** Next item or <code>null</code>. */
+	private Item mNext;
+	/** Flag if all items have been returned. */
+	private boolean mDone;
+	/** Flag if the result has been closed. */
+	private boolean mClosed;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param engine
+	 *            Engine owning the context.
+	 * @param ctx
+	 *            Context with the opened reducer input.
+	 * @param proc
+	 *            Query processor of the reducer.
+	 * @param temp
+	 *            Name of a temporary database on disk or <code>null</code>.
+	 * @throws QueryException
+	 *             Reducer could not be evaluated.
+	 */
+	ReduceResult(final ReduceEngine engine, final Context ctx,
+			final QueryProcessor proc, final String temp)
+			throws QueryException {
+		mEngine = engine;
+		mCtx = ctx;
+		mProc = proc;
+		mTemp = temp;
+		mIter = proc.iter();
+	}
+
+	@Override
+	public boolean hasNext() {
+		try {
+			return fetch();
+		} catch (final QueryException exc) {
+			throw new IllegalStateException(exc.getMessage());
+		}
+	}
+
+	@Override
+	public Item next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Item item = mNext;
+		mNext = null;
+		return item;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Serializes the remaining items one by one with the serialization
+	 * parameters of the reducer.
+	 * 
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 * @throws QueryException
+	 *             Reducer could not be evaluated.
+	 */
+	public void serialize(final OutputStream output) throws IOException,
+			QueryException {
+		Serializer ser = mProc.getSerializer(output);
+		try {
+			while (fetch()) {
+				ser.openResult();
+				next().serialize(ser);
+				ser.closeResult();
+			}
+		} finally {
+			ser.close();
+		}
+	}
+
+	/**
+	 * Computes the next item, unless it is pending.
+	 * 
+	 * @return <code>true</code> if there is a next item.
+	 * @throws QueryException
+	 *             Reducer could not be evaluated.
+	 */
+	private boolean fetch() throws QueryException {
+		if (mNext == null && !mDone) {
+			mNext = mIter.next();
+			mDone = mNext == null;
+		}
+		return mNext != null;
+	}
+
+	/**
+	 * Closes the reducer input and returns the context to the engine. A
+	 * temporary database on disk is dropped.
+	 * 
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mClosed)
+			return;
+		mClosed = true;
+		try {
+			mProc.close();
+		} finally {
+			mCtx.closeDB();
+			try {
+				if (mTemp != null)
+					ReduceEngine.drop(mTemp, mCtx);
+			} finally {
+				mEngine.release(mCtx);
+			}
+		}
+	}
+}
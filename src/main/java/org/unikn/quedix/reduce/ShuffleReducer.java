@@ -0,0 +1,359 @@
+package org.unikn.quedix.reduce;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.unikn.quedix.core.Client;
+import org.unikn.quedix.core.QueryComposer;
+import org.unikn.quedix.core.ResultPipe;
+import org.unikn.quedix.core.SpillBuffer;
+import org.unikn.quedix.core.Tasks;
+
+/**
+ * This class executes a map and reduce job with a key based shuffle, for
+ * jobs whose map results exceed the memory of this client. Each data server
+ * partitions its map results by a key expression into a temporary database.
+ * Every partition is owned by one server. It is streamed from all servers
+ * into another temporary database of its owner, which runs the reducer on
+ * it. All servers reduce in parallel and their outputs are streamed back
+ * through a {@link ResultPipe}.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class ShuffleReducer {
+
+	/** Input of the reducer on a reduce server. */
+	private static final String INPUT = "/results/node()";
+	/** XML file ending. */
+	private static final String XML = ".xml";
+
+	/** Client. */
+	private Client mClient;
+	/** Reducer query. */
+	private String mReducer;
+	/** Key expression. */
+	private String mKey;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param client
+	 *            {@link Client} instance.
+	 * @param reducer
+	 *            Reducer query or <code>null</code>, if the results are only
+	 *            partitioned.
+	 * @param key
+	 *            Key expression, relative to a map result item.
+	 */
+	public ShuffleReducer(final Client client, final String reducer,
+			final String key) {
+		mClient = client;
+		mReducer = reducer;
+		mKey = key;
+	}
+
+	/**
+	 * Executes the mapper, shuffles its results and reduces them on the data
+	 * servers.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public void execute(final String mapper, final OutputStream output)
+			throws IOException {
+		final List<String> servers = mClient.getServers();
+		if (servers.isEmpty())
+			return;
+		String job = "quedixshuffle" + System.nanoTime();
+		final String mapDb = job + "m";
+		final String reduceDb = job + "r";
+		try {
+			long start = System.nanoTime();
+			map(servers, mapper, mapDb);
+			long time = System.nanoTime() - start;
+			System.out.println("Time for partitioned map: " + time / 1000000
+					+ " ms");
+			start = System.nanoTime();
+			shuffle(servers, mapDb, reduceDb);
+			time = System.nanoTime() - start;
+			System.out.println("Time for shuffle: " + time / 1000000 + " ms");
+			reduce(servers, reduceDb, output);
+		} finally {
+			for (String server : servers) {
+				mClient.dropDb(server, mapDb);
+				mClient.dropDb(server, reduceDb);
+			}
+		}
+	}
+
+	/**
+	 * Executes the mapper and shuffles its results, without reducing them.
+	 * Afterwards the database of each server contains one document per
+	 * server with the map results of its partition, wrapped into a
+	 * <code>&lt;results/&gt;</code> element. The database has to be dropped
+	 * by the caller.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param db
+	 *            Name of the database for the partitions.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public void partition(final String mapper, final String db)
+			throws IOException {
+		final List<String> servers = mClient.getServers();
+		if (servers.isEmpty())
+			return;
+		String mapDb = db + "m";
+		try {
+			map(servers, mapper, mapDb);
+			shuffle(servers, mapDb, db);
+		} finally {
+			for (String server : servers)
+				mClient.dropDb(server, mapDb);
+		}
+	}
+
+	/**
+	 * Executes the mapper on all servers, each storing its partitioned map
+	 * results in a temporary database.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @param mapper
+	 *            Mapper query.
+	 * @param db
+	 *            Name of the temporary database.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void map(final List<String> servers, final String mapper,
+			final String db) throws IOException {
+		final String query = QueryComposer.shuffle(mapper, mKey, db,
+				servers.size());
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+		for (final String server : servers) {
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					if (!mClient.createDb(server, db))
+						throw new IOException("Database " + db
+								+ " could not be created on " + server);
+					mClient.query(server, null, query, new OutputStream() {
+
+						@Override
+						public void write(final int b) {
+							// updating query, no results
+						}
+					});
+					return null;
+				}
+			}));
+		}
+		Tasks.await(executor, futures);
+	}
+
+	/**
+	 * Moves each partition from all servers into the temporary database of
+	 * its owning server. The partition, which the owner holds itself, is
+	 * copied by a query on the owner. All other partitions are streamed from
+	 * their server into the owner while they are read, so no partition is
+	 * buffered as a whole. As a server executes one command at a time, the
+	 * transfers run in rounds, in which every server delivers or receives at
+	 * most one partition, so two servers never wait for each other.
+	 * 
+	 * @param servers
+	 *            Servers, partition <code>i</code> is owned by server
+	 *            <code>i</code>.
+	 * @param mapDb
+	 *            Name of the databases with the partitioned map results.
+	 * @param reduceDb
+	 *            Name of the databases for the reducer input.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void shuffle(final List<String> servers, final String mapDb,
+			final String reduceDb) throws IOException {
+		final int n = servers.size();
+		// pairs of delivering server and owner, ordered by their distance
+		List<int[]> transfers = new ArrayList<int[]>();
+		for (int d = 0; d < n; d++) {
+			for (int o = 0; o < n; o++)
+				transfers.add(new int[] { (o + d) % n, o });
+		}
+		for (String owner : servers) {
+			if (!mClient.createDb(owner, reduceDb))
+				throw new IOException("Database " + reduceDb
+						+ " could not be created on " + owner);
+		}
+		while (!transfers.isEmpty()) {
+			boolean[] busy = new boolean[n];
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			ExecutorService executor = Executors.newFixedThreadPool(2 * n);
+			for (Iterator<int[]> it = transfers.iterator(); it.hasNext();) {
+				int[] t = it.next();
+				if (busy[t[0]] || busy[t[1]])
+					continue;
+				busy[t[0]] = true;
+				busy[t[1]] = true;
+				it.remove();
+				transfer(executor, futures, servers.get(t[0]),
+						servers.get(t[1]), t[1], mapDb, reduceDb);
+			}
+			Tasks.await(executor, futures);
+		}
+	}
+
+	/**
+	 * Submits the transfer of a partition from a server to its owner.
+	 * 
+	 * @param executor
+	 *            {@link ExecutorService} executing the transfer.
+	 * @param futures
+	 *            Futures of the submitted tasks.
+	 * @param server
+	 *            Delivering server.
+	 * @param owner
+	 *            Owning server.
+	 * @param partition
+	 *            Partition.
+	 * @param mapDb
+	 *            Name of the databases with the partitioned map results.
+	 * @param reduceDb
+	 *            Name of the databases for the reducer input.
+	 */
+	private void transfer(final ExecutorService executor,
+			final List<Future<Void>> futures, final String server,
+			final String owner, final int partition, final String mapDb,
+			final String reduceDb) {
+		String open = "db:open(" + QueryComposer.literal(mapDb) + ", "
+				+ QueryComposer.literal("p" + partition + XML) + ")";
+		if (server.equals(owner)) {
+			final String query = "db:add(" + QueryComposer.literal(reduceDb)
+					+ ", " + open + ", " + QueryComposer.literal(owner + XML)
+					+ ")";
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					mClient.query(owner, null, query, new OutputStream() {
+
+						@Override
+						public void write(final int b) {
+							// updating query, no results
+						}
+					});
+					return null;
+				}
+			}));
+			return;
+		}
+		final String query = open;
+		final ResultPipe pipe = new ResultPipe(SpillBuffer.THRESHOLD,
+				ResultPipe.CAPACITY);
+		futures.add(executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				OutputStream out = pipe.open(server);
+				try {
+					mClient.query(server, null, query, out);
+				} finally {
+					out.close();
+					pipe.finish();
+				}
+				return null;
+			}
+		}));
+		futures.add(executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				try {
+					if (!mClient.add(owner, reduceDb, server + XML, pipe))
+						throw new IOException("Partition " + partition
+								+ " of " + server + " could not be added to "
+								+ owner);
+				} finally {
+					pipe.close();
+				}
+				return null;
+			}
+		}));
+	}
+
+	/**
+	 * Runs the reducer on all servers in parallel and streams the outputs
+	 * back in order of their delivery.
+	 * 
+	 * @param servers
+	 *            Servers.
+	 * @param db
+	 *            Name of the databases with the reducer input.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void reduce(final List<String> servers, final String db,
+			final OutputStream output) throws IOException {
+		final String query = QueryComposer.reduce(INPUT, mReducer);
+		final ResultPipe pipe = new ResultPipe();
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		ExecutorService executor = Executors
+				.newFixedThreadPool(servers.size() + 1);
+		for (final String server : servers) {
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					OutputStream out = pipe.open(server);
+					try {
+						mClient.query(server, db, query, out);
+					} finally {
+						out.close();
+					}
+					return null;
+				}
+			}));
+		}
+		executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				try {
+					for (Future<Void> future : futures)
+						future.get();
+				} finally {
+					pipe.finish();
+				}
+				return null;
+			}
+		});
+		executor.shutdown();
+		try {
+			byte[] buffer = new byte[8192];
+			int i;
+			while ((i = pipe.read(buffer)) != -1)
+				output.write(buffer, 0, i);
+			output.flush();
+		} finally {
+			pipe.close();
+		}
+		Tasks.await(executor, futures);
+	}
+}
@@ -0,0 +1,176 @@
+package org.unikn.quedix.reduce;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.basex.util.Token;
+import org.unikn.quedix.core.Client;
+import org.unikn.quedix.core.QueryComposer;
+import org.unikn.quedix.core.ResultPipe;
+import org.unikn.quedix.core.SpillBuffer;
+import org.unikn.quedix.core.Tasks;
+
+/**
+ * This class executes ordered map jobs. Every data server sorts its map
+ * results by a {@link SortOrder}. The sorted streams of all servers are
+ * merged with a heap, which holds the current item of each server, and each
+ * merged item is written to the output at once. For ranking jobs, the
+ * servers return only their local top k and the merge stops as soon as the
+ * global top k have been written, so network traffic and merge costs depend
+ * on the number of servers and on k, but not on the size of the collection.
+ * For complete orders, the unread results of each server are spilled to
+ * disk beyond a small buffer, so the merge runs in constant memory.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class SortMerger {
+
+	/** Start tag. */
+	private static final byte[] START = Token.token("<results>");
+	/** End tag. */
+	private static final byte[] END = Token.token("</results>");
+	/** Buffered results of each server, after which they are spilled. */
+	private static final long THRESHOLD = 4L * SpillBuffer.CHUNK;
+
+	/** Client. */
+	private Client mClient;
+	/** Order of the results. */
+	private SortOrder mOrder;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param client
+	 *            {@link Client} instance.
+	 * @param order
+	 *            Order of the results.
+	 */
+	public SortMerger(final Client client, final SortOrder order) {
+		mClient = client;
+		mOrder = order;
+	}
+
+	/**
+	 * Executes the mapper on all servers and writes all results in order.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @return Number of written results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public long execute(final String mapper, final OutputStream output)
+			throws IOException {
+		return execute(mapper, 0, output);
+	}
+
+	/**
+	 * Executes the mapper on all servers and writes the top k of all results.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param k
+	 *            Number of results, 0 for all results.
+	 * @param output
+	 *            {@link OutputStream} for writing results.
+	 * @return Number of written results.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public long execute(final String mapper, final int k,
+			final OutputStream output) throws IOException {
+		final List<String> servers = mClient.getServers();
+		if (servers.isEmpty())
+			return 0;
+		final String query = QueryComposer.sort(mapper, mOrder.getKey(),
+				mOrder.isDescending(), mOrder.isNumeric(), k);
+		final ItemReader[] readers = new ItemReader[servers.size()];
+		ResultPipe[] pipes = new ResultPipe[servers.size()];
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+		for (int s = 0; s < servers.size(); s++) {
+			final String server = servers.get(s);
+			final ResultPipe pipe = new ResultPipe(k > 0 ? SpillBuffer.THRESHOLD
+					: THRESHOLD);
+			pipes[s] = pipe;
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					OutputStream out = pipe.open(server);
+					try {
+						mClient.query(server, null, query, out);
+					} finally {
+						out.close();
+						pipe.finish();
+					}
+					return null;
+				}
+			}));
+		}
+		long written = 0;
+		try {
+			PriorityQueue<Integer> heap = new PriorityQueue<Integer>(
+					servers.size(), new Comparator<Integer>() {
+
+						@Override
+						public int compare(final Integer s1, final Integer s2) {
+							int c = mOrder.compare(readers[s1].getKey(),
+									readers[s2].getKey());
+							return c != 0 ? c : s1.compareTo(s2);
+						}
+					});
+			for (int s = 0; s < servers.size(); s++) {
+				readers[s] = new ItemReader(wrap(pipes[s]), mOrder.getKey());
+				if (readers[s].next())
+					heap.add(s);
+			}
+			while (!heap.isEmpty() && (k <= 0 || written < k)) {
+				int s = heap.poll();
+				output.write(Token.token(readers[s].getItem()));
+				written++;
+				if (readers[s].next())
+					heap.add(s);
+			}
+			output.flush();
+		} finally {
+			for (ItemReader reader : readers) {
+				if (reader != null)
+					reader.close();
+			}
+			// unread results are dropped after the servers have finished
+			try {
+				Tasks.await(executor, futures);
+			} finally {
+				for (ResultPipe pipe : pipes)
+					pipe.close();
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Wraps the results of a server by a root element.
+	 * 
+	 * @param input
+	 *            Results of a server.
+	 * @return Wrapped results.
+	 */
+	private static InputStream wrap(final InputStream input) {
+		return new SequenceInputStream(new ByteArrayInputStream(START),
+				new SequenceInputStream(input, new ByteArrayInputStream(END)));
+	}
+}
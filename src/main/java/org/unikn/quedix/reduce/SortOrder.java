@@ -0,0 +1,166 @@
+package org.unikn.quedix.reduce;
+
+/**
+ * This class describes the order of map results by a user declared key. The
+ * key is a path relative to a result item, e.g. <code>@population</code> or
+ * <code>name</code>, and its first value is compared either as string, by
+ * code points, or as number. Missing keys sort least. An order is declared
+ * by a specification like <code>@population:desc:number</code>.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class SortOrder {
+
+	/** Separator of the specification. */
+	private static final String COLON = ":";
+	/** Descending flag of the specification. */
+	private static final String DESC = "desc";
+	/** Ascending flag of the specification. */
+	private static final String ASC = "asc";
+	/** Numeric flag of the specification. */
+	private static final String NUMBER = "number";
+
+	/** Key path. */
+	private String mKey;
+	/** Flag for descending order. */
+	private boolean mDescending;
+	/** Flag if keys are compared as numbers. */
+	private boolean mNumeric;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param key
+	 *            Key path, relative to a result item.
+	 * @param descending
+	 *            Flag for descending order.
+	 * @param numeric
+	 *            Flag if keys are compared as numbers.
+	 */
+	public SortOrder(final String key, final boolean descending,
+			final boolean numeric) {
+		mKey = key;
+		mDescending = descending;
+		mNumeric = numeric;
+	}
+
+	/**
+	 * Parses an order specification, e.g. <code>@population:desc:number</code>.
+	 * 
+	 * @param spec
+	 *            Specification.
+	 * @return {@link SortOrder} instance.
+	 */
+	public static SortOrder parse(final String spec) {
+		String[] parts = spec.trim().split(COLON);
+		boolean descending = false;
+		boolean numeric = false;
+		for (int i = 1; i < parts.length; i++) {
+			if (parts[i].equals(DESC))
+				descending = true;
+			else if (parts[i].equals(NUMBER))
+				numeric = true;
+			else if (!parts[i].equals(ASC))
+				throw new IllegalArgumentException("Unknown order flag: "
+						+ parts[i]);
+		}
+		return new SortOrder(parts[0], descending, numeric);
+	}
+
+	/**
+	 * Compares two key values.
+	 * 
+	 * @param key1
+	 *            First key value, an empty string for a missing key.
+	 * @param key2
+	 *            Second key value, an empty string for a missing key.
+	 * @return Negative value, if the first key comes first, positive, if it
+	 *         comes last, otherwise zero.
+	 */
+	public int compare(final String key1, final String key2) {
+		int c;
+		if (mNumeric) {
+			double d1 = number(key1);
+			double d2 = number(key2);
+			if (Double.isNaN(d1) || Double.isNaN(d2))
+				c = Double.isNaN(d1) ? Double.isNaN(d2) ? 0 : -1 : 1;
+			else
+				c = d1 < d2 ? -1 : d1 > d2 ? 1 : 0;
+		} else {
+			c = compareCodepoints(key1, key2);
+		}
+		return mDescending ? -c : c;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return key path.
+	 */
+	public String getKey() {
+		return mKey;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return flag for descending order.
+	 */
+	public boolean isDescending() {
+		return mDescending;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return flag if keys are compared as numbers.
+	 */
+	public boolean isNumeric() {
+		return mNumeric;
+	}
+
+	/**
+	 * Converts a key value to a number, like the XQuery function
+	 * <code>number()</code>.
+	 * 
+	 * @param key
+	 *            Key value.
+	 * @return Number or {@link Double#NaN}.
+	 */
+	private static double number(final String key) {
+		String k = key.trim();
+		if (k.equals("INF"))
+			return Double.POSITIVE_INFINITY;
+		if (k.equals("-INF"))
+			return Double.NEGATIVE_INFINITY;
+		try {
+			return Double.parseDouble(k);
+		} catch (final NumberFormatException exc) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Compares two strings by their code points, like the default collation
+	 * of XQuery.
+	 * 
+	 * @param s1
+	 *            First string.
+	 * @param s2
+	 *            Second string.
+	 * @return Comparison result.
+	 */
+	private static int compareCodepoints(final String s1, final String s2) {
+		int i1 = 0;
+		int i2 = 0;
+		while (i1 < s1.length() && i2 < s2.length()) {
+			int c1 = s1.codePointAt(i1);
+			int c2 = s2.codePointAt(i2);
+			if (c1 != c2)
+				return c1 < c2 ? -1 : 1;
+			i1 += Character.charCount(c1);
+			i2 += Character.charCount(c2);
+		}
+		return (s1.length() - i1) - (s2.length() - i2);
+	}
+}
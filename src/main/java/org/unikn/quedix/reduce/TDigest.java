@@ -0,0 +1,201 @@
+package org.unikn.quedix.reduce;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class is a t-digest for estimating quantiles. Each data server sorts
+ * all its values exactly, which is no streaming t-digest on the servers, and
+ * summarizes them by the centroids of the quantile ranges returned by
+ * {@link #bounds()}, see
+ * {@link org.unikn.quedix.core.QueryComposer#quantileSketch(String, String, double[])}.
+ * The ranges are narrow at the tails and wide at the median, following the
+ * scale function <code>k(q) = &#948; / &#960; &#183; asin(2q - 1)</code>, so
+ * extreme quantiles are estimated more precisely. The centroids of all
+ * servers are merged and compressed by the same scale function.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class TDigest {
+
+	/** Default compression, i.e. maximum number of centroids per server. */
+	public static final int COMPRESSION = 100;
+
+	/** Compression. */
+	private int mCompression;
+	/** Centroids, each as mean and weight. */
+	private List<double[]> mCentroids = new ArrayList<double[]>();
+	/** Flag if the centroids are compressed. */
+	private boolean mCompressed = true;
+	/** Minimum value. */
+	private double mMin = Double.POSITIVE_INFINITY;
+	/** Maximum value. */
+	private double mMax = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param compression
+	 *            Compression, i.e. maximum number of centroids.
+	 */
+	public TDigest(final int compression) {
+		mCompression = compression;
+	}
+
+	/**
+	 * Returns the quantile bounds of the centroids, from 0 to 1.
+	 * 
+	 * @return Bounds.
+	 */
+	public double[] bounds() {
+		double[] bounds = new double[mCompression + 1];
+		for (int b = 0; b <= mCompression; b++)
+			bounds[b] = q((double) b - mCompression / 2.0);
+		bounds[mCompression] = 1;
+		return bounds;
+	}
+
+	/**
+	 * Merges a centroid of a server digest.
+	 * 
+	 * @param mean
+	 *            Mean.
+	 * @param weight
+	 *            Number of values.
+	 */
+	public void merge(final double mean, final double weight) {
+		if (weight <= 0)
+			return;
+		mCentroids.add(new double[] { mean, weight });
+		mCompressed = false;
+	}
+
+	/**
+	 * Merges the extreme values of a server digest.
+	 * 
+	 * @param min
+	 *            Minimum value.
+	 * @param max
+	 *            Maximum value.
+	 */
+	public void extremes(final double min, final double max) {
+		mMin = Math.min(mMin, min);
+		mMax = Math.max(mMax, max);
+	}
+
+	/**
+	 * Returns the estimated quantile.
+	 * 
+	 * @param q
+	 *            Quantile, from 0 to 1.
+	 * @return Estimate or {@link Double#NaN}, if the digest is empty.
+	 */
+	public double quantile(final double q) {
+		compress();
+		if (mCentroids.isEmpty())
+			return Double.NaN;
+		double total = 0;
+		for (double[] c : mCentroids)
+			total += c[1];
+		double target = q * total;
+		double[] first = mCentroids.get(0);
+		if (target <= first[1] / 2)
+			return interpolate(mMin, first[0], target / (first[1] / 2));
+		double cumulated = 0;
+		for (int i = 0; i < mCentroids.size() - 1; i++) {
+			double[] c = mCentroids.get(i);
+			double[] n = mCentroids.get(i + 1);
+			double center = cumulated + c[1] / 2;
+			double next = cumulated + c[1] + n[1] / 2;
+			if (target < next)
+				return interpolate(c[0], n[0], (target - center)
+						/ (next - center));
+			cumulated += c[1];
+		}
+		double[] last = mCentroids.get(mCentroids.size() - 1);
+		double center = total - last[1] / 2;
+		return interpolate(last[0], mMax, (target - center) / (last[1] / 2));
+	}
+
+	/**
+	 * Sorts the centroids by their means and merges neighbours, as long as the
+	 * merged centroid spans at most one unit of the scale function.
+	 */
+	private void compress() {
+		if (mCompressed)
+			return;
+		Collections.sort(mCentroids, new Comparator<double[]>() {
+
+			@Override
+			public int compare(final double[] c1, final double[] c2) {
+				return Double.compare(c1[0], c2[0]);
+			}
+		});
+		double total = 0;
+		for (double[] c : mCentroids)
+			total += c[1];
+		List<double[]> merged = new ArrayList<double[]>();
+		double[] current = null;
+		double left = 0;
+		double cumulated = 0;
+		for (double[] c : mCentroids) {
+			if (current != null
+					&& k((cumulated + c[1]) / total) - k(left / total) <= 1) {
+				double weight = current[1] + c[1];
+				current[0] += (c[0] - current[0]) * c[1] / weight;
+				current[1] = weight;
+			} else {
+				if (current != null)
+					merged.add(current);
+				current = new double[] { c[0], c[1] };
+				left = cumulated;
+			}
+			cumulated += c[1];
+		}
+		if (current != null)
+			merged.add(current);
+		mCentroids = merged;
+		mCompressed = true;
+	}
+
+	/**
+	 * Scale function.
+	 * 
+	 * @param q
+	 *            Quantile.
+	 * @return Scale.
+	 */
+	private double k(final double q) {
+		return mCompression / Math.PI * Math.asin(2 * Math.min(1, q) - 1);
+	}
+
+	/**
+	 * Inverse scale function.
+	 * 
+	 * @param k
+	 *            Scale.
+	 * @return Quantile.
+	 */
+	private double q(final double k) {
+		return (Math.sin(k * Math.PI / mCompression) + 1) / 2;
+	}
+
+	/**
+	 * Interpolates linearly between two values.
+	 * 
+	 * @param from
+	 *            First value.
+	 * @param to
+	 *            Second value.
+	 * @param fraction
+	 *            Fraction between 0 and 1.
+	 * @return Interpolated value.
+	 */
+	private static double interpolate(final double from, final double to,
+			final double fraction) {
+		double f = Math.max(0, Math.min(1, fraction));
+		return from + (to - from) * f;
+	}
+}
@@ -0,0 +1,242 @@
+package org.unikn.quedix.reduce;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.basex.util.Token;
+import org.unikn.quedix.core.Client;
+import org.unikn.quedix.core.QueryComposer;
+import org.unikn.quedix.core.ResultPipe;
+import org.unikn.quedix.core.Tasks;
+
+/**
+ * This class reduces the map results hierarchically on the data servers
+ * instead of on the coordinator. Each server first reduces its own map
+ * results. The partial results are then grouped by a configurable fan-in and
+ * each group is shipped into a temporary database on a peer server of the
+ * group, which runs the reducer again. This is repeated until one partial
+ * result is left, which is the only one reaching the coordinator. The reducer
+ * therefore has to accept its own results as input, e.g., sums of counts.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class TreeReducer {
+
+	/** Default fan-in, reducing pairwise. */
+	public static final int FAN_IN = 2;
+	/** Input of the reducer on a peer server. */
+	private static final String INPUT = "/results/node()";
+	/** Start tag. */
+	private static final byte[] START = Token.token("<results>");
+	/** End tag. */
+	private static final byte[] END = Token.token("</results>");
+	/** XML file ending. */
+	private static final String XML = ".xml";
+
+	/** Client. */
+	private Client mClient;
+	/** Reducer query. */
+	private String mReducer;
+	/** Number of partial results reduced by one peer. */
+	private int mFanIn;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param client
+	 *            {@link Client} instance.
+	 * @param reducer
+	 *            Reducer query.
+	 * @param fanIn
+	 *            Number of partial results reduced by one peer, at least 2.
+	 */
+	public TreeReducer(final Client client, final String reducer,
+			final int fanIn) {
+		mClient = client;
+		mReducer = reducer;
+		mFanIn = Math.max(FAN_IN, fanIn);
+	}
+
+	/**
+	 * Executes the mapper on the data servers and reduces its results along
+	 * the tree. The temporary databases are dropped, even if the reduce
+	 * fails.
+	 * 
+	 * @param mapper
+	 *            Mapper query.
+	 * @param output
+	 *            {@link OutputStream} for writing the root result.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	public void execute(final String mapper, final OutputStream output)
+			throws IOException {
+		List<Partial> level = new ArrayList<Partial>();
+		for (String server : mClient.getServers())
+			level.add(new Partial(server, null, QueryComposer.reduce(mapper,
+					mReducer)));
+		if (level.isEmpty())
+			return;
+		String job = "quedixtree" + System.nanoTime();
+		List<Partial> temporary = new ArrayList<Partial>();
+		try {
+			int depth = 0;
+			while (level.size() > 1) {
+				long start = System.nanoTime();
+				level = reduceLevel(level, job + "l" + depth, temporary);
+				long time = System.nanoTime() - start;
+				System.out.println("Time for tree reduce level " + depth
+						+ ": " + time / 1000000 + " ms");
+				depth++;
+			}
+			Partial root = level.get(0);
+			mClient.query(root.mServer, root.mDb, root.mQuery, output);
+		} finally {
+			for (Partial partial : temporary)
+				mClient.dropDb(partial.mServer, partial.mDb);
+		}
+	}
+
+	/**
+	 * Reduces one level of the tree. The partial results of each group are
+	 * streamed into a temporary database on the first server of the group.
+	 * 
+	 * @param level
+	 *            Partial results of the current level.
+	 * @param name
+	 *            Name prefix for the temporary databases.
+	 * @param temporary
+	 *            Partial results in temporary databases, which have not been
+	 *            dropped yet. Created databases are added, dropped ones are
+	 *            removed.
+	 * @return Partial results of the next level.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private List<Partial> reduceLevel(final List<Partial> level,
+			final String name, final List<Partial> temporary)
+			throws IOException {
+		List<Partial> next = new ArrayList<Partial>();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		int groups = (level.size() + mFanIn - 1) / mFanIn;
+		ExecutorService executor = Executors.newFixedThreadPool(level.size()
+				+ groups);
+		for (int g = 0; g < groups; g++) {
+			final List<Partial> group = level.subList(g * mFanIn,
+					Math.min(level.size(), (g + 1) * mFanIn));
+			if (group.size() == 1) {
+				next.add(group.get(0));
+				continue;
+			}
+			final String peer = group.get(0).mServer;
+			final String db = name + "g" + g;
+			if (!mClient.createDb(peer, db)) {
+				Tasks.terminate(executor);
+				throw new IOException("Database " + db
+						+ " could not be created on " + peer);
+			}
+			Partial partial = new Partial(peer, db, QueryComposer.reduce(
+					INPUT, mReducer));
+			temporary.add(partial);
+			final ResultPipe[] pipes = new ResultPipe[group.size()];
+			final List<Future<Void>> producers = new ArrayList<Future<Void>>();
+			for (int m = 0; m < group.size(); m++) {
+				final Partial member = group.get(m);
+				final ResultPipe pipe = new ResultPipe();
+				pipes[m] = pipe;
+				producers.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						OutputStream out = pipe.open(member.mServer);
+						try {
+							mClient.query(member.mServer, member.mDb,
+									member.mQuery, out);
+						} finally {
+							out.close();
+							pipe.finish();
+						}
+						return null;
+					}
+				}));
+			}
+			futures.addAll(producers);
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					// the peer is busy with its own partial result first
+					producers.get(0).get();
+					try {
+						for (int m = 0; m < pipes.length; m++) {
+							InputStream is = new SequenceInputStream(
+									new ByteArrayInputStream(START),
+									new SequenceInputStream(pipes[m],
+											new ByteArrayInputStream(END)));
+							try {
+								if (!mClient.add(peer, db,
+										group.get(m).mServer + m + XML, is))
+									throw new IOException("Partial result of "
+											+ group.get(m).mServer
+											+ " could not be added to " + peer);
+							} finally {
+								is.close();
+							}
+						}
+					} finally {
+						for (ResultPipe pipe : pipes)
+							pipe.close();
+					}
+					return null;
+				}
+			}));
+			next.add(partial);
+		}
+		Tasks.await(executor, futures);
+		for (Partial partial : level) {
+			if (partial.mDb != null && !next.contains(partial)) {
+				mClient.dropDb(partial.mServer, partial.mDb);
+				temporary.remove(partial);
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Partial result, delivered by a query on one server.
+	 */
+	private static class Partial {
+
+		/** Server id. */
+		private String mServer;
+		/** Database of the reducer input or <code>null</code>. */
+		private String mDb;
+		/** Query delivering the partial result. */
+		private String mQuery;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param server
+		 *            Server id.
+		 * @param db
+		 *            Database of the reducer input or <code>null</code>.
+		 * @param query
+		 *            Query delivering the partial result.
+		 */
+		Partial(final String server, final String db, final String query) {
+			mServer = server;
+			mDb = db;
+			mQuery = query;
+		}
+	}
+}
@@ -13,11 +13,15 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +46,8 @@ import org.unikn.quedix.core.Client;
 import org.unikn.quedix.core.DistributionAlgorithm;
 import org.unikn.quedix.core.Distributor;
 import org.unikn.quedix.core.MetaData;
+import org.unikn.quedix.core.Sink;
+import org.unikn.quedix.core.Tasks;
 
 /**
  * This class is responsible to execute parallel queries over HTTP.
@@ -111,6 +117,10 @@ public class RestClient implements Client, Distributor {
 	/** Refactoring servers. */
 	private Set<String> mRefactoringServers = new HashSet<String>();
 	private int mCreator = 0;
+	/** Server ids of REST hosts. */
+	private Map<String, String> mServerIds = new HashMap<String, String>();
+	/** Servers the query executions are restricted to, <code>null</code> for all. */
+	private Set<String> mRestriction;
 
 	/**
 	 * Default constructor.
@@ -120,8 +130,10 @@ public class RestClient implements Client, Distributor {
 		mDataServers = dataServers;
 		mDataServersArray = new String[mDataServers.size()];
 		int i = 0;
-		for (Map.Entry<String, String> serverEntry : mDataServers.entrySet())
+		for (Map.Entry<String, String> serverEntry : mDataServers.entrySet()) {
 			mDataServersArray[i++] = serverEntry.getKey() + "rest";
+			mServerIds.put(serverEntry.getKey() + "rest", serverEntry.getKey());
+		}
 
 		mDestinationMappers = new ArrayList<String>();
 		mStates = new ConcurrentHashMap<String, Integer>();
@@ -188,11 +200,8 @@ public class RestClient implements Client, Distributor {
 
 		}
 		// This will make the executor accept no new threads
-		// and finish all existing threads in the queue
-		executor.shutdown();
-		// Wait until all threads are finish
-		while (!executor.isTerminated())
-			;
+		// and wait until all threads in the queue are finished
+		Tasks.terminate(executor);
 		return isSuccessful;
 	}
 
@@ -220,10 +229,13 @@ public class RestClient implements Client, Distributor {
 
 	@Override
 	public String[] execute(final String xq) {
+		List<String> targets = targets();
+		if (targets.isEmpty())
+			return new String[0];
 		List<Future<String>> stringResults = new ArrayList<Future<String>>();
 		ExecutorService executor = Executors
-				.newFixedThreadPool(mDestinationMappers.size());
-		for (String mapperFile : mDestinationMappers) {
+				.newFixedThreadPool(targets.size());
+		for (String mapperFile : targets) {
 			final String entry = mapperFile;
 			Callable<String> task = new Callable<String>() {
 
@@ -241,11 +253,8 @@ public class RestClient implements Client, Distributor {
 			stringResults.add(executor.submit(task));
 		}
 		// This will make the executor accept no new threads
-		// and finish all existing threads in the queue
-		executor.shutdown();
-		// Wait until all threads are finish
-		while (!executor.isTerminated())
-			;
+		// and wait until all threads in the queue are finished
+		Tasks.terminate(executor);
 		String[] results = new String[stringResults.size()];
 		int i = 0;
 		for (Future<String> future : stringResults) {
@@ -315,11 +324,8 @@ public class RestClient implements Client, Distributor {
 			booleanResults.add(executor.submit(task));
 		}
 		// This will make the executor accept no new threads
-		// and finish all existing threads in the queue
-		executor.shutdown();
-		// Wait until all threads are finish
-		while (!executor.isTerminated())
-			;
+		// and wait until all threads in the queue are finished
+		Tasks.terminate(executor);
 		for (Future<Boolean> future : booleanResults) {
 			try {
 				if (!future.get()) {
@@ -432,6 +438,14 @@ public class RestClient implements Client, Distributor {
 					mDistributionService.deleteTemporaryCollection(tempName);
 				}
 				break;
+			case CO_PARTITIONING:
+				System.out.println("Execute co-partitioned by "
+						+ mMeta.getPartitionKey());
+				// joins expect the collection on every server
+				for (String host : mDataServersArray)
+					createCollection(host, name);
+				sum = distributeCoPartitioned(inputDir, name);
+				break;
 			default:
 				System.out.println("Not supported");
 				break;
@@ -440,8 +454,8 @@ public class RestClient implements Client, Distributor {
 		} else if (inputDir.getAbsolutePath().endsWith(XML_TYPE)) {
 			System.out.println("Distributing one single XML file");
 			// start subcollection tag
-			mDistributionService = new DistributionService(next(
-					mDataServersArray, 1));
+			mHost = next(mDataServersArray, 1);
+			mDistributionService = new DistributionService(mHost);
 			// init
 			mDistributionService.initUpdate(tempName);
 			mBos = new BufferedOutputStream(
@@ -452,8 +466,11 @@ public class RestClient implements Client, Distributor {
 			is.close();
 			mBos.close();
 			isSuccessful = mDistributionService.execUpdate();
+			registerDocument(mHost, inputDir);
 		} else
 			System.err.println("False input path. Try again.");
+		if (mMeta.getIndex() != null)
+			mMeta.getIndex().store();
 		System.out.println("Progress: 100.0 %.");
 		System.out.println("Import finished.");
 		long end = System.nanoTime() - start;
@@ -472,18 +489,25 @@ public class RestClient implements Client, Distributor {
 
 	@Override
 	public void execute(final String xq, final OutputStream output) {
-
+		List<String> targets = targets();
+		if (targets.isEmpty())
+			return;
 		ExecutorService executor = Executors
-				.newFixedThreadPool(mDestinationMappers.size());
+				.newFixedThreadPool(targets.size());
 
-		for (String mapperFile : mDestinationMappers) {
+		for (String mapperFile : targets) {
 			final String entry = mapperFile;
 			Callable<Void> task = new Callable<Void>() {
 
 				@Override
 				public Void call() throws Exception {
 					long start = System.nanoTime();
-					runQuery(entry, output);
+					try {
+						runQuery(entry, output, true);
+					} catch (final IOException exc) {
+						exc.printStackTrace();
+						return null;
+					}
 					long time = System.nanoTime() - start;
 					System.out.println("Time for " + entry + ": " + time
 							/ 1000000 + " ms");
@@ -494,11 +518,145 @@ public class RestClient implements Client, Distributor {
 			executor.submit(task);
 		}
 		// This will make the executor accept no new threads
-		// and finish all existing threads in the queue
-		executor.shutdown();
-		// Wait until all threads are finish
-		while (!executor.isTerminated())
-			;
+		// and wait until all threads in the queue are finished
+		Tasks.terminate(executor);
+	}
+
+	@Override
+	public void execute(final String xq, final Sink sink) throws IOException {
+		List<String> targets = targets();
+		if (targets.isEmpty())
+			return;
+		ExecutorService executor = Executors
+				.newFixedThreadPool(targets.size());
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (String mapperFile : targets) {
+			final String entry = mapperFile;
+			Callable<Void> task = new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					long start = System.nanoTime();
+					OutputStream out = sink.open(serverOf(entry));
+					try {
+						runQuery(entry, out, false);
+					} finally {
+						out.close();
+					}
+					long time = System.nanoTime() - start;
+					System.out.println("Time for " + entry + ": " + time
+							/ 1000000 + " ms");
+
+					return null;
+				}
+			};
+			futures.add(executor.submit(task));
+		}
+		// a failed server leaves a truncated stream in the sink
+		Tasks.await(executor, futures);
+	}
+
+	/**
+	 * Returns the server id of a mapper file.
+	 * 
+	 * @param mapperFile
+	 *            Mapper file location.
+	 * @return Server id.
+	 */
+	private String serverOf(final String mapperFile) {
+		for (String server : mDataServers.keySet()) {
+			if (mapperFile.startsWith(server))
+				return server;
+		}
+		return mapperFile;
+	}
+
+	@Override
+	public void restrict(final Set<String> servers) {
+		if (servers != null && servers.isEmpty())
+			throw new IllegalArgumentException("No servers to execute on.");
+		mRestriction = servers;
+	}
+
+	/**
+	 * Returns the mapper files addressed by query executions.
+	 * 
+	 * @return All mapper files or the ones of the restricted servers.
+	 */
+	private List<String> targets() {
+		List<String> targets = new ArrayList<String>();
+		for (String mapperFile : mDestinationMappers) {
+			if (mRestriction == null) {
+				targets.add(mapperFile);
+			} else {
+				for (String server : mRestriction) {
+					if (mapperFile.startsWith(server)) {
+						targets.add(mapperFile);
+						break;
+					}
+				}
+			}
+		}
+		return targets;
+	}
+
+	@Override
+	public List<String> getServers() {
+		List<String> servers = new ArrayList<String>();
+		for (String server : mDataServers.keySet()) {
+			if (mRestriction == null || mRestriction.contains(server))
+				servers.add(server);
+		}
+		Collections.sort(servers);
+		return servers;
+	}
+
+	@Override
+	public boolean createDb(final String server, final String db) {
+		try {
+			return new DistributionService(server + "rest")
+					.createEmptyCollection(db);
+		} catch (final IOException exc) {
+			exc.printStackTrace();
+		}
+		return false;
+	}
+
+	@Override
+	public boolean add(final String server, final String db,
+			final String path, final InputStream input) throws IOException {
+		DistributionService service = new DistributionService(server + "rest");
+		service.initAdd(db, path);
+		OutputStream out = service.getOutputStream();
+		byte[] buffer = new byte[8192];
+		int i;
+		while ((i = input.read(buffer)) != -1)
+			out.write(buffer, 0, i);
+		return service.execAdd();
+	}
+
+	@Override
+	public void query(final String server, final String db,
+			final String query, final OutputStream output) throws IOException {
+		String target = server + "rest" + (db == null ? "" : "/" + db)
+				+ "?query=" + URLEncoder.encode(query, UTF8);
+		try {
+			runQuery(target, output, false);
+		} catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(exc.getMessage());
+		}
+	}
+
+	@Override
+	public boolean dropDb(final String server, final String db) {
+		try {
+			return new DistributionService(server + "rest")
+					.deleteTemporaryCollection(db);
+		} catch (final IOException exc) {
+			exc.printStackTrace();
+		}
+		return false;
 	}
 
 	/**
@@ -587,38 +745,52 @@ public class RestClient implements Client, Distributor {
 	 *            URL address.
 	 * @param output
 	 *            {@link OutputStream} for writing results in.
+	 * @param exclusive
+	 *            Locks the output while writing, if it is shared by several
+	 *            servers.
+	 * @throws IOException
+	 *             Server could not be reached or the query failed.
 	 * @throws InterruptedException
 	 */
-	private void runQuery(final String targetResource, final OutputStream output)
-			throws InterruptedException {
-		URL url;
+	private void runQuery(final String targetResource,
+			final OutputStream output, final boolean exclusive)
+			throws IOException, InterruptedException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(targetResource)
+				.openConnection();
 		try {
-			url = new URL(targetResource);
-			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
 			int code = conn.getResponseCode();
-			if (code == HttpURLConnection.HTTP_OK) {
-				BufferedInputStream bis = new BufferedInputStream(
-						conn.getInputStream());
-				LOCK.acquire();
-				int i;
-				while ((i = bis.read()) != -1)
-					output.write(i);
-				LOCK.release();
-				bis.close();
-			} else {
-				BufferedReader br = new BufferedReader(new InputStreamReader(
-						conn.getErrorStream(), UTF8));
-				for (String line; (line = br.readLine()) != null;) {
-					System.out.println(line);
+			if (code != HttpURLConnection.HTTP_OK) {
+				StringBuilder sb = new StringBuilder();
+				if (conn.getErrorStream() != null) {
+					BufferedReader br = new BufferedReader(
+							new InputStreamReader(conn.getErrorStream(), UTF8));
+					for (String line; (line = br.readLine()) != null;)
+						sb.append(line).append('\n');
+					br.close();
 				}
-				br.close();
+				throw new IOException("HTTP " + code + " at "
+						+ serverOf(targetResource) + ": "
+						+ sb.toString().trim());
 			}
-
+			BufferedInputStream bis = new BufferedInputStream(
+					conn.getInputStream());
+			try {
+				if (exclusive)
+					LOCK.acquire();
+				try {
+					byte[] buffer = new byte[8192];
+					int i;
+					while ((i = bis.read(buffer)) != -1)
+						output.write(buffer, 0, i);
+				} finally {
+					if (exclusive)
+						LOCK.release();
+				}
+			} finally {
+				bis.close();
+			}
+		} finally {
 			conn.disconnect();
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 	}
 
@@ -649,9 +821,9 @@ public class RestClient implements Client, Distributor {
 				if (mOutSize == 0) {
 					// start subcollection tag
 					System.out.println("start col");
-					String host = next(mDataServersArray, runner++);
-					mRefactoringServers.add(host);
-					mDistributionService = new DistributionService(host);
+					mHost = next(mDataServersArray, runner++);
+					mRefactoringServers.add(mHost);
+					mDistributionService = new DistributionService(mHost);
 					// init
 					if (mCreator < mDataServersArray.length) {
 						mDistributionService
@@ -674,9 +846,9 @@ public class RestClient implements Client, Distributor {
 					mDistributionService.execAdd();
 					mOutSize = 0;
 					// start subcollection tag
-					String host = next(mDataServersArray, runner++);
-					mRefactoringServers.add(host);
-					mDistributionService = new DistributionService(host);
+					mHost = next(mDataServersArray, runner++);
+					mRefactoringServers.add(mHost);
+					mDistributionService = new DistributionService(mHost);
 					// init
 					if (mCreator < mDataServersArray.length) {
 						mDistributionService
@@ -698,6 +870,7 @@ public class RestClient implements Client, Distributor {
 				writeFileToOutput(is, mBos);
 				is.close();
 				mBos.write(DOC_END);
+				registerDocument(mHost, file);
 				mOutSize = mOutSize + file.length();
 				count++;
 			} else if (file.isDirectory()) {
@@ -764,6 +937,7 @@ public class RestClient implements Client, Distributor {
 				// long start = System.nanoTime();
 				bos.close();
 				mDistributionService.execAdd();
+				registerDocument(host, file);
 				// long end = System.nanoTime() - start;
 				// System.out.println("\nComplete execution time: " + end /
 				// 1000000
@@ -783,6 +957,73 @@ public class RestClient implements Client, Distributor {
 		return count;
 	}
 
+	/**
+	 * Traverses an input directory for distribution of collection via one
+	 * connection per document, placing each document by the hash of its
+	 * partition key.
+	 * 
+	 * @param dir
+	 *            Input directory.
+	 * @param name
+	 *            Name of collection.
+	 * @return Distributed files count.
+	 * @throws IOException
+	 */
+	private long distributeCoPartitioned(final File dir, final String name)
+			throws IOException {
+		File[] files = dir.listFiles();
+		long count = 0;
+		for (File file : files) {
+			if (file.getAbsolutePath().endsWith(XML_TYPE)) {
+				String host = mMeta.coPartition(file, mDataServersArray);
+				createCollection(host, name);
+				mDistributionService.initAdd(name, file.getAbsolutePath());
+				BufferedOutputStream bos = (BufferedOutputStream) mDistributionService
+						.getOutputStream();
+				BufferedInputStream is = new BufferedInputStream(
+						new FileInputStream(file));
+				int i;
+				while ((i = is.read()) != -1) {
+					bos.write(i);
+				}
+				is.close();
+				bos.close();
+				mDistributionService.execAdd();
+				registerDocument(host, file);
+				count++;
+			} else if (file.isDirectory()) {
+				count += distributeCoPartitioned(file, name);
+			}
+		}
+		// user feedback
+		if ((count / 20 > 0) && count != mLast) {
+			System.out.print(".");
+			mLast = count;
+		}
+		return count;
+	}
+
+	/**
+	 * Connects to a data server and creates a collection, if it does not
+	 * exist there.
+	 * 
+	 * @param host
+	 *            Data server.
+	 * @param name
+	 *            Name of collection.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void createCollection(final String host, final String name)
+			throws IOException {
+		mDistributionService = new DistributionService(host);
+		if (!mMeta.containsServer(host)
+				|| !existDbOnServer(mMeta.getDbList(host), name)) {
+			mMeta.addDb(host, name);
+			mDistributionService.createEmptyCollection(name);
+		}
+	}
+
 	/**
 	 * Traverses an input directory for distribution of collection via Advanced
 	 * algorithm via one connection per document.
@@ -830,6 +1071,7 @@ public class RestClient implements Client, Distributor {
 				}
 				is.close();
 				mDistributionService.execAdd();
+				registerDocument(mHost, file);
 				count++;
 				mOutSize += file.length();
 
@@ -872,10 +1114,10 @@ public class RestClient implements Client, Distributor {
 				if (mOutSize == 0) {
 					// start subcollection tag
 					System.out.println("start col");
-					String host = next(mDataServersArray, runner++);
-					System.out.println(host);
-					mRefactoringServers.add(host);
-					mDistributionService = new DistributionService(host);
+					mHost = next(mDataServersArray, runner++);
+					System.out.println(mHost);
+					mRefactoringServers.add(mHost);
+					mDistributionService = new DistributionService(mHost);
 					// init
 					if (mCreator < mDataServersArray.length) {
 						mDistributionService
@@ -898,9 +1140,9 @@ public class RestClient implements Client, Distributor {
 					mDistributionService.execAdd();
 					mOutSize = 0;
 					// start subcollection tag
-					String host = next(mDataServersArray, runner++);
-					mRefactoringServers.add(host);
-					mDistributionService = new DistributionService(host);
+					mHost = next(mDataServersArray, runner++);
+					mRefactoringServers.add(mHost);
+					mDistributionService = new DistributionService(mHost);
 					// init
 					if (mCreator < mDataServersArray.length) {
 						mDistributionService
@@ -922,6 +1164,7 @@ public class RestClient implements Client, Distributor {
 				writeFileToOutput(is, mBos);
 				is.close();
 				mBos.write(DOC_END);
+				registerDocument(mHost, file);
 				mOutSize = mOutSize + file.length();
 				count++;
 			} else if (file.isDirectory()) {
@@ -973,10 +1216,10 @@ public class RestClient implements Client, Distributor {
 				if (mOutSize == 0) {
 					// start subcollection tag
 					System.out.println("start col");
-					String host = next(mDataServersArray, runner++);
-					System.out.println(host);
-					mRefactoringServers.add(host);
-					mDistributionService = new DistributionService(host);
+					mHost = next(mDataServersArray, runner++);
+					System.out.println(mHost);
+					mRefactoringServers.add(mHost);
+					mDistributionService = new DistributionService(mHost);
 					// init
 					if (mCreator < mDataServersArray.length) {
 						mDistributionService
@@ -999,9 +1242,9 @@ public class RestClient implements Client, Distributor {
 					mDistributionService.execAdd();
 					mOutSize = 0;
 					// start subcollection tag
-					String host = next(mDataServersArray, runner++);
-					mRefactoringServers.add(host);
-					mDistributionService = new DistributionService(host);
+					mHost = next(mDataServersArray, runner++);
+					mRefactoringServers.add(mHost);
+					mDistributionService = new DistributionService(mHost);
 					// init
 					if (mCreator < mDataServersArray.length) {
 						mDistributionService
@@ -1023,6 +1266,7 @@ public class RestClient implements Client, Distributor {
 				writeFileToOutput(is, mBos);
 				is.close();
 				mBos.write(DOC_END);
+				registerDocument(mHost, file);
 				mOutSize = mOutSize + file.length();
 				count++;
 			} else if (file.isDirectory()) {
@@ -1101,6 +1345,24 @@ public class RestClient implements Client, Distributor {
 		return length;
 	}
 
+	/**
+	 * Registers a distributed document in the meta data, e.g., for recording
+	 * the collection size and for building the global secondary index.
+	 * 
+	 * @param host
+	 *            REST host the document has been sent to.
+	 * @param file
+	 *            Distributed document.
+	 * @throws IOException
+	 *             Exception occurred.
+	 */
+	private void registerDocument(final String host, final File file)
+			throws IOException {
+		mMeta.addDocument(mServerIds.get(host), file.length());
+		if (mMeta.getIndex() != null)
+			mMeta.getIndex().index(mServerIds.get(host), file);
+	}
+
 	/**
 	 * Writes input file to output stream.
 	 * 
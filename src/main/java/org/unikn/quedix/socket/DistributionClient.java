@@ -127,6 +127,18 @@ public class DistributionClient extends SocketClient implements org.unikn.quedix
 
                 sum = distributePartitioned(inputDir, name, serverIds);
                 break;
+            case CO_PARTITIONING:
+                System.out.println("Execute co-partitioned by " + mMeta.getPartitionKey());
+                // joins expect the collection on every server
+                for (BaseXClient client : mClients.values()) {
+                    if (!checkCollectionExistence(client, name)) {
+                        client.createCol(name);
+                        mMeta.addDb(client.ehost, name);
+                    }
+                }
+                sum = distributeCoPartitioned(inputDir, name, serverIds);
+                exeFlush();
+                break;
 
             default:
                 System.out.println("Not supported");
@@ -142,6 +154,8 @@ public class DistributionClient extends SocketClient implements org.unikn.quedix
             bis.close();
         } else
             System.err.println("False input path. Try again.");
+        if (mMeta.getIndex() != null)
+            mMeta.getIndex().store();
         System.out.println("Progress: 100.0 %.");
         long end = System.nanoTime() - start;
         System.out.println("Done in " + ((double)end / 1000000000.0) + " s");
@@ -196,6 +210,7 @@ public class DistributionClient extends SocketClient implements org.unikn.quedix
             }
         }
         client.add(file.getAbsolutePath(), bis);
+        registerDocument(client, file);
         mIsFirst = false;
     }
 
@@ -233,6 +248,7 @@ public class DistributionClient extends SocketClient implements org.unikn.quedix
             os.write(Token.token(l));
         }
         // os.flush();
+        registerDocument(client, file);
         mIsFirst = false;
     }
 
@@ -275,6 +291,46 @@ public class DistributionClient extends SocketClient implements org.unikn.quedix
         return count;
     }
 
+    /**
+     * Traverses an input directory for distribution of collection, placing
+     * each document by the hash of its partition key.
+     * 
+     * @param dir
+     *            Input directory.
+     * @param name
+     *            Name of collection.
+     * @param serverIds
+     *            Server IDs.
+     * @return Distributed files count.
+     * @throws IOException
+     *             Exception occurred.
+     */
+    public long distributeCoPartitioned(final File dir, final String name, final String[] serverIds)
+        throws IOException {
+        File[] files = dir.listFiles();
+        long count = 0;
+        for (File file : files) {
+            if (file.isFile() && file.getAbsolutePath().endsWith(XML)) {
+                mClient = mClients.get(mMeta.coPartition(file, serverIds));
+                BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+                mIsFirst = true;
+                mClientsForFlushing.add(mClient);
+                distributeXml(mClient, name, bis, file);
+                bis.close();
+                count++;
+            } else if (file.isDirectory()) {
+                count += distributeCoPartitioned(file, name, serverIds);
+            }
+
+            // user feedback
+            if ((count % 100 == 0) && count != mLast) {
+                System.out.print(".");
+                mLast = count;
+            }
+        }
+        return count;
+    }
+
     /**
      * Traverses an input directory for distribution of collection.
      * 
@@ -454,6 +510,23 @@ public class DistributionClient extends SocketClient implements org.unikn.quedix
         return count;
     }
 
+    /**
+     * Registers a distributed document in the meta data, e.g., for recording
+     * the collection size and for building the global secondary index.
+     * 
+     * @param client
+     *            {@link BaseXClient} instance the document has been sent to.
+     * @param file
+     *            Distributed document.
+     * @throws IOException
+     *             Exception occurred.
+     */
+    private void registerDocument(final BaseXClient client, final File file) throws IOException {
+        mMeta.addDocument(serverId(client), file.length());
+        if (mMeta.getIndex() != null)
+            mMeta.getIndex().index(serverId(client), file);
+    }
+
     /**
      * Build refactoring String.
      * 
@@ -3,8 +3,10 @@
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -17,6 +19,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.unikn.quedix.core.Client;
+import org.unikn.quedix.core.Sink;
+import org.unikn.quedix.core.Tasks;
 import org.unikn.quedix.socket.BaseXClient.Query;
 
 /**
@@ -49,6 +53,8 @@ public class SocketClient implements Client {
     private static final String LIST = "list ";
     /** Delete command . */
     private static final String DELETE = "delete ";
+    /** Drop command. */
+    private static final String DROP_DB = "Drop db ";
 
     /** Client instances. */
     protected Map<String, BaseXClient> mClients;
@@ -68,6 +74,8 @@ public class SocketClient implements Client {
     /** Set used to start refactoring operations. */
     protected Set<BaseXClient> mRefactoring = new HashSet<BaseXClient>();
     private String mRefactorXq;
+    /** Servers the query executions are restricted to, <code>null</code> for all. */
+    private Set<String> mRestriction;
 
     /**
      * Constructor connects clients to BaseX server.
@@ -147,9 +155,7 @@ public class SocketClient implements Client {
                 };
                 booleanResults.add(executor.submit(task));
             }
-            executor.shutdown();
-            while(!executor.isTerminated())
-                ;
+            Tasks.terminate(executor);
             for (Future<Boolean> future : booleanResults) {
                 try {
                     if (!future.get())
@@ -167,11 +173,12 @@ public class SocketClient implements Client {
     @Override
     public String[] execute(final String xq) {
         String[] results = {};
-        if (mClients != null) {
-            results = new String[mClients.size()];
+        Map<String, BaseXClient> targets = targets();
+        if (!targets.isEmpty()) {
+            results = new String[targets.size()];
             List<Future<String>> stringResults = new ArrayList<Future<String>>();
-            ExecutorService executor = Executors.newFixedThreadPool(mClients.size());
-            for (Map.Entry<String, BaseXClient> cls : mClients.entrySet()) {
+            ExecutorService executor = Executors.newFixedThreadPool(targets.size());
+            for (Map.Entry<String, BaseXClient> cls : targets.entrySet()) {
                 final Map.Entry<String, BaseXClient> cl = cls;
 
                 Callable<String> task = new Callable<String>() {
@@ -209,9 +216,7 @@ public class SocketClient implements Client {
                 };
                 stringResults.add(executor.submit(task));
             }
-            executor.shutdown();
-            while(!executor.isTerminated())
-                ;
+            Tasks.terminate(executor);
 
             int i = 0;
             for (Future<String> future : stringResults) {
@@ -258,9 +263,7 @@ public class SocketClient implements Client {
                 };
                 booleanResults.add(executor.submit(task));
             }
-            executor.shutdown();
-            while(!executor.isTerminated())
-                ;
+            Tasks.terminate(executor);
             for (Future<Boolean> future : booleanResults) {
                 try {
                     if (!future.get())
@@ -306,9 +309,10 @@ public class SocketClient implements Client {
 
     @Override
     public void execute(final String xq, final OutputStream output) {
-        if (mClients != null) {
-            ExecutorService executor = Executors.newFixedThreadPool(mClients.size());
-            for (Map.Entry<String, BaseXClient> cls : mClients.entrySet()) {
+        Map<String, BaseXClient> targets = targets();
+        if (!targets.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(targets.size());
+            for (Map.Entry<String, BaseXClient> cls : targets.entrySet()) {
                 final Map.Entry<String, BaseXClient> cl = cls;
 
                 Callable<Void> task = new Callable<Void>() {
@@ -340,10 +344,158 @@ public class SocketClient implements Client {
                 };
                 executor.submit(task);
             }
-            executor.shutdown();
-            while(!executor.isTerminated())
-                ;
+            Tasks.terminate(executor);
+        }
+    }
+
+    @Override
+    public void execute(final String xq, final Sink sink) throws IOException {
+        Map<String, BaseXClient> targets = targets();
+        if (!targets.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(targets.size());
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (Map.Entry<String, BaseXClient> cls : targets.entrySet()) {
+                final Map.Entry<String, BaseXClient> cl = cls;
+
+                Callable<Void> task = new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        long start = System.nanoTime();
+                        BaseXClient c = cl.getValue();
+
+                        String query =
+                            "let $raw := db:retrieve($db, $map) " + "let $query := util:to-string($raw) "
+                            + "return util:eval($query)";
+
+                        Query q = c.query(query);
+                        q.bind("db", MAPPER_DB);
+                        q.bind("map", mMapNames.get(cl.getKey()));
+                        OutputStream out = sink.open(cl.getKey());
+                        try {
+                            q.execute(out);
+                        } catch (final IOException exc) {
+                            throw new IOException(cl.getKey() + ": " + exc.getMessage());
+                        } finally {
+                            out.close();
+                        }
+
+                        long time = System.nanoTime() - start;
+                        System.out.println("Time for execution the map query at " + cl.getKey() + ": "
+                        + time / 1000000 + " ms");
+                        return null;
+                    }
+                };
+                futures.add(executor.submit(task));
+            }
+            // a failed server leaves a truncated stream in the sink
+            Tasks.await(executor, futures);
+        }
+    }
+
+    @Override
+    public void restrict(final Set<String> servers) {
+        if (servers != null && servers.isEmpty())
+            throw new IllegalArgumentException("No servers to execute on.");
+        mRestriction = servers;
+    }
+
+    @Override
+    public List<String> getServers() {
+        List<String> servers = new ArrayList<String>(targets().keySet());
+        Collections.sort(servers);
+        return servers;
+    }
+
+    @Override
+    public boolean createDb(final String server, final String db) {
+        BaseXClient c = mClients.get(server);
+        try {
+            synchronized(c) {
+                c.createCol(db);
+            }
+            return true;
+        } catch (final IOException exc) {
+            exc.printStackTrace();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean add(final String server, final String db, final String path, final InputStream input)
+        throws IOException {
+        BaseXClient c = mClients.get(server);
+        try {
+            synchronized(c) {
+                c.execute(OPEN + db);
+                c.add(path, input);
+            }
+            return true;
+        } catch (final IOException exc) {
+            throw new IOException(server + ": " + exc.getMessage());
+        }
+    }
+
+    @Override
+    public void query(final String server, final String db, final String query, final OutputStream output)
+        throws IOException {
+        BaseXClient c = mClients.get(server);
+        try {
+            synchronized(c) {
+                if (db != null)
+                    c.execute(OPEN + db);
+                Query q = c.query(query);
+                q.execute(output);
+                q.close();
+            }
+        } catch (final IOException exc) {
+            throw new IOException(server + ": " + exc.getMessage());
+        }
+    }
+
+    @Override
+    public boolean dropDb(final String server, final String db) {
+        BaseXClient c = mClients.get(server);
+        try {
+            synchronized(c) {
+                c.execute(DROP_DB + db);
+            }
+            return true;
+        } catch (final IOException exc) {
+            exc.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Returns the clients addressed by query executions.
+     * 
+     * @return {@link Map} of all clients or of the restricted ones.
+     */
+    protected Map<String, BaseXClient> targets() {
+        Map<String, BaseXClient> targets = new HashMap<String, BaseXClient>();
+        if (mClients != null) {
+            for (Map.Entry<String, BaseXClient> cl : mClients.entrySet()) {
+                if (mRestriction == null || mRestriction.contains(cl.getKey()))
+                    targets.put(cl.getKey(), cl.getValue());
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Returns the server id of a connected client.
+     * 
+     * @param client
+     *            {@link BaseXClient} instance.
+     * @return Server id or <code>null</code>.
+     */
+    protected String serverId(final BaseXClient client) {
+        for (Map.Entry<String, BaseXClient> cl : mClients.entrySet()) {
+            if (cl.getValue() == client)
+                return cl.getKey();
         }
+        return null;
     }
 
     /**
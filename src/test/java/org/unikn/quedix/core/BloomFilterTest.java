@@ -0,0 +1,46 @@
+package org.unikn.quedix.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the sizing and the hex encoding of the {@link BloomFilter}.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class BloomFilterTest {
+
+	/**
+	 * Tests the optimal number of bits and hash functions.
+	 */
+	@Test
+	public void sizing() {
+		BloomFilter filter = new BloomFilter(1000, BloomFilter.FPP);
+		// -n ln(p) / ln(2)^2 = 9585.06, rounded up to whole hex digits
+		assertEquals(9588, filter.getBits());
+		assertEquals(7, filter.getHashes());
+		BloomFilter tiny = new BloomFilter(0, BloomFilter.FPP);
+		assertEquals(64, tiny.getBits());
+		assertTrue(tiny.getHashes() >= 1 && tiny.getHashes() <= 16);
+	}
+
+	/**
+	 * Tests that each hex digit holds four bits, with the lowest bit first.
+	 */
+	@Test
+	public void toHex() {
+		BloomFilter filter = new BloomFilter(1, BloomFilter.FPP);
+		assertEquals(filter.getBits() / 4, filter.toHex().length());
+		filter.set(0);
+		filter.set(5);
+		filter.set(7);
+		filter.set(filter.getBits() - 1);
+		String hex = filter.toHex();
+		assertEquals('1', hex.charAt(0));
+		assertEquals('a', hex.charAt(1));
+		assertEquals('0', hex.charAt(2));
+		assertEquals('8', hex.charAt(hex.length() - 1));
+	}
+}
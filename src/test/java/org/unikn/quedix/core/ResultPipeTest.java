@@ -0,0 +1,203 @@
+package org.unikn.quedix.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Tests the part ordering, the back-pressure and the closing of the
+ * {@link ResultPipe}.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class ResultPipeTest {
+
+	/**
+	 * Tests that parts are read in order of their first delivery and that
+	 * the parts are not interleaved.
+	 * 
+	 * @throws IOException
+	 *             Pipe could not be read.
+	 */
+	@Test
+	public void partOrder() throws IOException {
+		ResultPipe pipe = new ResultPipe();
+		byte[] data = bytes(15, 'a');
+		OutputStream a = pipe.open("a");
+		OutputStream b = pipe.open("b");
+		a.write(data, 0, 10);
+		b.write(bytes(20, 'b'));
+		b.close();
+		a.write(data, 10, 5);
+		a.close();
+		pipe.finish();
+		ResultPipe.PartInput part = pipe.nextPart();
+		assertEquals("b", part.getServer());
+		assertArrayEquals(bytes(20, 'b'), read(part));
+		part = pipe.nextPart();
+		assertEquals("a", part.getServer());
+		assertArrayEquals(data, read(part));
+		assertNull(pipe.nextPart());
+		pipe.close();
+	}
+
+	/**
+	 * Tests that concurrently written parts of several chunks are read as a
+	 * whole, one after another.
+	 * 
+	 * @throws Exception
+	 *             Pipe could not be written or read.
+	 */
+	@Test
+	public void concurrentParts() throws Exception {
+		final ResultPipe pipe = new ResultPipe(SpillBuffer.THRESHOLD,
+				4L * SpillBuffer.CHUNK);
+		int length = 3 * SpillBuffer.CHUNK + 17;
+		final ExecutorService executor = Executors.newFixedThreadPool(3);
+		for (char c = 'a'; c <= 'c'; c++)
+			executor.submit(writer(pipe, String.valueOf(c), bytes(length, c)));
+		new Thread() {
+
+			@Override
+			public void run() {
+				Tasks.terminate(executor);
+				pipe.finish();
+			}
+		}.start();
+		for (int p = 0; p < 3; p++) {
+			ResultPipe.PartInput part = pipe.nextPart();
+			assertArrayEquals(bytes(length, part.getServer().charAt(0)),
+					read(part));
+		}
+		assertNull(pipe.nextPart());
+		pipe.close();
+	}
+
+	/**
+	 * Tests that a writer blocks once the buffered chunks reach the capacity
+	 * and proceeds as soon as the reader catches up.
+	 * 
+	 * @throws Exception
+	 *             Pipe could not be written or read.
+	 */
+	@Test
+	public void backPressure() throws Exception {
+		ResultPipe pipe = new ResultPipe(SpillBuffer.THRESHOLD,
+				2L * SpillBuffer.CHUNK);
+		byte[] data = bytes(5 * SpillBuffer.CHUNK + 1, 'x');
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Void> writing = executor.submit(writer(pipe, "x", data));
+		executor.shutdown();
+		Thread.sleep(200);
+		assertFalse("Writer should block at the capacity", writing.isDone());
+		ResultPipe.PartInput part = pipe.nextPart();
+		assertArrayEquals(data, read(part));
+		writing.get();
+		pipe.close();
+	}
+
+	/**
+	 * Tests that closing the pipe releases a blocked writer with an
+	 * exception.
+	 * 
+	 * @throws Exception
+	 *             Pipe could not be written or read.
+	 */
+	@Test
+	public void closeReleasesWriter() throws Exception {
+		ResultPipe pipe = new ResultPipe(SpillBuffer.THRESHOLD,
+				SpillBuffer.CHUNK);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Void> writing = executor.submit(writer(pipe, "x",
+				bytes(3 * SpillBuffer.CHUNK, 'x')));
+		executor.shutdown();
+		Thread.sleep(200);
+		assertFalse(writing.isDone());
+		pipe.close();
+		try {
+			writing.get();
+			fail("Writer should fail after close.");
+		} catch (final ExecutionException exc) {
+			assertTrue(exc.getCause() instanceof IOException);
+		}
+	}
+
+	/**
+	 * Returns a task writing a part.
+	 * 
+	 * @param pipe
+	 *            Pipe.
+	 * @param server
+	 *            Server id.
+	 * @param data
+	 *            Written bytes.
+	 * @return Task.
+	 */
+	static Callable<Void> writer(final ResultPipe pipe, final String server,
+			final byte[] data) {
+		return new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				OutputStream out = pipe.open(server);
+				try {
+					// odd slices cross the chunk boundaries
+					for (int i = 0; i < data.length; i += 1000)
+						out.write(data, i, Math.min(1000, data.length - i));
+				} finally {
+					out.close();
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Returns bytes of one character.
+	 * 
+	 * @param length
+	 *            Number of bytes.
+	 * @param c
+	 *            Character.
+	 * @return Bytes.
+	 */
+	static byte[] bytes(final int length, final char c) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++)
+			b[i] = (byte) (i % 7 == 0 ? c : c - 32);
+		return b;
+	}
+
+	/**
+	 * Reads a stream completely.
+	 * 
+	 * @param input
+	 *            Input.
+	 * @return Bytes.
+	 * @throws IOException
+	 *             Input could not be read.
+	 */
+	static byte[] read(final InputStream input) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = input.read(buffer)) != -1)
+			bos.write(buffer, 0, n);
+		return bos.toByteArray();
+	}
+}
@@ -0,0 +1,82 @@
+package org.unikn.quedix.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests the spilling of the {@link SpillBuffer} and of a {@link ResultPipe}
+ * beyond its threshold.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class SpillBufferTest {
+
+	/**
+	 * Tests that chunks are spilled beyond the threshold and that released
+	 * chunks are counted off again.
+	 * 
+	 * @throws IOException
+	 *             Spill file could not be mapped.
+	 */
+	@Test
+	public void threshold() throws IOException {
+		SpillBuffer buffer = new SpillBuffer(SpillBuffer.CHUNK);
+		SpillBuffer.Chunk memory = buffer.allocate();
+		assertFalse(memory.isSpilled());
+		assertEquals(SpillBuffer.CHUNK, memory.getBuffer().capacity());
+		SpillBuffer.Chunk spilled = buffer.allocate();
+		assertTrue(spilled.isSpilled());
+		buffer.release(memory);
+		assertFalse(buffer.allocate().isSpilled());
+		buffer.close();
+	}
+
+	/**
+	 * Tests that released regions of the spill file are reused before the
+	 * file grows.
+	 * 
+	 * @throws IOException
+	 *             Spill file could not be mapped.
+	 */
+	@Test
+	public void reuse() throws IOException {
+		SpillBuffer buffer = new SpillBuffer(0);
+		SpillBuffer.Chunk chunk = buffer.allocate();
+		ByteBuffer region = chunk.getBuffer();
+		region.put((byte) 1);
+		buffer.release(chunk);
+		SpillBuffer.Chunk next = buffer.allocate();
+		assertTrue(next.isSpilled());
+		assertTrue(region == next.getBuffer());
+		assertEquals(0, next.getBuffer().position());
+		assertTrue(buffer.allocate().getBuffer() != region);
+		buffer.close();
+	}
+
+	/**
+	 * Tests that a pipe, which spills every chunk, returns the written
+	 * results.
+	 * 
+	 * @throws IOException
+	 *             Pipe could not be written or read.
+	 */
+	@Test
+	public void spilledPipe() throws IOException {
+		ResultPipe pipe = new ResultPipe(0);
+		byte[] data = ResultPipeTest.bytes(3 * SpillBuffer.CHUNK + 5, 's');
+		OutputStream out = pipe.open("s");
+		out.write(data);
+		out.close();
+		pipe.finish();
+		assertArrayEquals(data, ResultPipeTest.read(pipe));
+		pipe.close();
+	}
+}
@@ -0,0 +1,99 @@
+package org.unikn.quedix.reduce;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.basex.util.Token;
+import org.junit.Test;
+
+/**
+ * Tests the estimates of the {@link Aggregator} for sampled map results.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class AggregatorTest {
+
+	/**
+	 * Tests that the subtotals of sampled documents are weighted by their
+	 * own fractions and give the bounds of the confidence interval.
+	 * 
+	 * @throws IOException
+	 *             Input could not be aggregated.
+	 */
+	@Test
+	public void sampledDocuments() throws IOException {
+		// 30 / 0.5 + 5 / 0.25 with the variance
+		// 0.5 * 30^2 / 0.5^2 + 0.75 * 5^2 / 0.25^2
+		double error = 1.96 * Math.sqrt(2100);
+		assertEquals("<estimate low=\"" + round(80 - error) + "\" high=\""
+				+ round(80 + error) + "\">80</estimate>", aggregate(
+				"sum:@p", "<quedix-unit f=\"0.5\"><c p=\"10\"/><c p=\"20\"/>"
+						+ "</quedix-unit><quedix-unit f=\"0.25\"><c p=\"5\"/>"
+						+ "</quedix-unit>"));
+	}
+
+	/**
+	 * Tests that grouped counts are estimated per group and that atomic
+	 * results of a sampled document count as items without key.
+	 * 
+	 * @throws IOException
+	 *             Input could not be aggregated.
+	 */
+	@Test
+	public void sampledGroups() throws IOException {
+		assertEquals("<group key=\"\" low=\"-2\" high=\"10\">4</group>\n"
+				+ "<group key=\"a\" low=\"0\" high=\"12\">6</group>",
+				aggregate("group-count:@k", "<quedix-unit f=\"0.5\">"
+						+ "<c k=\"a\"/><c k=\"a\"/></quedix-unit>"
+						+ "<quedix-unit f=\"0.5\">3 4<c k=\"a\"/>"
+						+ "</quedix-unit>"));
+	}
+
+	/**
+	 * Tests that sampled results without documents are scaled by the
+	 * sampling fraction, without bounds.
+	 * 
+	 * @throws IOException
+	 *             Input could not be aggregated.
+	 */
+	@Test
+	public void sampledItems() throws IOException {
+		assertEquals("<estimate>12</estimate>", aggregate("sum",
+				"1 2 <a>3</a>"));
+	}
+
+	/**
+	 * Aggregates map results, sampled with the fraction 0.5.
+	 * 
+	 * @param spec
+	 *            Aggregation specification.
+	 * @param results
+	 *            Map results.
+	 * @return Result.
+	 * @throws IOException
+	 *             Input could not be aggregated.
+	 */
+	private static String aggregate(final String spec, final String results)
+			throws IOException {
+		Aggregator aggregator = Aggregator.parse(spec);
+		aggregator.setSample(0.5);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		aggregator.aggregate(new ByteArrayInputStream(Token.token("<results>"
+				+ results + "</results>")), bos);
+		return bos.toString();
+	}
+
+	/**
+	 * Rounds a bound like the estimates of sums.
+	 * 
+	 * @param d
+	 *            Bound.
+	 * @return Lexical representation.
+	 */
+	private static String round(final double d) {
+		return Double.toString(Math.round(d * 100) / 100.0);
+	}
+}
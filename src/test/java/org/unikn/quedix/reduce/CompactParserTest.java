@@ -0,0 +1,121 @@
+package org.unikn.quedix.reduce;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.basex.query.QueryException;
+import org.basex.util.Token;
+import org.junit.Test;
+import org.unikn.quedix.core.ResultPipe;
+
+/**
+ * Tests the decoding of map results in the compact intermediate format by
+ * the {@link CompactParser}, through the {@link ReduceEngine}.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class CompactParserTest {
+
+	/** Reducer, listing names, attributes and texts of all nodes. */
+	private static final String REDUCER = "string-join(for $n in"
+			+ " /results/(*|text()) return if ($n instance of element())"
+			+ " then concat(name($n), '[', string-join(for $a in $n/@*"
+			+ " return concat(name($a), '=', $a), ','), ']', $n) else"
+			+ " concat('#', $n), '|')";
+
+	/**
+	 * Tests that element and attribute names are looked up in the
+	 * dictionary.
+	 * 
+	 * @throws Exception
+	 *             Input could not be reduced.
+	 */
+	@Test
+	public void dictionary() throws Exception {
+		assertEquals("city[name=Konstanz,zip=78462]lake",
+				reduce("Q1;3;4:city4:name3:zip"
+						+ "E1,2,1;2,8:Konstanz3,5:78462T4:lake"));
+	}
+
+	/**
+	 * Tests that string lengths count a surrogate pair as one character, as
+	 * <code>string-length</code> does.
+	 * 
+	 * @throws Exception
+	 *             Input could not be reduced.
+	 */
+	@Test
+	public void surrogateLength() throws Exception {
+		String smiley = new String(Character.toChars(0x1F600));
+		assertEquals("a[]x" + smiley + "y|#" + smiley + smiley,
+				reduce("Q1;1;1:aE1,0,1;T3:x" + smiley + "yS2:" + smiley
+						+ smiley));
+	}
+
+	/**
+	 * Tests that consecutive atomic values are merged into one text node,
+	 * separated by spaces.
+	 * 
+	 * @throws Exception
+	 *             Input could not be reduced.
+	 */
+	@Test
+	public void atomics() throws Exception {
+		assertEquals("#42 1.5 true 2:b|a[]|#false",
+				reduce("Q1;1;1:aI42;D1.5;B1;S3:2:bE1,0,0;B0;"));
+	}
+
+	/**
+	 * Tests that an invalid header is rejected.
+	 * 
+	 * @throws Exception
+	 *             Expected exception.
+	 */
+	@Test(expected = IOException.class)
+	public void invalidHeader() throws Exception {
+		reduce("Q2;0;I1;");
+	}
+
+	/**
+	 * Tests that truncated input is rejected.
+	 * 
+	 * @throws Exception
+	 *             Expected exception.
+	 */
+	@Test(expected = IOException.class)
+	public void truncated() throws Exception {
+		reduce("Q1;1;1:aE1,0,1;T5:ab");
+	}
+
+	/**
+	 * Reduces the compact results of one server.
+	 * 
+	 * @param results
+	 *            Compact results.
+	 * @return Reduce result.
+	 * @throws IOException
+	 *             Input could not be built.
+	 * @throws QueryException
+	 *             Reducer could not be executed.
+	 */
+	private static String reduce(final String results) throws IOException,
+			QueryException {
+		ReduceEngine engine = new ReduceEngine(1);
+		String id = engine.register(Token.token(REDUCER));
+		ResultPipe pipe = new ResultPipe();
+		OutputStream out = pipe.open("server");
+		out.write(results.getBytes("UTF-8"));
+		out.close();
+		pipe.finish();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			engine.reduce(id, pipe, bos, true, Long.MAX_VALUE);
+		} finally {
+			pipe.close();
+		}
+		return Token.string(bos.toByteArray());
+	}
+}
@@ -0,0 +1,88 @@
+package org.unikn.quedix.reduce;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.basex.util.Token;
+import org.junit.Test;
+
+/**
+ * Tests the routing of fused job results by the {@link Demultiplexer}.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class DemultiplexerTest {
+
+	/**
+	 * Tests that the unwrapped contents of each job wrapper are written to
+	 * the output of its job, in order of the servers.
+	 * 
+	 * @throws IOException
+	 *             Input could not be split.
+	 */
+	@Test
+	public void routing() throws IOException {
+		OutputStream[] outputs = outputs(2);
+		long[] counts = new Demultiplexer().split(input("<results>"
+				+ "<job id=\"0\"><a>1</a><a>2</a></job>"
+				+ "<job id=\"1\"><b x=\"&amp;\"/></job>"
+				+ "<job id=\"0\"><a>3</a></job></results>"), outputs);
+		assertEquals("<a>1</a><a>2</a><a>3</a>", outputs[0].toString());
+		assertEquals("<b x=\"&amp;\"></b>", outputs[1].toString());
+		assertEquals(2, counts[0]);
+		assertEquals(1, counts[1]);
+	}
+
+	/**
+	 * Tests that an unknown job id is rejected.
+	 * 
+	 * @throws IOException
+	 *             Expected exception.
+	 */
+	@Test(expected = IOException.class)
+	public void unknownJob() throws IOException {
+		new Demultiplexer().split(input("<results><job id=\"2\"><a/></job>"
+				+ "</results>"), outputs(2));
+	}
+
+	/**
+	 * Tests that a job wrapper without an id is rejected.
+	 * 
+	 * @throws IOException
+	 *             Expected exception.
+	 */
+	@Test(expected = IOException.class)
+	public void missingId() throws IOException {
+		new Demultiplexer().split(input("<results><job><a/></job></results>"),
+				outputs(2));
+	}
+
+	/**
+	 * Returns the outputs of the jobs.
+	 * 
+	 * @param jobs
+	 *            Number of jobs.
+	 * @return Outputs.
+	 */
+	private static OutputStream[] outputs(final int jobs) {
+		OutputStream[] outputs = new OutputStream[jobs];
+		for (int j = 0; j < jobs; j++)
+			outputs[j] = new ByteArrayOutputStream();
+		return outputs;
+	}
+
+	/**
+	 * Returns an input stream of fused results.
+	 * 
+	 * @param results
+	 *            Results.
+	 * @return Input stream.
+	 */
+	private static ByteArrayInputStream input(final String results) {
+		return new ByteArrayInputStream(Token.token(results));
+	}
+}
@@ -0,0 +1,89 @@
+package org.unikn.quedix.reduce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link HyperLogLog} sketch. The register codes are computed like
+ * the data servers do, from two random 31 bit hashes per distinct value.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class HyperLogLogTest {
+
+	/**
+	 * Tests the estimate of a large cardinality, whose values are spread
+	 * over several server sketches.
+	 */
+	@Test
+	public void estimateLarge() {
+		HyperLogLog hll = new HyperLogLog(HyperLogLog.REGISTERS);
+		Random random = new Random(42);
+		int distinct = 100000;
+		for (int i = 0; i < distinct; i++)
+			hll.merge(code(random, HyperLogLog.REGISTERS));
+		// three times the standard error of 1.6%
+		assertEquals(distinct, hll.estimate(), distinct * 0.05);
+	}
+
+	/**
+	 * Tests the linear counting of a small cardinality.
+	 */
+	@Test
+	public void estimateSmall() {
+		HyperLogLog hll = new HyperLogLog(HyperLogLog.REGISTERS);
+		Random random = new Random(7);
+		for (int i = 0; i < 100; i++)
+			hll.merge(code(random, HyperLogLog.REGISTERS));
+		assertEquals(100, hll.estimate(), 3);
+	}
+
+	/**
+	 * Tests that merging keeps the maximum rank of each register, so
+	 * duplicate codes of several servers do not change the estimate.
+	 */
+	@Test
+	public void mergeDuplicates() {
+		HyperLogLog hll = new HyperLogLog(16);
+		assertEquals(0, hll.estimate());
+		hll.merge(3 * HyperLogLog.CODE + 5);
+		long estimate = hll.estimate();
+		hll.merge(3 * HyperLogLog.CODE + 5);
+		hll.merge(3 * HyperLogLog.CODE + 2);
+		assertEquals(estimate, hll.estimate());
+		// codes of unknown registers are ignored
+		hll.merge(16 * HyperLogLog.CODE + 1);
+		assertEquals(estimate, hll.estimate());
+		assertTrue(estimate > 0);
+	}
+
+	/**
+	 * Tests the rejection of a number of registers, which is no power of
+	 * two.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidRegisters() {
+		new HyperLogLog(100);
+	}
+
+	/**
+	 * Returns the code of a random value, i.e. its register times 64 plus its
+	 * rank, the number of leading zeros of 31 hash bits plus one.
+	 * 
+	 * @param random
+	 *            Random number generator.
+	 * @param registers
+	 *            Number of registers.
+	 * @return Code.
+	 */
+	private static long code(final Random random, final int registers) {
+		int h1 = random.nextInt(Integer.MAX_VALUE);
+		int h2 = random.nextInt(Integer.MAX_VALUE);
+		int rank = Integer.numberOfLeadingZeros(h2);
+		return (long) (h1 % registers) * HyperLogLog.CODE + rank;
+	}
+}
@@ -0,0 +1,111 @@
+package org.unikn.quedix.reduce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.basex.util.Token;
+import org.junit.Test;
+import org.unikn.quedix.core.QueryComposer;
+
+/**
+ * Tests the reading of map results item by item, together with their keys,
+ * by the {@link ItemReader}.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class ItemReaderTest {
+
+	/**
+	 * Tests that element items are serialized again, with the first value
+	 * of an element key, and that items without the key get an empty key.
+	 * 
+	 * @throws IOException
+	 *             Input could not be read.
+	 */
+	@Test
+	public void elementKey() throws IOException {
+		ItemReader reader = reader("city/name", "<results>"
+				+ "<item><city><name> A&amp;B </name><name>C</name></city>"
+				+ "</item><item x=\"&quot;\"><n>1</n></item></results>");
+		assertTrue(reader.next());
+		assertEquals("A&B", reader.getKey());
+		assertEquals("<item><city><name> A&amp;B </name><name>C</name>"
+				+ "</city></item>", reader.getItem());
+		assertTrue(reader.next());
+		assertEquals("", reader.getKey());
+		assertEquals("<item x=\"&quot;\"><n>1</n></item>", reader.getItem());
+		assertFalse(reader.next());
+		assertNull(reader.getItem());
+		reader.close();
+	}
+
+	/**
+	 * Tests that an attribute key is read from the item itself.
+	 * 
+	 * @throws IOException
+	 *             Input could not be read.
+	 */
+	@Test
+	public void attributeKey() throws IOException {
+		ItemReader reader = reader("@country", "<results>"
+				+ "<city country=\"de\">Konstanz</city><city>Basel</city>"
+				+ "</results>");
+		assertTrue(reader.next());
+		assertEquals("de", reader.getKey());
+		assertTrue(reader.next());
+		assertEquals("", reader.getKey());
+		assertFalse(reader.next());
+		reader.close();
+	}
+
+	/**
+	 * Tests that wrapped atomic results are read as one item and unwrapped
+	 * ones as one item per token, each being its own key.
+	 * 
+	 * @throws IOException
+	 *             Input could not be read.
+	 */
+	@Test
+	public void atomics() throws IOException {
+		String atom = QueryComposer.ATOM;
+		ItemReader reader = reader(".", "<results> 1 a&lt;b <" + atom
+				+ ">New York</" + atom + "><c/>2</results>");
+		assertTrue(reader.next());
+		assertEquals("1", reader.getKey());
+		assertEquals("1 ", reader.getItem());
+		assertTrue(reader.next());
+		assertEquals("a<b", reader.getKey());
+		assertEquals("a&lt;b ", reader.getItem());
+		assertTrue(reader.next());
+		assertEquals("New York", reader.getKey());
+		assertEquals("New York ", reader.getItem());
+		assertTrue(reader.next());
+		assertEquals("<c></c>", reader.getItem());
+		assertTrue(reader.next());
+		assertEquals("2", reader.getKey());
+		assertFalse(reader.next());
+		reader.close();
+	}
+
+	/**
+	 * Returns a reader of map results.
+	 * 
+	 * @param key
+	 *            Key path.
+	 * @param results
+	 *            Map results.
+	 * @return Reader.
+	 * @throws IOException
+	 *             Input could not be parsed.
+	 */
+	private static ItemReader reader(final String key, final String results)
+			throws IOException {
+		return new ItemReader(new ByteArrayInputStream(Token.token(results)),
+				key);
+	}
+}
@@ -0,0 +1,118 @@
+package org.unikn.quedix.reduce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.basex.util.Token;
+import org.junit.Test;
+
+/**
+ * Tests the routing of result items by their grouping key in the
+ * {@link Partitioner}.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class PartitionerTest {
+
+	/** Number of partitions. */
+	private static final int PARTITIONS = 3;
+
+	/**
+	 * Tests that items are routed by an attribute key and that items with
+	 * equal keys end up in the same partition.
+	 * 
+	 * @throws IOException
+	 *             Input could not be split.
+	 */
+	@Test
+	public void attributeKey() throws IOException {
+		String[] parts = split("@country", "<results>"
+				+ "<city country=\"de\">Konstanz</city>"
+				+ "<city country=\"ch\">Basel</city>"
+				+ "<city country=\"de\">Berlin</city></results>");
+		String de = parts[Partitioner.partition("de", PARTITIONS)];
+		assertTrue(de.contains("<city country=\"de\">Konstanz</city>"));
+		assertTrue(de.contains("<city country=\"de\">Berlin</city>"));
+		assertTrue(parts[Partitioner.partition("ch", PARTITIONS)]
+				.contains("<city country=\"ch\">Basel</city>"));
+	}
+
+	/**
+	 * Tests that items are routed by the first value of an element key and
+	 * that their text is escaped again.
+	 * 
+	 * @throws IOException
+	 *             Input could not be split.
+	 */
+	@Test
+	public void elementKey() throws IOException {
+		String[] parts = split("city/name", "<results>"
+				+ "<item><city><name> A&amp;B </name></city><n>1</n></item>"
+				+ "<item><city><name>C</name><name>A&amp;B</name></city>"
+				+ "</item></results>");
+		String ab = parts[Partitioner.partition("A&B", PARTITIONS)];
+		assertTrue(ab.contains("<name> A&amp;B </name>"));
+		assertTrue(parts[Partitioner.partition("C", PARTITIONS)]
+				.contains("<name>C</name><name>A&amp;B</name>"));
+	}
+
+	/**
+	 * Tests that items without a key and atomic results are counted in the
+	 * partitions of the empty key and the first partition.
+	 * 
+	 * @throws IOException
+	 *             Input could not be split.
+	 */
+	@Test
+	public void missingKeyAndAtomics() throws IOException {
+		OutputStream[] outputs = outputs();
+		long[] counts = new Partitioner("@k").split(new ByteArrayInputStream(
+				Token.token("<results>42<a/><a k=\"x\"/></results>")), outputs);
+		long total = 0;
+		for (long count : counts)
+			total += count;
+		assertEquals(3, total);
+		assertTrue(outputs[0].toString().startsWith("42 "));
+		assertTrue(outputs[Partitioner.partition("", PARTITIONS)].toString()
+				.contains("<a></a>"));
+	}
+
+	/**
+	 * Returns the outputs of the partitions.
+	 * 
+	 * @return Outputs.
+	 */
+	private static OutputStream[] outputs() {
+		OutputStream[] outputs = new OutputStream[PARTITIONS];
+		for (int p = 0; p < PARTITIONS; p++)
+			outputs[p] = new ByteArrayOutputStream();
+		return outputs;
+	}
+
+	/**
+	 * Splits map results into partitions.
+	 * 
+	 * @param key
+	 *            Grouping key path.
+	 * @param results
+	 *            Map results.
+	 * @return Contents of the partitions.
+	 * @throws IOException
+	 *             Input could not be split.
+	 */
+	private static String[] split(final String key, final String results)
+			throws IOException {
+		OutputStream[] outputs = outputs();
+		new Partitioner(key).split(
+				new ByteArrayInputStream(Token.token(results)), outputs);
+		String[] parts = new String[PARTITIONS];
+		for (int p = 0; p < PARTITIONS; p++)
+			parts[p] = outputs[p].toString();
+		return parts;
+	}
+}
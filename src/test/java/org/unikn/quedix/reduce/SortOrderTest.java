@@ -0,0 +1,74 @@
+package org.unikn.quedix.reduce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the parsing of order specifications and the key comparison of the
+ * {@link SortOrder}.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class SortOrderTest {
+
+	/**
+	 * Tests that the flags of a specification are parsed.
+	 */
+	@Test
+	public void parse() {
+		SortOrder order = SortOrder.parse(" @population:desc:number ");
+		assertEquals("@population", order.getKey());
+		assertTrue(order.isDescending());
+		assertTrue(order.isNumeric());
+		order = SortOrder.parse("name:asc");
+		assertEquals("name", order.getKey());
+		assertFalse(order.isDescending());
+		assertFalse(order.isNumeric());
+	}
+
+	/**
+	 * Tests that an unknown flag is rejected.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownFlag() {
+		SortOrder.parse("name:descending");
+	}
+
+	/**
+	 * Tests that strings are compared by code points, so a supplementary
+	 * character sorts after all characters of the basic plane, and that
+	 * missing keys sort least.
+	 */
+	@Test
+	public void codepoints() {
+		SortOrder order = new SortOrder("name", false, false);
+		String supplementary = new String(Character.toChars(0x10000));
+		assertTrue(order.compare("\uFFFF", supplementary) < 0);
+		assertTrue(order.compare(supplementary, "\uFFFF") > 0);
+		assertTrue(order.compare("", "a") < 0);
+		assertTrue(order.compare("ab", "a") > 0);
+		assertEquals(0, order.compare("a" + supplementary, "a"
+				+ supplementary));
+	}
+
+	/**
+	 * Tests that numbers are compared by value, that values which are no
+	 * numbers sort least and that the descending order flips the result.
+	 */
+	@Test
+	public void numbers() {
+		SortOrder order = new SortOrder("@population", false, true);
+		assertTrue(order.compare("9", "10") < 0);
+		assertTrue(order.compare(" 1e3 ", "999.5") > 0);
+		assertTrue(order.compare("-INF", "-1e308") < 0);
+		assertTrue(order.compare("", "-INF") < 0);
+		assertTrue(order.compare("n/a", "0") < 0);
+		assertEquals(0, order.compare("", "n/a"));
+		order = new SortOrder("@population", true, true);
+		assertTrue(order.compare("9", "10") > 0);
+		assertTrue(order.compare("", "0") > 0);
+	}
+}
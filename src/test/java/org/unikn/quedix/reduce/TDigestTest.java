@@ -0,0 +1,99 @@
+package org.unikn.quedix.reduce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link TDigest}. The server digests are computed like the query
+ * of the data servers does, from the sorted values of each server.
+ * 
+ * @author Lukas Lewandowski, University of Konstanz.
+ */
+public class TDigestTest {
+
+	/** Number of values. */
+	private static final int VALUES = 10000;
+	/** Number of servers. */
+	private static final int SERVERS = 4;
+
+	/**
+	 * Tests the quantiles of values, which are spread randomly over several
+	 * servers.
+	 */
+	@Test
+	public void quantiles() {
+		List<Double> values = new ArrayList<Double>();
+		for (int i = 1; i <= VALUES; i++)
+			values.add((double) i);
+		Collections.shuffle(values, new Random(42));
+		TDigest digest = new TDigest(TDigest.COMPRESSION);
+		int size = VALUES / SERVERS;
+		for (int s = 0; s < SERVERS; s++)
+			server(digest, values.subList(s * size, (s + 1) * size));
+		assertEquals(5000, digest.quantile(0.5), VALUES * 0.01);
+		assertEquals(9900, digest.quantile(0.99), VALUES * 0.002);
+		assertEquals(100, digest.quantile(0.01), VALUES * 0.002);
+		assertEquals(1, digest.quantile(0), 0);
+		assertEquals(VALUES, digest.quantile(1), 0);
+	}
+
+	/**
+	 * Tests that the quantile bounds start at 0, end at 1 and are narrow at
+	 * the tails.
+	 */
+	@Test
+	public void bounds() {
+		double[] bounds = new TDigest(TDigest.COMPRESSION).bounds();
+		assertEquals(TDigest.COMPRESSION + 1, bounds.length);
+		assertEquals(0, bounds[0], 1e-12);
+		assertEquals(1, bounds[bounds.length - 1], 0);
+		int mid = bounds.length / 2;
+		assertTrue(bounds[1] - bounds[0] < bounds[mid + 1] - bounds[mid]);
+		for (int b = 1; b < bounds.length; b++)
+			assertTrue(bounds[b] >= bounds[b - 1]);
+	}
+
+	/**
+	 * Tests the estimate of an empty digest.
+	 */
+	@Test
+	public void empty() {
+		assertTrue(Double.isNaN(new TDigest(TDigest.COMPRESSION)
+				.quantile(0.5)));
+	}
+
+	/**
+	 * Merges the digest of a server, summarizing its sorted values by the
+	 * means and weights of the quantile ranges.
+	 * 
+	 * @param digest
+	 *            Merged digest.
+	 * @param values
+	 *            Values of the server.
+	 */
+	private static void server(final TDigest digest,
+			final List<Double> values) {
+		List<Double> sorted = new ArrayList<Double>(values);
+		Collections.sort(sorted);
+		double[] bounds = digest.bounds();
+		int n = sorted.size();
+		for (int b = 0; b < bounds.length - 1; b++) {
+			int from = (int) Math.floor(bounds[b] * n);
+			int to = (int) Math.floor(bounds[b + 1] * n);
+			if (to <= from)
+				continue;
+			double sum = 0;
+			for (double d : sorted.subList(from, to))
+				sum += d;
+			digest.merge(sum / (to - from), to - from);
+		}
+		digest.extremes(sorted.get(0), sorted.get(n - 1));
+	}
+}